@@ -0,0 +1,176 @@
+package hudson.plugins.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A list of {@link Branch}es stored column by column: the object ids are packed into
+ * a single byte array, and the names are kept in a parallel array.
+ *
+ * <p>
+ * A branch costs its name plus 20 bytes, instead of a {@link Branch} and an {@link ObjectId}
+ * object each. This matters for {@link Revision}s, which are kept in memory and persisted
+ * with every build record, and can carry thousands of branches in large repositories.
+ *
+ * <p>
+ * The {@link Branch} instances returned by {@link #get(int)} are created on demand, so
+ * identity isn't preserved. As {@link Branch} compares by identity, {@link #contains(Object)},
+ * {@link #indexOf(Object)} and {@link #remove(Object)} don't find them: use {@link #containsName(String)}
+ * or the index instead.
+ *
+ * <p>
+ * The list is only compact in memory: it is serialized as an {@link ArrayList}.
+ *
+ * @since 1.6.2
+ */
+public class BranchList extends AbstractList<Branch> implements RandomAccess, Serializable {
+    private static final int ID_LENGTH = 20;
+
+    private int size;
+    private byte[] ids;
+    private String[] names;
+    /**
+     * Indices of the branches without an id.
+     */
+    private BitSet nullIds = new BitSet();
+
+    public BranchList() {
+        this(10);
+    }
+
+    public BranchList(int capacity) {
+        ids = new byte[capacity * ID_LENGTH];
+        names = new String[capacity];
+    }
+
+    public BranchList(Collection<? extends Branch> branches) {
+        this(branches.size());
+        addAll(branches);
+    }
+
+    /**
+     * Returns the given branches as a {@link BranchList}, copying them unless they already are one.
+     */
+    public static BranchList of(Collection<? extends Branch> branches) {
+        return branches instanceof BranchList ? (BranchList) branches : new BranchList(branches);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Branch get(int index) {
+        checkIndex(index, size);
+        return new Branch(names[index], getSHA1(index));
+    }
+
+    /**
+     * Name of the branch at the given index, without creating a {@link Branch}.
+     */
+    public String getName(int index) {
+        checkIndex(index, size);
+        return names[index];
+    }
+
+    /**
+     * Object id of the branch at the given index, without creating a {@link Branch}.
+     */
+    public ObjectId getSHA1(int index) {
+        checkIndex(index, size);
+        return nullIds.get(index) ? null : ObjectId.fromRaw(ids, index * ID_LENGTH);
+    }
+
+    public boolean containsName(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i] == null ? name == null : names[i].equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Branch set(int index, Branch branch) {
+        Branch old = get(index);
+        store(index, branch);
+        return old;
+    }
+
+    @Override
+    public void add(int index, Branch branch) {
+        checkIndex(index, size + 1);
+        ensureCapacity(size + 1);
+        System.arraycopy(ids, index * ID_LENGTH, ids, (index + 1) * ID_LENGTH, (size - index) * ID_LENGTH);
+        System.arraycopy(names, index, names, index + 1, size - index);
+        for (int i = size; i > index; i--)
+            nullIds.set(i, nullIds.get(i - 1));
+        size++;
+        modCount++;
+        store(index, branch);
+    }
+
+    @Override
+    public Branch remove(int index) {
+        Branch old = get(index);
+        System.arraycopy(ids, (index + 1) * ID_LENGTH, ids, index * ID_LENGTH, (size - index - 1) * ID_LENGTH);
+        System.arraycopy(names, index + 1, names, index, size - index - 1);
+        for (int i = index; i < size - 1; i++)
+            nullIds.set(i, nullIds.get(i + 1));
+        size--;
+        names[size] = null;
+        nullIds.clear(size);
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        nullIds.clear();
+        size = 0;
+        modCount++;
+    }
+
+    private void store(int index, Branch branch) {
+        names[index] = branch.getName();
+        ObjectId id = branch.getSHA1();
+        if (id == null) {
+            nullIds.set(index);
+        } else {
+            nullIds.clear(index);
+            id.copyRawTo(ids, index * ID_LENGTH);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length)
+            return;
+        int newCapacity = Math.max(capacity, names.length * 3 / 2 + 1);
+        names = Arrays.copyOf(names, newCapacity);
+        ids = Arrays.copyOf(ids, newCapacity * ID_LENGTH);
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    /**
+     * Serialized, and saved in build records, as a plain list of branches, so that
+     * the format stays the one older versions read. {@link Revision} reads it back
+     * into a {@link BranchList}.
+     */
+    private Object writeReplace() {
+        return new ArrayList<Branch>(this);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -48,6 +48,23 @@ public class IndexEntry implements Serializable {
     public String toString() {
         return String.format("IndexEntry[mode=%s,type=%s,file=%s,object=%s]",mode,type,file,object);
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IndexEntry)) return false;
+        IndexEntry that = (IndexEntry) o;
+        return eq(mode, that.mode) && eq(type, that.type) && eq(object, that.object) && eq(file, that.file);
+    }
+
+    private static boolean eq(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+        return file == null ? 0 : file.hashCode();
+    }
   
     public IndexEntry(String mode, String type, String object, String file) {
         this.mode = mode;
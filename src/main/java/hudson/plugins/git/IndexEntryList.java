@@ -0,0 +1,258 @@
+package hudson.plugins.git;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list of {@link IndexEntry}s, such as the result of <tt>ls-tree</tt>, stored column by column.
+ *
+ * <ul>
+ *     <li>object ids are packed into a single byte array, 20 bytes per entry,
+ *     <li>mode and type pairs are stored as one byte indexing a small table,
+ *     <li>paths are split into a shared directory, and a file name.
+ * </ul>
+ *
+ * <p>
+ * A listing of a large tree thus costs little more than its file names, both in memory and
+ * when sent over the channel. The {@link IndexEntry} instances returned by {@link #get(int)}
+ * are created on demand: modifying them doesn't change the list, but the list itself can be
+ * modified like an {@link ArrayList}.
+ *
+ * @since 1.6.2
+ */
+public class IndexEntryList extends AbstractList<IndexEntry> implements RandomAccess, Serializable {
+    private static final int ID_LENGTH = 20;
+
+    /**
+     * The mode/type pairs found in practically all trees, which are the first entries of every table.
+     */
+    private static final String[][] COMMON_KINDS = {
+        {"100644", "blob"},
+        {"100755", "blob"},
+        {"040000", "tree"},
+        {"120000", "blob"},
+        {"160000", "commit"},
+    };
+
+    private transient int size;
+    private transient byte[] ids;
+    private transient byte[] kinds;
+    private transient int[] dirs;
+    private transient String[] names;
+
+    /**
+     * Mode and type of each kind, indexed by {@link #kinds}.
+     */
+    private transient List<String[]> kindTable;
+    /**
+     * Directories of the entries, indexed by {@link #dirs}. The root is the empty string.
+     */
+    private transient List<String> dirTable;
+    private transient Map<String, Integer> dirIndex;
+
+    public IndexEntryList() {
+        this(16);
+    }
+
+    public IndexEntryList(int capacity) {
+        init(capacity);
+    }
+
+    private void init(int capacity) {
+        ids = new byte[capacity * ID_LENGTH];
+        kinds = new byte[capacity];
+        dirs = new int[capacity];
+        names = new String[capacity];
+        kindTable = new ArrayList<String[]>(Arrays.asList(COMMON_KINDS));
+        dirTable = new ArrayList<String>();
+        dirIndex = new HashMap<String, Integer>();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IndexEntry get(int index) {
+        checkIndex(index);
+        String[] kind = kindTable.get(kinds[index] & 0xFF);
+        return new IndexEntry(kind[0], kind[1], getObjectId(index).name(), getFile(index));
+    }
+
+    public ObjectId getObjectId(int index) {
+        checkIndex(index);
+        return ObjectId.fromRaw(ids, index * ID_LENGTH);
+    }
+
+    public String getFile(int index) {
+        checkIndex(index);
+        String dir = dirTable.get(dirs[index]);
+        return dir.length() == 0 ? names[index] : dir + '/' + names[index];
+    }
+
+    public String getMode(int index) {
+        checkIndex(index);
+        return kindTable.get(kinds[index] & 0xFF)[0];
+    }
+
+    @Override
+    public boolean add(IndexEntry e) {
+        add(e.getMode(), e.getType(), ObjectId.fromString(e.getObject()), e.getFile());
+        return true;
+    }
+
+    /**
+     * Appends an entry without creating an {@link IndexEntry}.
+     */
+    public void add(String mode, String type, AnyObjectId id, String file) {
+        ensureCapacity(size + 1);
+        store(size, mode, type, id, file);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public IndexEntry set(int index, IndexEntry e) {
+        IndexEntry old = get(index);
+        store(index, e.getMode(), e.getType(), ObjectId.fromString(e.getObject()), e.getFile());
+        return old;
+    }
+
+    @Override
+    public void add(int index, IndexEntry e) {
+        if (index < 0 || index > size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        ensureCapacity(size + 1);
+        System.arraycopy(ids, index * ID_LENGTH, ids, (index + 1) * ID_LENGTH, (size - index) * ID_LENGTH);
+        System.arraycopy(kinds, index, kinds, index + 1, size - index);
+        System.arraycopy(dirs, index, dirs, index + 1, size - index);
+        System.arraycopy(names, index, names, index + 1, size - index);
+        size++;
+        modCount++;
+        store(index, e.getMode(), e.getType(), ObjectId.fromString(e.getObject()), e.getFile());
+    }
+
+    @Override
+    public IndexEntry remove(int index) {
+        IndexEntry old = get(index);
+        System.arraycopy(ids, (index + 1) * ID_LENGTH, ids, index * ID_LENGTH, (size - index - 1) * ID_LENGTH);
+        System.arraycopy(kinds, index + 1, kinds, index, size - index - 1);
+        System.arraycopy(dirs, index + 1, dirs, index, size - index - 1);
+        System.arraycopy(names, index + 1, names, index, size - index - 1);
+        size--;
+        names[size] = null;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    private void store(int index, String mode, String type, AnyObjectId id, String file) {
+        id.copyRawTo(ids, index * ID_LENGTH);
+        kinds[index] = kindOf(mode, type);
+
+        int slash = file.lastIndexOf('/');
+        dirs[index] = dirOf(slash < 0 ? "" : file.substring(0, slash), index);
+        names[index] = file.substring(slash + 1);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length)
+            return;
+        int newCapacity = Math.max(capacity, names.length * 3 / 2 + 1);
+        ids = Arrays.copyOf(ids, newCapacity * ID_LENGTH);
+        kinds = Arrays.copyOf(kinds, newCapacity);
+        dirs = Arrays.copyOf(dirs, newCapacity);
+        names = Arrays.copyOf(names, newCapacity);
+    }
+
+    private byte kindOf(String mode, String type) {
+        for (int i = 0; i < kindTable.size(); i++) {
+            String[] k = kindTable.get(i);
+            if (k[0].equals(mode) && k[1].equals(type))
+                return (byte) i;
+        }
+        if (kindTable.size() > 0xFF)
+            throw new IllegalArgumentException("Too many distinct modes, can't add " + mode + " " + type);
+        kindTable.add(new String[] {mode, type});
+        return (byte) (kindTable.size() - 1);
+    }
+
+    private int dirOf(String dir, int index) {
+        // entries come in tree order, so the previous entry is usually in the same directory
+        if (index > 0 && dirTable.get(dirs[index - 1]).equals(dir))
+            return dirs[index - 1];
+        Integer i = dirIndex.get(dir);
+        if (i == null) {
+            i = dirTable.size();
+            dirTable.add(dir);
+            dirIndex.put(dir, i);
+        }
+        return i;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        out.writeInt(kindTable.size());
+        for (String[] k : kindTable) {
+            out.writeUTF(k[0]);
+            out.writeUTF(k[1]);
+        }
+        out.writeInt(dirTable.size());
+        for (String d : dirTable)
+            out.writeUTF(d);
+        out.write(ids, 0, size * ID_LENGTH);
+        out.write(kinds, 0, size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(dirs[i]);
+            out.writeUTF(names[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int n = in.readInt();
+        init(n);
+        kindTable.clear();
+        for (int i = in.readInt(); i > 0; i--)
+            kindTable.add(new String[] {in.readUTF().intern(), in.readUTF().intern()});
+        for (int i = in.readInt(); i > 0; i--) {
+            String d = in.readUTF();
+            dirIndex.put(d, dirTable.size());
+            dirTable.add(d);
+        }
+        in.readFully(ids, 0, n * ID_LENGTH);
+        in.readFully(kinds, 0, n);
+        for (int i = 0; i < n; i++) {
+            dirs[i] = in.readInt();
+            names[i] = in.readUTF();
+        }
+        size = n;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
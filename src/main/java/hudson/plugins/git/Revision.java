@@ -10,6 +10,7 @@ import org.kohsuke.stapler.export.ExportedBean;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * A Revision is a SHA1 in the object tree, and the collection of branches that
@@ -27,7 +28,7 @@ public class Revision implements java.io.Serializable, Cloneable {
 
     public Revision(ObjectId sha1) {
         this.sha1 = sha1;
-        this.branches = new ArrayList<Branch>();
+        this.branches = new BranchList();
     }
 
     public Revision(ObjectId sha1, Collection<Branch> branches) {
@@ -58,6 +59,9 @@ public class Revision implements java.io.Serializable, Cloneable {
     }
 
     public boolean containsBranchName(String name) {
+        if (branches instanceof BranchList) {
+            return ((BranchList) branches).containsName(name);
+        }
         for (Branch b : branches) {
             if (b.getName().equals(name)) {
                 return true;
@@ -88,8 +92,34 @@ public class Revision implements java.io.Serializable, Cloneable {
         catch (CloneNotSupportedException e) {
             throw new RuntimeException("Error cloning Revision", e);
         }
-        clone.branches = new ArrayList<Branch>(branches);
+        clone.branches = new BranchList(branches);
         return clone;
     }
 
+    /**
+     * Saves the branches as a plain list, the format build records have always had,
+     * instead of the {@link BranchList} kept in memory.
+     */
+    private Object writeReplace() {
+        if (!(branches instanceof BranchList))
+            return this;
+        Revision plain;
+        try {
+            plain = (Revision) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException("Error cloning Revision", e);
+        }
+        plain.branches = new ArrayList<Branch>(branches);
+        return plain;
+    }
+
+    /**
+     * Switches the branches read from a build record or the channel to the compact {@link BranchList}.
+     */
+    private Object readResolve() {
+        if (branches instanceof List && !(branches instanceof BranchList))
+            branches = new BranchList(branches);
+        return this;
+    }
+
 }
@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.FilePath;
+
+import java.io.OutputStream;
+
+/**
+ * Command builder for streaming a tree-ish as an archive, the equivalent of
+ * <a href="https://www.kernel.org/pub/software/scm/git/docs/git-archive.html">git-archive(1)</a>.
+ *
+ * <p>
+ * The archive is produced straight from the object database, so the working tree
+ * doesn't need to be checked out (or even exist) to package a revision.
+ *
+ * @since 1.6.2
+ */
+public interface ArchiveCommand extends GitCommand {
+    /**
+     * Sets the tree-ish (commit, tag or tree) to archive. Defaults to <tt>HEAD</tt>.
+     */
+    ArchiveCommand treeIsh(String treeIsh);
+
+    /**
+     * Sets the archive format. Defaults to {@link Format#TAR}.
+     */
+    ArchiveCommand format(Format format);
+
+    /**
+     * Prepends the given prefix to every path in the archive, such as <tt>project-1.0/</tt>.
+     * A trailing slash is significant, just like with <tt>git archive --prefix</tt>.
+     */
+    ArchiveCommand prefix(String prefix);
+
+    /**
+     * Limits the archive to the given path (a file or a directory) of the tree.
+     *
+     * This method can be invoked multiple times. Without any path, the whole tree is archived.
+     */
+    ArchiveCommand path(String path);
+
+    /**
+     * Sets the {@link OutputStream} that receives the archive.
+     * The stream is flushed but not closed.
+     */
+    ArchiveCommand to(OutputStream out);
+
+    /**
+     * Writes the archive to the given file, which may be on another node than the repository.
+     */
+    ArchiveCommand to(FilePath file);
+
+    public enum Format {
+        TAR, ZIP;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.plugins.git.Branch;
+import hudson.plugins.git.GitException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link GitClient} operations asynchronously, returning a {@link Future} instead of blocking
+ * the calling thread.
+ *
+ * <p>
+ * Operations on a local client run on a bounded pool of threads shared by all the instances, so
+ * that polling many repositories queues the operations instead of starting as many git processes
+ * at once. Operations on a client of another node are sent to that node with
+ * {@link hudson.remoting.Channel#callAsync(hudson.remoting.Callable)}, and don't hold any thread
+ * on this side while they run.
+ *
+ * <pre>
+ * Future&lt;Map&lt;String, ObjectId&gt;&gt; heads = new AsyncGitClient(git).getHeadRev(url);
+ * ...
+ * heads.get();
+ * </pre>
+ *
+ * @since 1.6.2
+ */
+public class AsyncGitClient {
+    /**
+     * Number of threads running the operations of local clients.
+     */
+    public static final int THREADS = Integer.getInteger(AsyncGitClient.class.getName() + ".threads",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService EXECUTOR = createExecutor();
+
+    private final GitClient git;
+    private final ExecutorService executor;
+
+    public AsyncGitClient(GitClient git) {
+        this(git, EXECUTOR);
+    }
+
+    /**
+     * @param executor
+     *      Runs the operations of a local client.
+     */
+    public AsyncGitClient(GitClient git, ExecutorService executor) {
+        this.git = git;
+        this.executor = executor;
+    }
+
+    public GitClient getClient() {
+        return git;
+    }
+
+    /**
+     * An operation run against a {@link GitClient}.
+     *
+     * When the client is on another node, the operation is serialized and run there.
+     */
+    public interface Operation<T> extends Serializable {
+        T invoke(GitClient git) throws GitException, InterruptedException;
+    }
+
+    /**
+     * Runs the given operation.
+     *
+     * @return
+     *      The result of the operation. A failure is reported by {@link Future#get()}
+     *      as an {@link java.util.concurrent.ExecutionException} caused by the {@link GitException}.
+     */
+    public <T> Future<T> submit(final Operation<T> operation) {
+        if (git instanceof RemoteGitImpl) {
+            Future<T> f = ((RemoteGitImpl) git).callAsync(operation);
+            if (f != null)
+                return f;
+        }
+        return executor.submit(new Callable<T>() {
+            public T call() throws Exception {
+                return operation.invoke(git);
+            }
+        });
+    }
+
+    /**
+     * @see GitClient#getHeadRev(String)
+     */
+    public Future<Map<String, ObjectId>> getHeadRev(String url) {
+        return submit(new GetHeadRevs(url));
+    }
+
+    /**
+     * @see GitClient#getHeadRev(String, String)
+     */
+    public Future<ObjectId> getHeadRev(String url, String branch) {
+        return submit(new GetHeadRev(url, branch));
+    }
+
+    /**
+     * @see GitClient#fetch(URIish, List)
+     */
+    public Future<Void> fetch(URIish url, List<RefSpec> refspecs) {
+        return submit(new Fetch(url, refspecs));
+    }
+
+    /**
+     * @see GitClient#revParse(String)
+     */
+    public Future<ObjectId> revParse(String revName) {
+        return submit(new RevParse(revName));
+    }
+
+    /**
+     * @see GitClient#getRemoteBranches()
+     */
+    public Future<Set<Branch>> getRemoteBranches() {
+        return submit(new GetRemoteBranches());
+    }
+
+    /**
+     * @see GitClient#hasGitRepo()
+     */
+    public Future<Boolean> hasGitRepo() {
+        return submit(new HasGitRepo());
+    }
+
+    // the operations are static classes, so that they don't drag this object along when serialized
+
+    private static final class GetHeadRevs implements Operation<Map<String, ObjectId>> {
+        private final String url;
+
+        GetHeadRevs(String url) {
+            this.url = url;
+        }
+
+        public Map<String, ObjectId> invoke(GitClient git) throws GitException, InterruptedException {
+            return git.getHeadRev(url);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class GetHeadRev implements Operation<ObjectId> {
+        private final String url, branch;
+
+        GetHeadRev(String url, String branch) {
+            this.url = url;
+            this.branch = branch;
+        }
+
+        public ObjectId invoke(GitClient git) throws GitException, InterruptedException {
+            return git.getHeadRev(url, branch);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class Fetch implements Operation<Void> {
+        private final URIish url;
+        private final List<RefSpec> refspecs;
+
+        Fetch(URIish url, List<RefSpec> refspecs) {
+            this.url = url;
+            this.refspecs = refspecs;
+        }
+
+        public Void invoke(GitClient git) throws GitException, InterruptedException {
+            git.fetch(url, refspecs);
+            return null;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class RevParse implements Operation<ObjectId> {
+        private final String revName;
+
+        RevParse(String revName) {
+            this.revName = revName;
+        }
+
+        public ObjectId invoke(GitClient git) throws GitException, InterruptedException {
+            return git.revParse(revName);
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class GetRemoteBranches implements Operation<Set<Branch>> {
+        public Set<Branch> invoke(GitClient git) throws GitException, InterruptedException {
+            return git.getRemoteBranches();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class HasGitRepo implements Operation<Boolean> {
+        public Boolean invoke(GitClient git) throws GitException, InterruptedException {
+            return git.hasGitRepo();
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "AsyncGitClient #" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // don't keep idle threads around between polls
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
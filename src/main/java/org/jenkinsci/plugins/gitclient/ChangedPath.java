@@ -0,0 +1,127 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.CheckForNull;
+import java.io.Serializable;
+
+/**
+ * A path changed by a commit, as reported by {@link ChangedPathsCommand}.
+ *
+ * <p>
+ * This carries the same information as a line of <tt>git log --raw</tt>, such as
+ * <tt>:100644 100644 2b179b9... 7bee158... M	src/Foo.java</tt>, without the need to parse it back.
+ *
+ * @since 1.6.2
+ */
+public class ChangedPath implements Serializable {
+    public enum Status {
+        ADD('A'), COPY('C'), DELETE('D'), MODIFY('M'), RENAME('R'), TYPE_CHANGE('T');
+
+        /**
+         * The letter <tt>git log --raw</tt> uses for this status.
+         */
+        public final char code;
+
+        Status(char code) {
+            this.code = code;
+        }
+
+        public static Status fromCode(char code) {
+            for (Status s : values())
+                if (s.code == code)
+                    return s;
+            throw new IllegalArgumentException("Unknown change status: " + code);
+        }
+    }
+
+    private final Status status;
+    private final int score;
+    private final int oldMode, newMode;
+    private final ObjectId oldId, newId;
+    private final String oldPath, newPath;
+
+    public ChangedPath(Status status, int score, int oldMode, int newMode, ObjectId oldId, ObjectId newId,
+                       @CheckForNull String oldPath, @CheckForNull String newPath) {
+        this.status = status;
+        this.score = score;
+        this.oldMode = oldMode;
+        this.newMode = newMode;
+        this.oldId = oldId;
+        this.newId = newId;
+        this.oldPath = oldPath;
+        this.newPath = newPath;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Similarity index of a {@link Status#RENAME} or {@link Status#COPY}, in percent. 0 otherwise.
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Mode bits of the path before the change, such as <tt>0100644</tt>. 0 for {@link Status#ADD}.
+     */
+    public int getOldMode() {
+        return oldMode;
+    }
+
+    /**
+     * Mode bits of the path after the change. 0 for {@link Status#DELETE}.
+     */
+    public int getNewMode() {
+        return newMode;
+    }
+
+    /**
+     * Object before the change. {@link ObjectId#zeroId()} for {@link Status#ADD}.
+     */
+    public ObjectId getOldId() {
+        return oldId;
+    }
+
+    /**
+     * Object after the change. {@link ObjectId#zeroId()} for {@link Status#DELETE}.
+     */
+    public ObjectId getNewId() {
+        return newId;
+    }
+
+    /**
+     * Path before the change, null for {@link Status#ADD}.
+     */
+    @CheckForNull
+    public String getOldPath() {
+        return oldPath;
+    }
+
+    /**
+     * Path after the change, null for {@link Status#DELETE}.
+     */
+    @CheckForNull
+    public String getNewPath() {
+        return newPath;
+    }
+
+    /**
+     * The path that exists after the change, or the deleted path.
+     */
+    public String getPath() {
+        return newPath != null ? newPath : oldPath;
+    }
+
+    @Override
+    public String toString() {
+        String s = status.code + (score > 0 ? String.valueOf(score) : "");
+        return oldPath != null && newPath != null && !oldPath.equals(newPath)
+                ? s + "\t" + oldPath + "\t" + newPath
+                : s + "\t" + getPath();
+    }
+
+    private static final long serialVersionUID = 1L;
+}
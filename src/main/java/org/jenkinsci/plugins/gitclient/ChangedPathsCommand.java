@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Command builder for listing the paths changed by a range of commits, as structured
+ * {@link ChangedPath} records instead of the text of {@link GitClient#showRevision(ObjectId, ObjectId)}.
+ *
+ * <p>
+ * Commits are reported one at a time to a {@link Handler} as the log is walked, so the whole
+ * output never needs to be held in memory. Like with <tt>git log -m</tt>, a merge commit is
+ * compared to each of its parents in turn.
+ *
+ * @since 1.6.2
+ */
+public interface ChangedPathsCommand extends GitCommand {
+    /**
+     * Adds the revision to exclude from the log.
+     * Equivalent of {@code ^rev} on the command line.
+     *
+     * This method can be invoked multiple times.
+     */
+    ChangedPathsCommand excludes(String rev);
+
+    ChangedPathsCommand excludes(ObjectId rev);
+
+    /**
+     * Adds the revision to include in the log.
+     *
+     * This method can be invoked multiple times.
+     */
+    ChangedPathsCommand includes(String rev);
+
+    ChangedPathsCommand includes(ObjectId rev);
+
+    /**
+     * Limit the number of commits up to N.
+     */
+    ChangedPathsCommand max(int n);
+
+    /**
+     * Skips rename and copy detection, which is the expensive part of the diff:
+     * a renamed file is reported as a deletion plus an addition.
+     * This is all that's needed to know which paths a commit touched.
+     */
+    ChangedPathsCommand pathsOnly(boolean pathsOnly);
+
+    /**
+     * Sets the {@link Handler} that receives the changed paths.
+     */
+    ChangedPathsCommand to(Handler handler);
+
+    /**
+     * Receives the changed paths, commit by commit.
+     *
+     * When the command runs on a remote node, the handler is called back through the channel.
+     */
+    interface Handler {
+        /**
+         * Called once per commit, in the order of the log.
+         *
+         * @param paths
+         *      Paths changed by the commit. Empty for a commit that didn't change any file.
+         */
+        void changed(ObjectId commit, List<ChangedPath> paths) throws IOException;
+    }
+}
@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.console.LineTransformationOutputStream;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jenkinsci.plugins.gitclient.ChangedPath.Status;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the output of <tt>git log --format=%H --raw --no-abbrev</tt> line by line as git
+ * writes it, and reports the changed paths of each commit to a {@link ChangedPathsCommand.Handler}.
+ *
+ * <p>
+ * The stream is written to by the thread that pumps the output of the process, so a failure
+ * of the handler is kept and reported by {@link #checkFailure()} once the process is done.
+ */
+class ChangedPathsParser extends LineTransformationOutputStream {
+    private final ChangedPathsCommand.Handler handler;
+    private ObjectId commit;
+    private List<ChangedPath> paths = new ArrayList<ChangedPath>();
+    private IOException failure;
+
+    ChangedPathsParser(ChangedPathsCommand.Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        if (failure != null)
+            return; // keep draining the process
+        try {
+            while (len > 0 && (b[len - 1] == '\n' || b[len - 1] == '\r'))
+                len--;
+            String line = new String(b, 0, len, "UTF-8");
+            if (line.length() == 0)
+                return;
+            if (line.charAt(0) == ':') {
+                paths.add(parseRaw(line));
+            } else {
+                // with -m, a merge commit is listed again for each parent
+                ObjectId id = ObjectId.fromString(line);
+                if (!id.equals(commit)) {
+                    report();
+                    commit = id;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("Failed to parse the output of git log", e);
+        }
+    }
+
+    /**
+     * Reports the last commit, and any failure that happened while parsing.
+     */
+    void checkFailure() throws IOException {
+        forceEol();
+        if (failure == null)
+            report();
+        if (failure != null)
+            throw failure;
+    }
+
+    private void report() throws IOException {
+        if (commit != null)
+            handler.changed(commit, paths);
+        commit = null;
+        paths = new ArrayList<ChangedPath>();
+    }
+
+    /**
+     * Parses a line like <tt>:100644 100644 &lt;old> &lt;new> R087	old/path	new/path</tt>.
+     */
+    static ChangedPath parseRaw(String line) {
+        int tab = line.indexOf('\t');
+        String[] f = line.substring(1, tab).split(" ");
+        Status status = Status.fromCode(f[4].charAt(0));
+        int score = f[4].length() > 1 ? Integer.parseInt(f[4].substring(1)) : 0;
+
+        String[] p = line.substring(tab + 1).split("\t");
+        String oldPath = unquote(p[0]);
+        String newPath = p.length > 1 ? unquote(p[1]) : oldPath;
+        if (status == Status.ADD)    oldPath = null;
+        if (status == Status.DELETE) newPath = null;
+
+        return new ChangedPath(status, score,
+                Integer.parseInt(f[0], 8), Integer.parseInt(f[1], 8),
+                ObjectId.fromString(f[2]), ObjectId.fromString(f[3]),
+                oldPath, newPath);
+    }
+
+    /**
+     * Undoes the C-style quoting git applies to paths with unusual characters.
+     */
+    static String unquote(String path) {
+        if (path.length() < 2 || path.charAt(0) != '"' || path.charAt(path.length() - 1) != '"')
+            return path;
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            for (int i = 1; i < path.length() - 1; i++) {
+                char c = path.charAt(i);
+                if (c != '\\') {
+                    buf.write(String.valueOf(c).getBytes("UTF-8"));
+                    continue;
+                }
+                c = path.charAt(++i);
+                switch (c) {
+                case 'a': buf.write(7);    break;
+                case 'b': buf.write('\b'); break;
+                case 'f': buf.write('\f'); break;
+                case 'n': buf.write('\n'); break;
+                case 'r': buf.write('\r'); break;
+                case 't': buf.write('\t'); break;
+                case 'v': buf.write(11);   break;
+                default:
+                    if (c >= '0' && c <= '7') {
+                        // octal escape of a byte of the UTF-8 encoded path
+                        buf.write(Integer.parseInt(path.substring(i, i + 3), 8));
+                        i += 2;
+                    } else {
+                        buf.write(c); // \" and \\
+                    }
+                }
+            }
+            return buf.toString("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e); // UTF-8 is always supported
+        }
+    }
+}
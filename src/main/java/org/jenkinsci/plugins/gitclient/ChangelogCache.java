@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Formatted changelog entries of the commits already processed, so that the builds of overlapping
+ * ranges of commits don't compute the same tree diffs and rename detection over and over.
+ *
+ * <p>
+ * An entry is the raw text {@link ChangelogCommand} writes for a commit against its parent, an empty
+ * text when nothing is written for the commit. Both ids are part of the key, so an entry never goes
+ * stale. The entries are stored in the git directory, one file per entry, under
+ * <tt>changelog-cache/v1/&lt;format&gt;</tt>, since each implementation has its own formatting.
+ *
+ * <p>
+ * The cache is disabled by default, as it adds files to the git directory of every workspace that
+ * <tt>git gc</tt> doesn't clean up. It is enabled by the
+ * <tt>org.jenkinsci.plugins.gitclient.GitClient.changelogCache.maxSize</tt> system property, the size of
+ * the cache of each repository in bytes, such as 67108864 for 64 MiB. Once it is exceeded, the least
+ * recently used entries are deleted down to 3/4 of it.
+ */
+final class ChangelogCache {
+    static long MAX_SIZE = Long.getLong(GitClient.class.getName() + ".changelogCache.maxSize", 0);
+
+    /**
+     * Approximate size of each cache directory, scanned on first use and updated as entries are added.
+     */
+    private static final ConcurrentMap<String, AtomicLong> SIZES = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final File dir;
+
+    /**
+     * @param format
+     *      Name of the formatting of the entries, such as <tt>cli</tt> or <tt>jgit</tt>.
+     */
+    ChangelogCache(File gitDir, String format) {
+        this.dir = new File(gitDir, "changelog-cache/v1/" + format);
+    }
+
+    static boolean isEnabled() {
+        return MAX_SIZE > 0;
+    }
+
+    /**
+     * @param parent
+     *      Parent the commit is compared with, or null for a root commit.
+     * @return the entry, or null if the commit isn't in the cache.
+     */
+    @CheckForNull
+    String get(ObjectId commit, @CheckForNull ObjectId parent) {
+        File f = fileOf(commit, parent);
+        try {
+            String entry = FileUtils.readFileToString(f, "UTF-8");
+            // recently used entries are evicted last
+            f.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            // a miss, or a broken entry that gets rewritten
+            return null;
+        }
+    }
+
+    void put(ObjectId commit, @CheckForNull ObjectId parent, String entry) {
+        File f = fileOf(commit, parent);
+        File tmp = new File(f.getPath() + ".tmp" + Thread.currentThread().getId());
+        try {
+            FileUtils.writeStringToFile(tmp, entry, "UTF-8");
+            // another build writing the same entry concurrently writes the same content
+            if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f))) {
+                tmp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to cache the changelog of " + commit.name(), e);
+            tmp.delete();
+            return;
+        }
+        if (size().addAndGet(f.length()) > MAX_SIZE)
+            evict();
+    }
+
+    private File fileOf(ObjectId commit, @CheckForNull ObjectId parent) {
+        String name = commit.name();
+        return new File(dir, name.substring(0, 2) + '/' + name.substring(2) + '_'
+                + (parent == null ? ObjectId.zeroId() : parent).name());
+    }
+
+    private AtomicLong size() {
+        String key = dir.getAbsolutePath();
+        AtomicLong size = SIZES.get(key);
+        if (size == null) {
+            long total = 0;
+            for (File f : entries())
+                total += f.length();
+            AtomicLong existing = SIZES.putIfAbsent(key, size = new AtomicLong(total));
+            if (existing != null)
+                size = existing;
+        }
+        return size;
+    }
+
+    private List<File> entries() {
+        List<File> entries = new ArrayList<File>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File d : subdirs) {
+                File[] files = d.listFiles();
+                if (files != null)
+                    entries.addAll(Arrays.asList(files));
+            }
+        }
+        return entries;
+    }
+
+    private void evict() {
+        AtomicLong size = size();
+        // the size is shared by the caches of the same directory
+        synchronized (size) {
+            evict(size);
+        }
+    }
+
+    private void evict(AtomicLong size) {
+        List<File> entries = entries();
+        long total = 0;
+        for (File f : entries)
+            total += f.length();
+        if (total > MAX_SIZE) {
+            File[] files = entries.toArray(new File[entries.size()]);
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long x = a.lastModified(), y = b.lastModified();
+                    return x < y ? -1 : x == y ? 0 : 1;
+                }
+            });
+            for (File f : files) {
+                if (total <= MAX_SIZE / 4 * 3)
+                    break;
+                long length = f.length();
+                if (f.delete())
+                    total -= length;
+            }
+        }
+        size.set(total);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ChangelogCache.class.getName());
+}
@@ -67,6 +67,30 @@ public interface ChangelogCommand extends GitCommand {
 
     ChangelogCommand includes(ObjectId rev);
 
+    /**
+     * Only includes the commits changing a path matching the given glob, and only those paths in their
+     * entries, like {@code git whatchanged -- <paths>}.
+     *
+     * The glob is relative to the root of the repository, <tt>*</tt> and <tt>?</tt> don't match
+     * a <tt>/</tt>, <tt>**</tt> matches any number of directories, and a glob without wildcards also
+     * matches everything under it: <tt>services/billing</tt>, <tt>**&#47;pom.xml</tt>, <tt>docs/*.md</tt>.
+     *
+     * This method can be invoked multiple times.
+     *
+     * @since 1.6.2
+     */
+    ChangelogCommand includesPath(String glob);
+
+    /**
+     * Ignores the changes to the paths matching the given glob: the commits only changing
+     * such paths are not included.
+     *
+     * This method can be invoked multiple times.
+     *
+     * @since 1.6.2
+     */
+    ChangelogCommand excludesPath(String glob);
+
     /**
      * Stes the {@link OutputStream} that receives the changelog.
      *
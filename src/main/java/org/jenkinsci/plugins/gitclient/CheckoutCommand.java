@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.gitclient;
+
+import java.util.List;
+
+/**
+ * Command builder for checking out a commit, optionally on a branch and/or
+ * restricted to a part of the tree.
+ *
+ * @since 1.6.2
+ */
+public interface CheckoutCommand extends GitCommand {
+    /**
+     * Commit, branch or tag to check out.
+     */
+    CheckoutCommand ref(String ref);
+
+    /**
+     * Name of the branch to create at {@link #ref(String)}. Without it, the checkout
+     * behaves like {@link GitClient#checkout(String)}.
+     */
+    CheckoutCommand branch(String branch);
+
+    /**
+     * If true, an existing {@link #branch(String)} is reset to {@link #ref(String)}, as
+     * {@link GitClient#checkoutBranch(String, String)} does. Otherwise the branch must not exist yet,
+     * as with {@link GitClient#checkout(String, String)}.
+     */
+    CheckoutCommand deleteBranchIfExist(boolean deleteBranch);
+
+    /**
+     * Only checks out the given directories (cone-mode sparse checkout). Files at the root of
+     * the tree are always checked out.
+     *
+     * The patterns are stored in the repository and honored by subsequent checkouts.
+     * An empty list restores the full tree; not calling this method keeps the current patterns.
+     */
+    CheckoutCommand sparseCheckoutPaths(List<String> sparseCheckoutPaths);
+
+    /**
+     * If true, only the paths that differ between the trees of <tt>HEAD</tt> and of {@link #ref(String)} are
+     * updated, trusting the index for the others, instead of checking every file of the working tree as
+     * {@link GitClient#checkout(String)} does. Identical subtrees are skipped without being read.
+     *
+     * This is meant for workspaces that go from one commit to a nearby one between builds. If a path to update
+     * has local changes, or anything else can't be handled incrementally, this falls back to the regular checkout.
+     * It applies to checking out a ref without creating a branch, or with {@link #deleteBranchIfExist(boolean)}.
+     *
+     * @since 1.6.2
+     */
+    CheckoutCommand incremental(boolean incremental);
+
+    /**
+     * Time allowed for the checkout, in minutes, overriding the timeout configured for the
+     * <tt>checkout</tt> operation. Ignored by JGit, which checks out in process.
+     *
+     * @since 1.6.2
+     */
+    CheckoutCommand timeout(Integer timeout);
+}
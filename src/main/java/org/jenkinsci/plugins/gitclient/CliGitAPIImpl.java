@@ -13,10 +13,12 @@ import hudson.Launcher.LocalLauncher;
 import hudson.Util;
 import hudson.model.TaskListener;
 import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchList;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitLockFailedException;
 import hudson.plugins.git.IGitAPI;
 import hudson.plugins.git.IndexEntry;
+import hudson.plugins.git.IndexEntryList;
 import hudson.plugins.git.Revision;
 import hudson.remoting.Callable;
 import hudson.slaves.SlaveComputer;
@@ -32,18 +34,25 @@ import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.ConfigConstants;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.submodule.SubmoduleWalk;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.util.FS;
 import org.kohsuke.stapler.framework.io.WriterOutputStream;
 
 import java.io.*;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.net.URISyntaxException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -51,10 +60,18 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -77,12 +94,21 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         }
     }
 
+    /**
+     * Object filters accepted by {@link FetchCommand#filter(String)}.
+     */
+    private static final Pattern FILTER_SPEC = Pattern.compile("blob:none|blob:limit=\\d+[kmg]?|tree:\\d+");
+
     Launcher launcher;
     TaskListener listener;
     String gitExe;
     EnvVars environment;
     private Map<String, StandardCredentials> credentials = new HashMap<String, StandardCredentials>();
     private StandardCredentials defaultCredentials;
+    /**
+     * The configuration the promisor remote was last read from.
+     */
+    private FileBasedConfig promisorConfig;
 
     protected CliGitAPIImpl(String gitExe, File workspace,
                          TaskListener listener, EnvVars environment) {
@@ -140,15 +166,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     }
 
     public List<IndexEntry> getSubmodules( String treeIsh ) throws GitException, InterruptedException {
-        List<IndexEntry> submodules = lsTree(treeIsh,true);
-
-        // Remove anything that isn't a submodule
-        for (Iterator<IndexEntry> it = submodules.iterator(); it.hasNext();) {
-            if (!it.next().getMode().equals("160000")) {
-                it.remove();
-            }
-        }
-        return submodules;
+        return lsTree(treeIsh, true, true);
     }
 
     public FetchCommand fetch_() {
@@ -157,6 +175,9 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             public List<RefSpec> refspecs;
             public boolean prune;
             public boolean shallow;
+            public String filter;
+            public Integer timeout;
+            public TransferStats.Handler statsHandler;
 
             public FetchCommand from(URIish remote, List<RefSpec> refspecs) {
                 this.url = remote;
@@ -174,27 +195,61 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 return this;
             }
 
-            public void execute() throws GitException, InterruptedException {
-                listener.getLogger().println(
-                        "Fetching upstream changes from " + url);
+            public FetchCommand filter(String filter) {
+                if (!FILTER_SPEC.matcher(filter).matches())
+                    throw new IllegalArgumentException("Unsupported object filter: " + filter);
+                this.filter = filter;
+                return this;
+            }
 
-                ArgumentListBuilder args = new ArgumentListBuilder();
-                args.add("fetch", "--tags", "--progress");
+            public FetchCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
 
-                StandardCredentials cred = credentials.get(url.toPrivateString());
-                if (cred == null) cred = defaultCredentials;
-                args.add(url);
+            public FetchCommand stats(TransferStats.Handler handler) {
+                this.statsHandler = handler;
+                return this;
+            }
 
-                if (refspecs != null)
-                    for (RefSpec rs: refspecs)
-                        if (rs != null)
-                            args.add(rs.toString());
+            public void execute() throws GitException, InterruptedException {
+                WorkspaceLockManager.retry(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+                    void run() throws GitException, InterruptedException {
+                        listener.getLogger().println(
+                                "Fetching upstream changes from " + url);
+
+                        ArgumentListBuilder args = new ArgumentListBuilder();
+                        args.add("fetch", "--tags", "--progress");
+
+                        StandardCredentials cred = credentialsFor(url.toPrivateString());
+                        if (filter != null) {
+                            // git only backfills objects from a named promisor remote, so fetch through it
+                            args.add("--filter=" + filter);
+                            args.add(registerPromisor(url, filter));
+                        } else {
+                            args.add(url);
+                        }
 
-                if (prune) args.add("--prune");
+                        if (refspecs != null)
+                            for (RefSpec rs: refspecs)
+                                if (rs != null)
+                                    args.add(rs.toString());
 
-                if (shallow) args.add("--depth=1");
+                        if (prune) args.add("--prune");
 
-                launchCommandWithCredentials(args, workspace, cred, url);
+                        if (shallow) args.add("--depth=1");
+
+                        TransferStats stats = launchCommandWithCredentials(args, workspace, cred, url, timeout, new ByteArrayOutputStream());
+                        if (statsHandler != null && stats != null) {
+                            try {
+                                statsHandler.transferred(stats);
+                            } catch (IOException e) {
+                                throw new GitException("Failed to report the fetch from " + url, e);
+                            }
+                        }
+                    }
+                });
+                RepositoryMaintenance.afterFetch(CliGitAPIImpl.this);
             }
         };
     }
@@ -203,50 +258,193 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         fetch_().from(url, refspecs).execute();
     }
 
-    public void fetch(String remoteName, RefSpec... refspec) throws GitException, InterruptedException {
-        listener.getLogger().println(
-                                     "Fetching upstream changes"
-                                     + (remoteName != null ? " from " + remoteName : ""));
+    /**
+     * Marks the remote of the given URL as a promisor remote with the given filter,
+     * so that git lazily fetches the objects a partial fetch left out.
+     *
+     * @return the name of the remote.
+     */
+    private String registerPromisor(URIish url, String filter) throws GitException {
+        Repository repo = getRepository();
+        try {
+            StoredConfig config = repo.getConfig();
+            for (RemoteConfig rc : RemoteConfig.getAllRemoteConfigs(config)) {
+                if (rc.getURIs().contains(url)) {
+                    config.setBoolean(ConfigConstants.CONFIG_REMOTE_SECTION, rc.getName(), "promisor", true);
+                    config.setString(ConfigConstants.CONFIG_REMOTE_SECTION, rc.getName(), "partialclonefilter", filter);
+                    config.save();
+                    return rc.getName();
+                }
+            }
+            throw new GitException("A partial fetch needs a remote configured for " + url);
+        } catch (URISyntaxException e) {
+            throw new GitException("Invalid remote configuration", e);
+        } catch (IOException e) {
+            throw new GitException("Could not configure the promisor remote for " + url, e);
+        } finally {
+            repo.close();
+        }
+    }
 
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        args.add("fetch", "-t");
+    /**
+     * Returns the URL of the promisor remote of a partial clone, or null for a regular repository.
+     *
+     * It is asked for by every command that may need missing objects, so <tt>.git/config</tt> is only
+     * parsed again when {@link FileBasedConfig#isOutdated()} reports it modified.
+     */
+    @CheckForNull
+    private synchronized String getPromisorUrl() throws GitException {
+        File configFile = new File(WorkspaceLockManager.gitDirOf(workspace), Constants.CONFIG);
+        if (promisorConfig == null || !promisorConfig.getFile().equals(configFile))
+            promisorConfig = new FileBasedConfig(configFile, FS.DETECTED);
+        if (promisorConfig.isOutdated()) {
+            try {
+                promisorConfig.load();
+            } catch (IOException e) {
+                throw new GitException("Failed to read " + configFile, e);
+            } catch (ConfigInvalidException e) {
+                throw new GitException("Invalid configuration " + configFile, e);
+            }
+        }
+        for (String remote : promisorConfig.getSubsections(ConfigConstants.CONFIG_REMOTE_SECTION)) {
+            if (promisorConfig.getBoolean(ConfigConstants.CONFIG_REMOTE_SECTION, remote, "promisor", false))
+                return promisorConfig.getString(ConfigConstants.CONFIG_REMOTE_SECTION, remote, "url");
+        }
+        return null;
+    }
 
-        if (remoteName == null)
-            remoteName = getDefaultRemote();
+    /**
+     * Launches a command that may lazily fetch the objects missing from a partial clone,
+     * passing it the credentials of the promisor remote.
+     */
+    private String launchCommandWithPromisor(Integer timeout, String... args) throws GitException, InterruptedException {
+        return launchCommandWithPromisor(timeout, new ArgumentListBuilder(args));
+    }
 
-        String url = getRemoteUrl(remoteName);
-        args.add(url);
-        if (refspec != null && refspec.length > 0)
-            for (RefSpec rs: refspec)
-                if (rs != null)
-                    args.add(rs.toString());
+    private String launchCommandWithPromisor(Integer timeout, ArgumentListBuilder args) throws GitException, InterruptedException {
+        String url = getPromisorUrl();
+        if (url == null)
+            return launchCommandIn(args, workspace, environment, timeout);
 
+        StandardCredentials cred = credentialsFor(url);
+        try {
+            return launchCommandWithCredentials(args, workspace, cred, new URIish(url), timeout);
+        } catch (URISyntaxException e) {
+            throw new GitException("Invalid URL " + url);
+        }
+    }
 
-        StandardCredentials cred = credentials.get(url);
-        if (cred == null) cred = defaultCredentials;
-        launchCommandWithCredentials(args, workspace, cred, url);
+    public void fetch(final String remoteName, final RefSpec... refspec) throws GitException, InterruptedException {
+        WorkspaceLockManager.retry(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                listener.getLogger().println(
+                                             "Fetching upstream changes"
+                                             + (remoteName != null ? " from " + remoteName : ""));
+
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add("fetch", "-t");
+
+                String url = getRemoteUrl(remoteName != null ? remoteName : getDefaultRemote());
+                args.add(url);
+                if (refspec != null && refspec.length > 0)
+                    for (RefSpec rs: refspec)
+                        if (rs != null)
+                            args.add(rs.toString());
+
+
+                StandardCredentials cred = credentialsFor(url);
+                launchCommandWithCredentials(args, workspace, cred, url);
+            }
+        });
+        RepositoryMaintenance.afterFetch(this);
     }
 
     public void fetch(String remoteName, RefSpec refspec) throws GitException, InterruptedException {
         fetch(remoteName, new RefSpec[] {refspec});
     }
 
-    public void reset(boolean hard) throws GitException, InterruptedException {
-    	try {
-    		validateRevision("HEAD");
-    	} catch (GitException e) {
-    		listener.getLogger().println("No valid HEAD. Skipping the resetting");
-    		return;
-    	}
-        listener.getLogger().println("Resetting working tree");
+    void maintain(RepositoryMaintenance.Counts counts, TaskListener listener) throws GitException, InterruptedException {
+        // with its own launcher and listener, those of this client belong to a build
+        new CliGitAPIImpl(gitExe, workspace, listener, new EnvVars(environment)).maintain(counts);
+    }
 
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        args.add("reset");
-        if (hard) {
-            args.add("--hard");
+    private void maintain(RepositoryMaintenance.Counts counts) throws GitException, InterruptedException {
+        // repack -d also removes the loose objects it packed, as prune-packed does
+        if (counts.needsFullRepack() && counts.bitmaps)
+            // without -l, as repack() does: git skips the bitmap when alternates objects are left out
+            launchCommand("repack", "-a", "-d", "--write-bitmap-index");
+        else if (counts.needsFullRepack())
+            launchCommand("repack", "-a", "-d", "-l");
+        else if (counts.needsRepack())
+            launchCommand("repack", "-d", "-l");
+
+        if (counts.needsPackRefs() || counts.needsFullRepack())
+            launchCommand("pack-refs", "--all");
+
+        if (counts.needsRepack() || counts.needsFullRepack()) {
+            try {
+                launchCommand("commit-graph", "write", "--reachable");
+            } catch (GitException e) {
+                // git older than 2.18 doesn't know the command, the history walks just don't get faster
+                if (e.getMessage() == null || !e.getMessage().contains("is not a git command"))
+                    e.printStackTrace(listener.error("Failed to write the commit-graph of " + workspace));
+            }
         }
+    }
 
-        launchCommand(args);
+    public RepackCommand repack() {
+        return new RepackCommand() {
+            boolean bitmaps = true;
+            Integer timeout;
+
+            public RepackCommand bitmaps(boolean bitmaps) {
+                this.bitmaps = bitmaps;
+                return this;
+            }
+
+            public RepackCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+                    void run() throws GitException, InterruptedException {
+                        // without -l: objects borrowed from alternates must be in the pack for the bitmap to cover them
+                        ArgumentListBuilder args = new ArgumentListBuilder("repack", "-a", "-d");
+                        if (bitmaps) {
+                            args.add("--write-bitmap-index");
+                            // so that the gc --auto run by later fetches keeps them
+                            launchCommand("config", "--local", "repack.writeBitmaps", "true");
+                        }
+                        launchCommandIn(args, workspace, environment, timeout);
+                        launchCommand("pack-refs", "--all");
+                    }
+                });
+            }
+        };
+    }
+
+    public void reset(final boolean hard) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+            	try {
+            		validateRevision("HEAD");
+            	} catch (GitException e) {
+            		listener.getLogger().println("No valid HEAD. Skipping the resetting");
+            		return;
+            	}
+                listener.getLogger().println("Resetting working tree");
+
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add("reset");
+                if (hard) {
+                    args.add("--hard");
+                }
+
+                launchCommandWithPromisor(null, args);
+            }
+        });
     }
 
     public CloneCommand clone_() {
@@ -255,6 +453,11 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             String origin;
             String reference;
             boolean shallow,shared;
+            List<String> sparseCheckoutPaths;
+            String filter;
+            Integer timeout;
+            WorkspaceTemplate template;
+            TransferStats.Handler statsHandler;
 
             public CloneCommand url(String url) {
                 this.url = url;
@@ -281,6 +484,33 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 return this;
             }
 
+            public CloneCommand sparseCheckoutPaths(List<String> sparseCheckoutPaths) {
+                this.sparseCheckoutPaths = sparseCheckoutPaths;
+                return this;
+            }
+
+            public CloneCommand filter(String filter) {
+                if (!FILTER_SPEC.matcher(filter).matches())
+                    throw new IllegalArgumentException("Unsupported object filter: " + filter);
+                this.filter = filter;
+                return this;
+            }
+
+            public CloneCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            public CloneCommand template(WorkspaceTemplate template) {
+                this.template = template;
+                return this;
+            }
+
+            public CloneCommand stats(TransferStats.Handler handler) {
+                this.statsHandler = handler;
+                return this;
+            }
+
             public void execute() throws GitException, InterruptedException {
 
                 URIish urIish = null;
@@ -336,10 +566,32 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 if (shared)
                     throw new UnsupportedOperationException("shared is unsupported, and considered dangerous");
 
+                // nothing is checked out yet, the patterns apply to the checkout that follows the clone
+                if (sparseCheckoutPaths != null && !sparseCheckoutPaths.isEmpty())
+                    writeSparseCheckout(sparseCheckoutPaths);
+
                 RefSpec refSpec = new RefSpec("+refs/heads/*:refs/remotes/"+origin+"/*");
-                fetch_().from(urIish, Collections.singletonList(refSpec))
-                        .shallow(shallow)
-                        .execute();
+                FetchCommand fetch = fetch_().from(urIish, Collections.singletonList(refSpec)).shallow(shallow).timeout(timeout).stats(statsHandler);
+                if (filter != null) {
+                    // the missing objects are later fetched from this remote
+                    setRemoteUrl(origin, url);
+                    launchCommand("config", "remote." + origin + ".fetch", refSpec.toString());
+                    fetch.filter(filter);
+                }
+                fetch.execute();
+
+                if (template != null) {
+                    if (sparseCheckoutPaths != null && !sparseCheckoutPaths.isEmpty())
+                        listener.getLogger().println("Not using the workspace template " + template + " for a sparse checkout");
+                    else {
+                        try {
+                            template.populate(workspace, listener);
+                        } catch (IOException e) {
+                            // the checkout that follows writes the files from the objects instead
+                            e.printStackTrace(listener.error("Failed to populate the workspace from the template " + template));
+                        }
+                    }
+                }
             }
 
         };
@@ -349,6 +601,8 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return new MergeCommand() {
             public ObjectId rev;
             public String strategy;
+            public MergeCommand.PreviewHandler previewHandler;
+            public ObjectId previewTarget;
 
             public MergeCommand setRevisionToMerge(ObjectId rev) {
                 this.rev = rev;
@@ -360,22 +614,104 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 return this;
             }
 
+            public MergeCommand setPreviewHandler(MergeCommand.PreviewHandler handler) {
+                this.previewHandler = handler;
+                return this;
+            }
+
+            public MergeCommand setPreviewTarget(ObjectId target) {
+                this.previewTarget = target;
+                return this;
+            }
+
             public void execute() throws GitException, InterruptedException {
-                try {
-                    if (strategy != null && !strategy.isEmpty() && !strategy.equals(MergeCommand.Strategy.DEFAULT.toString())) {
-                        launchCommand("merge", "-s", strategy, rev.name()); }
-                    else {
-                        launchCommand("merge", rev.name()); }
-                } catch (GitException e) {
-                    throw new GitException("Could not merge " + rev, e);
+                if (previewHandler != null) {
+                    // merge-tree doesn't touch the workspace
+                    MergePreview preview = previewMerge(previewTarget, rev, strategy);
+                    try {
+                        previewHandler.merged(preview);
+                    } catch (IOException e) {
+                        throw new GitException("Failed to report the " + preview, e);
+                    }
+                    return;
                 }
+                if (previewTarget != null)
+                    throw new IllegalStateException("Only a merge preview can have a target other than HEAD");
+
+                WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.Operation() {
+                    void run() throws GitException, InterruptedException {
+                        try {
+                            if (strategy != null && !strategy.isEmpty() && !strategy.equals(MergeCommand.Strategy.DEFAULT.toString())) {
+                                launchCommandWithPromisor(null, "merge", "-s", strategy, rev.name()); }
+                            else {
+                                launchCommandWithPromisor(null, "merge", rev.name()); }
+                        } catch (GitException e) {
+                            throw new GitException("Could not merge " + rev, e);
+                        }
+                    }
+                });
             }
         };
     }
 
+    /**
+     * Merges the given commits with <tt>git merge-tree --write-tree</tt>, which writes the resulting tree
+     * to the object database without touching the index or the working tree.
+     *
+     * @param target
+     *      Commit to merge into, or null for <tt>HEAD</tt>.
+     */
+    private MergePreview previewMerge(@CheckForNull ObjectId target, ObjectId rev, @CheckForNull String strategy) throws GitException, InterruptedException {
+        if (target == null)
+            target = revParse(Constants.HEAD);
+        if (MergeCommand.Strategy.OURS.toString().equals(strategy)) {
+            ObjectId tree = ObjectId.fromString(firstLine(launchCommand("rev-parse", sanitize(target.name() + "^{tree}"))).trim());
+            return new MergePreview(target, rev, tree, Collections.<String>emptyList());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status;
+        try {
+            status = launcher.launch().cmds(gitExe, "merge-tree", "--write-tree", "--name-only", "--no-messages", "-z", target.name(), rev.name())
+                    .envs(environment).stdout(out).stderr(err).pwd(workspace)
+                    .start().joinWithTimeout(timeoutOf("merge"), TimeUnit.MINUTES, listener);
+        } catch (IOException e) {
+            throw new GitException("Error launching git merge-tree", e);
+        }
+        if (status == 129) {
+            // usage error: git before 2.38 only has the trivial merge of the deprecated merge-tree mode
+            listener.getLogger().println("git merge-tree --write-tree requires git 2.38 or later, previewing the merge with JGit");
+            MergeCommand.Strategy requested = strategy == null ? null : MergeCommand.Strategy.valueOf(strategy.toUpperCase(Locale.ENGLISH));
+            return new JGitAPIImpl(workspace, listener).previewMerge(target, rev, JGitAPIImpl.mergeStrategyOf(requested, listener));
+        }
+        if (strategy != null && !strategy.equals(MergeCommand.Strategy.DEFAULT.toString()) && !strategy.equals(MergeCommand.Strategy.RECURSIVE.toString()))
+            listener.getLogger().println("[WARNING] git merge-tree only supports the default merge strategy. The " + strategy + " strategy is ignored");
+        String[] fields;
+        try {
+            fields = out.toString("UTF-8").split("\0");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if ((status != 0 && status != 1) || !ObjectId.isId(fields[0]))
+            throw new GitException("Command \"git merge-tree\" returned status code " + status + ":\nstdout: " + out + "\nstderr: " + err);
+
+        // with --name-only, the conflicted files follow the tree, possibly once per conflict stage
+        List<String> conflicts = new ArrayList<String>();
+        for (int i = 1; i < fields.length; i++)
+            if (fields[i].length() > 0 && !conflicts.contains(fields[i]))
+                conflicts.add(fields[i]);
+        if (status == 1 && conflicts.isEmpty())
+            throw new GitException("git merge-tree reported conflicts merging " + rev.name() + " without any conflicted file");
+        return new MergePreview(target, rev, status == 0 ? ObjectId.fromString(fields[0]) : null, conflicts);
+    }
+
     public void clean() throws GitException, InterruptedException {
-        reset(true);
-        launchCommand("clean", "-fdx");
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                reset(true);
+                launchCommand("clean", "-fdx");
+            }
+        });
     }
 
     public ObjectId revParse(String revName) throws GitException, InterruptedException {
@@ -461,6 +797,8 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     public ChangelogCommand changelog() {
         return new ChangelogCommand() {
             final List<String> revs = new ArrayList<String>();
+            final List<String> includedPaths = new ArrayList<String>();
+            final List<String> excludedPaths = new ArrayList<String>();
             Integer n = null;
             Writer out = null;
 
@@ -482,6 +820,16 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 return includes(rev.name());
             }
 
+            public ChangelogCommand includesPath(String glob) {
+                includedPaths.add(glob);
+                return this;
+            }
+
+            public ChangelogCommand excludesPath(String glob) {
+                excludedPaths.add(glob);
+                return this;
+            }
+
             public ChangelogCommand to(Writer w) {
                 this.out = w;
                 return this;
@@ -497,13 +845,20 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             }
 
             public void execute() throws GitException, InterruptedException {
+                if (out==null)  throw new IllegalStateException();
+
+                // the cached entries are those of the whole commits
+                if (ChangelogCache.isEnabled() && includedPaths.isEmpty() && excludedPaths.isEmpty()) {
+                    executeCached();
+                    return;
+                }
+
                 ArgumentListBuilder args = new ArgumentListBuilder(gitExe, "whatchanged", "--no-abbrev", "-M", "--pretty=raw");
                 if (n!=null)
                     args.add("-n").add(n);
                 for (String rev : this.revs)
                     args.add(rev);
-
-                if (out==null)  throw new IllegalStateException();
+                addPathspecs(args, includedPaths, excludedPaths);
 
                 try {
                     WriterOutputStream w = new WriterOutputStream(out);
@@ -517,6 +872,170 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                     throw new GitException("Error launching git whatchanged",e);
                 }
             }
+
+            /**
+             * Lists the commits of the range with their parents, and only runs git whatchanged
+             * on those not found in the {@link ChangelogCache}.
+             */
+            private void executeCached() throws GitException, InterruptedException {
+                ArgumentListBuilder args = new ArgumentListBuilder("rev-list", "--parents");
+                if (n!=null)
+                    args.add("-n").add(n);
+                for (String rev : this.revs)
+                    args.add(rev);
+
+                ChangelogCache cache = new ChangelogCache(WorkspaceLockManager.gitDirOf(workspace), "cli");
+                List<ObjectId> commits = new ArrayList<ObjectId>();
+                Map<ObjectId, ObjectId> parents = new HashMap<ObjectId, ObjectId>();
+                Map<ObjectId, String> entries = new HashMap<ObjectId, String>();
+                List<ObjectId> missing = new ArrayList<ObjectId>();
+                for (String line : launchCommand(args).split("\n")) {
+                    String[] ids = line.trim().split(" ");
+                    // git whatchanged doesn't show the merge commits unless -m is given
+                    if (ids[0].length() == 0 || ids.length > 2)
+                        continue;
+                    ObjectId commit = ObjectId.fromString(ids[0]);
+                    ObjectId parent = ids.length > 1 ? ObjectId.fromString(ids[1]) : null;
+                    commits.add(commit);
+                    parents.put(commit, parent);
+                    String entry = cache.get(commit, parent);
+                    if (entry != null)
+                        entries.put(commit, entry);
+                    else
+                        missing.add(commit);
+                }
+
+                if (!missing.isEmpty()) {
+                    StringBuilder stdin = new StringBuilder();
+                    for (ObjectId commit : missing)
+                        stdin.append(commit.name()).append('\n');
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    try {
+                        ArgumentListBuilder whatchanged = new ArgumentListBuilder(gitExe, "whatchanged", "--no-abbrev", "-M", "--pretty=raw",
+                                "--no-walk=unsorted", "--stdin");
+                        if (launcher.launch().cmds(whatchanged).envs(environment).stdin(new ByteArrayInputStream(stdin.toString().getBytes("UTF-8"))).stdout(bytes).stderr(listener.getLogger()).pwd(workspace)
+                                .start().joinWithTimeout(timeoutOf("whatchanged"), TimeUnit.MINUTES, listener) != 0)
+                            throw new GitException("Error launching git whatchanged");
+                    } catch (IOException e) {
+                        throw new GitException("Error launching git whatchanged",e);
+                    }
+                    // same decoding as the WriterOutputStream used without the cache
+                    String output = new String(bytes.toByteArray(), Charset.defaultCharset());
+                    // the entries start with an unindented "commit <sha1>" line
+                    int start = output.startsWith("commit ") ? 0 : -1;
+                    while (start >= 0) {
+                        int end = output.indexOf("\ncommit ", start);
+                        String entry = end < 0 ? output.substring(start) : output.substring(start, end + 1);
+                        ObjectId commit = ObjectId.fromString(entry.substring("commit ".length(), "commit ".length() + 40));
+                        entries.put(commit, entry);
+                        start = end < 0 ? -1 : end + 1;
+                    }
+                    for (ObjectId commit : missing) {
+                        String entry = entries.get(commit);
+                        if (entry == null) {
+                            // nothing to show, such as an empty commit
+                            entry = "";
+                            entries.put(commit, entry);
+                        }
+                        cache.put(commit, parents.get(commit), entry);
+                    }
+                }
+
+                try {
+                    for (ObjectId commit : commits)
+                        out.write(entries.get(commit));
+                    out.flush();
+                } catch (IOException e) {
+                    throw new GitException("Error writing the changelog", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds the globs of {@link ChangelogCommand#includesPath(String)} and {@link ChangelogCommand#excludesPath(String)}
+     * as pathspecs, which git 1.9 or later understands.
+     */
+    private static void addPathspecs(ArgumentListBuilder args, List<String> includes, List<String> excludes) {
+        if (includes.isEmpty() && excludes.isEmpty())
+            return;
+        args.add("--");
+        for (String glob : includes)
+            args.add(":(top,glob)" + glob);
+        // git before 2.13 doesn't imply the whole tree when there are only excludes
+        if (includes.isEmpty())
+            args.add(":(top)");
+        for (String glob : excludes)
+            args.add(":(top,glob,exclude)" + glob);
+    }
+
+    public ArchiveCommand archive() {
+        return new ArchiveCommand() {
+            String treeIsh = Constants.HEAD;
+            ArchiveCommand.Format format = ArchiveCommand.Format.TAR;
+            String prefix;
+            final List<String> paths = new ArrayList<String>();
+            OutputStream out;
+            FilePath file;
+
+            public ArchiveCommand treeIsh(String treeIsh) {
+                this.treeIsh = treeIsh;
+                return this;
+            }
+
+            public ArchiveCommand format(ArchiveCommand.Format format) {
+                this.format = format;
+                return this;
+            }
+
+            public ArchiveCommand prefix(String prefix) {
+                this.prefix = prefix;
+                return this;
+            }
+
+            public ArchiveCommand path(String path) {
+                paths.add(path);
+                return this;
+            }
+
+            public ArchiveCommand to(OutputStream out) {
+                this.out = out;
+                return this;
+            }
+
+            public ArchiveCommand to(FilePath file) {
+                this.file = file;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                ArgumentListBuilder args = new ArgumentListBuilder(gitExe, "archive", "--format=" + format);
+                if (prefix != null)
+                    args.add("--prefix=" + prefix);
+                args.add(treeIsh);
+                if (!paths.isEmpty()) {
+                    args.add("--");
+                    for (String path : paths)
+                        args.add(path);
+                }
+
+                if (out == null && file == null) throw new IllegalStateException();
+
+                try {
+                    OutputStream os = out != null ? out : file.write();
+                    try {
+                        int status = launcher.launch().cmds(args).envs(environment).stdout(os).stderr(listener.getLogger()).pwd(workspace)
+                                .start().joinWithTimeout(timeoutOf("archive"), TimeUnit.MINUTES, listener);
+                        if (status != 0)
+                            throw new GitException("Error launching git archive");
+                    } finally {
+                        if (out != null) os.flush();
+                        else os.close();
+                    }
+                } catch (IOException e) {
+                    throw new GitException("Error launching git archive", e);
+                }
+            }
         };
     }
 
@@ -533,6 +1052,67 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return new ArrayList<String>(Arrays.asList(writer.toString().split("\\n")));
     }
 
+    public ChangedPathsCommand changedPaths() {
+        return new ChangedPathsCommand() {
+            final List<String> revs = new ArrayList<String>();
+            Integer n = null;
+            boolean pathsOnly;
+            Handler handler;
+
+            public ChangedPathsCommand excludes(String rev) {
+                revs.add(sanitize('^'+rev));
+                return this;
+            }
+
+            public ChangedPathsCommand excludes(ObjectId rev) {
+                return excludes(rev.name());
+            }
+
+            public ChangedPathsCommand includes(String rev) {
+                revs.add(rev);
+                return this;
+            }
+
+            public ChangedPathsCommand includes(ObjectId rev) {
+                return includes(rev.name());
+            }
+
+            public ChangedPathsCommand max(int n) {
+                this.n = n;
+                return this;
+            }
+
+            public ChangedPathsCommand pathsOnly(boolean pathsOnly) {
+                this.pathsOnly = pathsOnly;
+                return this;
+            }
+
+            public ChangedPathsCommand to(Handler handler) {
+                this.handler = handler;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                ArgumentListBuilder args = new ArgumentListBuilder("-c", "core.quotepath=false",
+                        "log", "--format=%H", "--raw", "--no-abbrev", "-m", pathsOnly ? "--no-renames" : "-M");
+                if (n!=null)
+                    args.add("-n").add(n);
+                for (String rev : revs)
+                    args.add(rev);
+
+                if (handler==null)  throw new IllegalStateException();
+
+                ChangedPathsParser parser = new ChangedPathsParser(handler);
+                launchCommandIn(args, workspace, environment, parser);
+                try {
+                    parser.checkFailure();
+                } catch (IOException e) {
+                    throw new GitException("Failed to report the changed paths", e);
+                }
+            }
+        };
+    }
+
     public void submoduleInit() throws GitException, InterruptedException {
         launchCommand("submodule", "init");
     }
@@ -578,7 +1158,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 args.add("--reference", reference);
         }
 
-        launchCommand(args);
+        launchCommandWithPromisor(null, args);
     }
 
     /**
@@ -610,15 +1190,92 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
      * @throws GitException if executing the git command fails
      */
     public void submoduleClean(boolean recursive) throws GitException, InterruptedException {
-        submoduleReset(true, true);
-        ArgumentListBuilder args = new ArgumentListBuilder();
-        args.add("submodule", "foreach");
-    	if (recursive) {
-            args.add("--recursive");
-    	}
-    	args.add("git clean -fdx");
+        List<File> submodules = checkedOutSubmodulesOf(workspace);
+        if (submodules.isEmpty())
+            return;
+        // each submodule is reset and cleaned at once, instead of going twice through all of them with 'submodule foreach'.
+        // Like before, nested submodules are always reset, but only cleaned when recursive.
+        ExecutorService pool = Executors.newFixedThreadPool(SUBMODULE_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Cleaning submodules of " + workspace);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        CompletionService<List<File>> cleaned = new ExecutorCompletionService<List<File>>(pool);
+        try {
+            int pending = 0;
+            for (File submodule : submodules) {
+                cleaned.submit(submoduleCleaner(submodule, true));
+                pending++;
+            }
+            // nested submodules are submitted from here rather than from the workers, which never wait on each other
+            while (pending > 0) {
+                Future<List<File>> f = cleaned.take();
+                pending--;
+                List<File> nested;
+                try {
+                    nested = f.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof GitException)
+                        throw (GitException) e.getCause();
+                    throw new GitException("Failed to clean submodules", e.getCause());
+                }
+                for (File submodule : nested) {
+                    cleaned.submit(submoduleCleaner(submodule, recursive));
+                    pending++;
+                }
+            }
+        } finally {
+            // stops the other submodules on failure
+            pool.shutdownNow();
+        }
+    }
 
-    	launchCommand(args);
+    /**
+     * Resets a submodule, and cleans it if asked to.
+     *
+     * @return the checked out submodules of the submodule, to reset next.
+     */
+    private Callable<List<File>> submoduleCleaner(final File submodule, final boolean clean) {
+        return new Callable<List<File>>() {
+            public List<File> call() throws GitException, InterruptedException {
+                launchCommandIn(submodule, "reset", "--hard");
+                if (clean)
+                    launchCommandIn(submodule, "clean", "-fdx");
+                return checkedOutSubmodulesOf(submodule);
+            }
+        };
+    }
+
+    /**
+     * The submodules in the index of the given working tree which are checked out,
+     * the ones <tt>git submodule foreach</tt> visits.
+     */
+    private List<File> checkedOutSubmodulesOf(File workTree) throws GitException {
+        List<File> submodules = new ArrayList<File>();
+        try {
+            Repository repo = new FileRepositoryBuilder().setWorkTree(workTree).build();
+            try {
+                SubmoduleWalk walk = SubmoduleWalk.forIndex(repo);
+                try {
+                    while (walk.next()) {
+                        Repository sub = walk.getRepository();
+                        if (sub != null) {
+                            sub.close();
+                            submodules.add(walk.getDirectory());
+                        }
+                    }
+                } finally {
+                    walk.release();
+                }
+            } finally {
+                repo.close();
+            }
+        } catch (IOException e) {
+            throw new GitException("Failed to list the submodules of " + workTree, e);
+        }
+        return submodules;
     }
 
     /**
@@ -721,6 +1378,70 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return !"false".equals(firstLine(ret).trim());
     }
 
+    /**
+     * Points the submodules in the index at their repository within the given local super-project.
+     *
+     * The configurations are read and written with JGit rather than with a git process per setting,
+     * and each configuration file is only written once, if at all.
+     */
+    private void fixSubmoduleUrls(String originPath) throws IOException {
+        Repository repo = getRepository();
+        try {
+            // the configuration of a submodule is keyed by its name, which .gitmodules maps to its path
+            Map<String, String> names = new HashMap<String, String>();
+            FileBasedConfig modules = new FileBasedConfig(new File(workspace, Constants.DOT_GIT_MODULES), FS.DETECTED);
+            try {
+                modules.load();
+                for (String name : modules.getSubsections(ConfigConstants.CONFIG_SUBMODULE_SECTION)) {
+                    String path = modules.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, name, ConfigConstants.CONFIG_KEY_PATH);
+                    if (path != null)
+                        names.put(path, name);
+                }
+            } catch (ConfigInvalidException e) {
+                // the names then default to the paths
+            }
+
+            StoredConfig config = repo.getConfig();
+            boolean changed = false;
+            SubmoduleWalk walk = SubmoduleWalk.forIndex(repo);
+            try {
+                while (walk.next()) {
+                    // First fix the URL to the submodule inside the super-project
+                    String path = walk.getPath();
+                    String name = names.containsKey(path) ? names.get(path) : path;
+                    String sUrl = pathJoin(originPath, path);
+                    if (!sUrl.equals(config.getString(ConfigConstants.CONFIG_SUBMODULE_SECTION, name, ConfigConstants.CONFIG_KEY_URL))) {
+                        config.setString(ConfigConstants.CONFIG_SUBMODULE_SECTION, name, ConfigConstants.CONFIG_KEY_URL, sUrl);
+                        changed = true;
+                    }
+
+                    /* Second, if the submodule already has been cloned, fix its own
+                     * url. It is possible that the submodule does not exist yet
+                     * since we wait until after checkout to do 'submodule update' */
+                    Repository sub = walk.getRepository();
+                    if (sub != null) {
+                        try {
+                            StoredConfig subConfig = sub.getConfig();
+                            String url = subConfig.getString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL);
+                            if (url != null && !url.equals("") && !url.equals(sUrl)) {
+                                subConfig.setString(ConfigConstants.CONFIG_REMOTE_SECTION, "origin", ConfigConstants.CONFIG_KEY_URL, sUrl);
+                                subConfig.save();
+                            }
+                        } finally {
+                            sub.close();
+                        }
+                    }
+                }
+            } finally {
+                walk.release();
+            }
+            if (changed)
+                config.save();
+        } finally {
+            repo.close();
+        }
+    }
+
     private String pathJoin( String a, String b ) {
         return new File(a, b).toString();
     }
@@ -788,28 +1509,9 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
 
         if ( ! is_bare ) {
             try {
-                List<IndexEntry> submodules = getSubmodules("HEAD");
-
-                for (IndexEntry submodule : submodules) {
-                    // First fix the URL to the submodule inside the super-project
-                    String sUrl = pathJoin( origin.getPath(), submodule.getFile() );
-                    setSubmoduleUrl( submodule.getFile(), sUrl );
-
-                    // Second, if the submodule already has been cloned, fix its own
-                    // url...
-                    String subGitDir = pathJoin( submodule.getFile(), ".git" );
-
-                    /* it is possible that the submodule does not exist yet
-                     * since we wait until after checkout to do 'submodule
-                     * udpate' */
-                    if ( hasGitRepo( subGitDir ) ) {
-                        if (! "".equals( getRemoteUrl("origin", subGitDir) )) {
-                            setRemoteUrl("origin", sUrl, subGitDir);
-                        }
-                    }
-                }
-            } catch (GitException e) {
-                // this can fail for example HEAD doesn't exist yet
+                fixSubmoduleUrls(origin.getPath());
+            } catch (IOException e) {
+                throw new GitException("Failed to fix the URLs of the submodules", e);
             }
         } else {
            // we've made a reasonable attempt to detect whether the origin is
@@ -934,6 +1636,28 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     private String launchCommandWithCredentials(ArgumentListBuilder args, File workDir,
                                                 StandardCredentials credentials,
                                                 @NonNull URIish url) throws GitException, InterruptedException {
+        return launchCommandWithCredentials(args, workDir, credentials, url, null);
+    }
+
+    private String launchCommandWithCredentials(ArgumentListBuilder args, File workDir,
+                                                StandardCredentials credentials,
+                                                @NonNull URIish url,
+                                                Integer timeout) throws GitException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        launchCommandWithCredentials(args, workDir, credentials, url, timeout, out);
+        return out.toString();
+    }
+
+    /**
+     * Launches a command with the credentials, sending its standard output to the given stream.
+     * The stream receives the output even if the command fails.
+     *
+     * @return the transfer statistics of a command run with <tt>--progress</tt>, null otherwise.
+     */
+    private TransferStats launchCommandWithCredentials(ArgumentListBuilder args, File workDir,
+                                              StandardCredentials credentials,
+                                              @NonNull URIish url,
+                                              Integer timeout, OutputStream out) throws GitException, InterruptedException {
 
         File key = null;
         File ssh = null;
@@ -972,7 +1696,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 }
             }
 
-            return launchCommandIn(args, workDir, env);
+            return launchCommandIn(args, workDir, env, out, timeout);
         } catch (IOException e) {
             throw new GitException("Failed to setup credentials", e);
         } finally {
@@ -1075,7 +1799,28 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     }
 
     private String launchCommandIn(ArgumentListBuilder args, File workDir, EnvVars env) throws GitException, InterruptedException {
+        return launchCommandIn(args, workDir, env, (Integer) null);
+    }
+
+    private String launchCommandIn(ArgumentListBuilder args, File workDir, EnvVars env, Integer timeout) throws GitException, InterruptedException {
         ByteArrayOutputStream fos = new ByteArrayOutputStream();
+        launchCommandIn(args, workDir, env, fos, timeout);
+        return fos.toString();
+    }
+
+    /**
+     * Launches a command, sending its standard output to the given stream instead of buffering it.
+     */
+    private void launchCommandIn(ArgumentListBuilder args, File workDir, EnvVars env, OutputStream fos) throws GitException, InterruptedException {
+        launchCommandIn(args, workDir, env, fos, null);
+    }
+
+    /**
+     * @param timeout
+     *      Time allowed in minutes, null for the timeout configured for the git operation.
+     * @return the transfer statistics of a command run with <tt>--progress</tt>, null otherwise.
+     */
+    private TransferStats launchCommandIn(ArgumentListBuilder args, File workDir, EnvVars env, OutputStream fos, Integer timeout) throws GitException, InterruptedException {
         // JENKINS-13356: capture the output of stderr separately
         ByteArrayOutputStream err = new ByteArrayOutputStream();
 
@@ -1085,19 +1830,33 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             environment.put("GIT_ASKPASS", launcher.isUnix() ? "/bin/echo" : "echo ");
         }
         String command = "git " + StringUtils.join(args.toCommandArray(), " ");
+        String operation = operationOf(args);
+        if (timeout == null) timeout = timeoutOf(operation);
+        boolean progress = args.toList().contains("--progress");
+        // only commands reporting their progress can be told apart from hung ones by their silence
+        int stallTimeout = progress ? noProgressTimeoutOf(operation) : 0;
+        TransferStats stats = progress ? new TransferStats(operation) : null;
         try {
             args.prepend(gitExe);
-            Launcher.ProcStarter p = launcher.launch().cmds(args.toCommandArray()).
-                    envs(environment).stdout(fos).stderr(err);
+            ProgressWatchdog watchdog = new ProgressWatchdog();
+            OutputStream stderr = stats != null ? stats.parser(err) : err;
+            Launcher.ProcStarter p = launcher.launch().cmds(args.toCommandArray()).envs(environment);
+            if (stallTimeout > 0)
+                p.stdout(watchdog.watch(fos)).stderr(watchdog.watch(stderr));
+            else
+                p.stdout(fos).stderr(stderr);
             if (workDir != null) p.pwd(workDir);
-            int status = p.start().joinWithTimeout(TIMEOUT, TimeUnit.MINUTES, listener);
+            int status = stallTimeout > 0
+                    ? watchdog.join(p.start(), timeout, stallTimeout, command, listener)
+                    : p.start().joinWithTimeout(timeout, TimeUnit.MINUTES, listener);
 
-            String result = fos.toString();
             if (status != 0) {
+                String result = fos instanceof ByteArrayOutputStream ? fos.toString() : "(streamed)";
                 throw new GitException("Command \""+command+"\" returned status code " + status + ":\nstdout: " + result + "\nstderr: "+ err.toString());
             }
-
-            return result;
+            if (stats != null)
+                stats.publish(listener);
+            return stats;
         } catch (GitException e) {
             throw e;
         } catch (IOException e) {
@@ -1105,7 +1864,6 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         } catch (Throwable t) {
             throw new GitException("Error performing git command", t);
         }
-
     }
 
     public void push(URIish url, String refspec) throws GitException, InterruptedException {
@@ -1116,13 +1874,124 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             args.add(refspec);
         }
 
-        StandardCredentials cred = credentials.get(url.toPrivateString());
-        if (cred == null) cred = defaultCredentials;
+        StandardCredentials cred = credentialsFor(url.toPrivateString());
         launchCommandWithCredentials(args, workspace, cred, url);
         // Ignore output for now as there's many different formats
         // That are possible.
     }
 
+    public PushCommand push() {
+        return new PushCommand() {
+            public URIish url;
+            public List<RefSpec> refspecs;
+            public boolean force;
+            public boolean atomic;
+            public boolean thin = true;
+            public Integer timeout;
+            public ResultHandler handler;
+
+            public PushCommand to(URIish remote, List<RefSpec> refspecs) {
+                this.url = remote;
+                this.refspecs = refspecs;
+                return this;
+            }
+
+            public PushCommand force(boolean force) {
+                this.force = force;
+                return this;
+            }
+
+            public PushCommand atomic(boolean atomic) {
+                this.atomic = atomic;
+                return this;
+            }
+
+            public PushCommand thin(boolean thin) {
+                this.thin = thin;
+                return this;
+            }
+
+            public PushCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            public PushCommand results(ResultHandler handler) {
+                this.handler = handler;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add("push", "--porcelain");
+                if (force) args.add("--force");
+                if (atomic) args.add("--atomic");
+                if (!thin) args.add("--no-thin");
+                args.add(url.toPrivateASCIIString());
+
+                if (refspecs != null)
+                    for (RefSpec rs: refspecs)
+                        if (rs != null)
+                            args.add(rs.toString());
+
+                StandardCredentials cred = credentialsFor(url.toPrivateString());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                GitException failure = null;
+                try {
+                    launchCommandWithCredentials(args, workspace, cred, url, timeout, out);
+                } catch (GitException e) {
+                    // git fails when a ref is rejected, after reporting all of them
+                    failure = e;
+                }
+                List<PushedRef> refs = parsePushedRefs(out.toString());
+                if (handler != null && (failure == null || !refs.isEmpty())) {
+                    try {
+                        handler.pushed(refs);
+                    } catch (IOException e) {
+                        throw new GitException("Failed to report the push to " + url, e);
+                    }
+                }
+                if (failure != null)
+                    throw failure;
+            }
+        };
+    }
+
+    /**
+     * Parses the output of <tt>git push --porcelain</tt>, a line per ref such as
+     * <tt>!&lt;TAB&gt;refs/heads/x:refs/heads/x&lt;TAB&gt;[rejected] (non-fast-forward)</tt>.
+     */
+    static List<PushedRef> parsePushedRefs(String output) {
+        List<PushedRef> refs = new ArrayList<PushedRef>();
+        for (String line : output.split("\n")) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length < 3 || fields[0].length() != 1 || " +-*!=".indexOf(fields[0].charAt(0)) < 0)
+                continue; // "To <url>", "Done"
+            char flag = fields[0].charAt(0);
+            int colon = fields[1].lastIndexOf(':');
+            String source = colon > 0 ? fields[1].substring(0, colon) : null;
+            String destination = fields[1].substring(colon + 1);
+
+            String summary = fields[2].trim();
+            String message = null;
+            int paren = summary.indexOf(" (");
+            if (paren >= 0 && summary.endsWith(")"))
+                message = summary.substring(paren + 2, summary.length() - 1);
+
+            PushedRef.Status status;
+            if (flag == '=')
+                status = PushedRef.Status.UP_TO_DATE;
+            else if (flag != '!')
+                status = PushedRef.Status.OK;
+            else if (summary.startsWith("[remote rejected]"))
+                status = PushedRef.Status.REMOTE_REJECTED;
+            else
+                status = PushedRef.Status.REJECTED;
+            refs.add(new PushedRef(source, destination, status, message));
+        }
+        return refs;
+    }
+
     public void push(String remoteName, String refspec) throws GitException, InterruptedException {
         String url = getRemoteUrl(remoteName);
         if (url == null) {
@@ -1193,18 +2062,90 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         }
     }
 
-    public void checkout(String commit) throws GitException, InterruptedException {
-        launchCommand("checkout", "-f", commit);
+    public void checkout(final String commit) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                checkout(commit, null, null, false);
+            }
+        });
+    }
+
+    public void checkout(final String ref, final String branch) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                checkout(ref, branch, null, false);
+            }
+        });
+    }
+
+    /**
+     * Checks out the ref, on a new branch if one is given.
+     *
+     * @param timeout
+     *      Time allowed in minutes, null for the timeout of the checkout operation.
+     * @param incremental
+     *      See {@link CheckoutCommand#incremental(boolean)}, only for a checkout without a branch.
+     */
+    private void checkout(String ref, String branch, Integer timeout, boolean incremental) throws GitException, InterruptedException {
+        if (branch == null) {
+            if (incremental && checkoutIncrementally(ref, timeout))
+                return;
+            launchCommandWithPromisor(timeout, "checkout", "-f", ref);
+        } else {
+            launchCommandWithPromisor(timeout, "checkout", "-b", branch, ref);
+        }
+    }
+
+    /**
+     * Checks out the ref with a two-way merge from the tree of <tt>HEAD</tt>, which only reads the
+     * subtrees that differ and only checks and writes the files that differ. <tt>checkout -f</tt>
+     * compares every file of the working tree to the index instead.
+     *
+     * @return false if the checkout can't be done this way, leaving the working tree and the index
+     *      untouched: without <tt>HEAD</tt>, for a ref that isn't a commit, or if a path to update has
+     *      local changes or is in the way.
+     */
+    private boolean checkoutIncrementally(String ref, Integer timeout) throws InterruptedException {
+        String target;
+        try {
+            launchCommand("rev-parse", "--verify", "-q", "HEAD^{commit}");
+            target = launchCommand("rev-parse", "--verify", "-q", ref + "^{commit}").trim();
+        } catch (GitException e) {
+            return false;
+        }
+        try {
+            launchCommandWithPromisor(timeout, "read-tree", "-m", "-u", "HEAD", target);
+        } catch (GitException e) {
+            listener.getLogger().println("Checking out all of " + ref + ": the changed files can't be updated incrementally");
+            return false;
+        }
+
+        boolean branch;
+        try {
+            launchCommand("show-ref", "--verify", "-q", Constants.R_HEADS + ref);
+            branch = true;
+        } catch (GitException e) {
+            branch = false;
+        }
+        if (branch)
+            launchCommand("symbolic-ref", Constants.HEAD, Constants.R_HEADS + ref);
+        else
+            launchCommand("update-ref", "--no-deref", Constants.HEAD, target);
+        return true;
     }
 
-    public void checkout(String ref, String branch) throws GitException, InterruptedException {
-        launchCommand("checkout", "-b", branch, ref);
+    public void checkoutBranch(final String branch, final String ref) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                checkoutBranch(branch, ref, null, false);
+            }
+        });
     }
 
-    public void checkoutBranch(String branch, String ref) throws GitException, InterruptedException {
+    private void checkoutBranch(String branch, String ref, Integer timeout, boolean incremental) throws GitException, InterruptedException {
         try {
             // First, checkout to detached HEAD, so we can delete the branch.
-            checkout(ref);
+            checkout(ref, null, timeout, incremental);
 
             if (branch!=null) {
                 // Second, check to see if the branch actually exists, and then delete it if it does.
@@ -1214,7 +2155,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                     }
                 }
                 // Lastly, checkout the branch, creating it in the process, using commitish as the start point.
-                checkout(ref, branch);
+                checkout(ref, branch, timeout, false);
             }
         } catch (GitException e) {
             if (Pattern.compile("index\\.lock").matcher(e.getMessage()).find()) {
@@ -1225,6 +2166,84 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         }
     }
 
+    public CheckoutCommand checkout() {
+        return new CheckoutCommand() {
+            String ref;
+            String branch;
+            boolean deleteBranch;
+            List<String> sparseCheckoutPaths;
+            Integer timeout;
+            boolean incremental;
+
+            public CheckoutCommand ref(String ref) {
+                this.ref = ref;
+                return this;
+            }
+
+            public CheckoutCommand branch(String branch) {
+                this.branch = branch;
+                return this;
+            }
+
+            public CheckoutCommand deleteBranchIfExist(boolean deleteBranch) {
+                this.deleteBranch = deleteBranch;
+                return this;
+            }
+
+            public CheckoutCommand sparseCheckoutPaths(List<String> sparseCheckoutPaths) {
+                this.sparseCheckoutPaths = sparseCheckoutPaths;
+                return this;
+            }
+
+            public CheckoutCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            public CheckoutCommand incremental(boolean incremental) {
+                this.incremental = incremental;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+                    void run() throws GitException, InterruptedException {
+                        if (sparseCheckoutPaths != null)
+                            writeSparseCheckout(sparseCheckoutPaths);
+
+                        if (branch != null && deleteBranch)
+                            checkoutBranch(branch, ref, timeout, incremental);
+                        else
+                            checkout(ref, branch, timeout, incremental);
+
+                        if (sparseCheckoutPaths != null) {
+                            // checkout only updates the paths that differ between the two commits,
+                            // so apply the new patterns to the rest of the working tree as well
+                            launchCommandWithPromisor(timeout, "read-tree", "-mu", "HEAD");
+                            if (sparseCheckoutPaths.isEmpty()) {
+                                launchCommand("config", "core.sparseCheckout", "false");
+                                SparseCheckout.fileOf(new File(workspace, Constants.DOT_GIT)).delete();
+                            }
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Enables sparse checkout with the given cone-mode directories, for the next checkout.
+     * An empty list selects the whole tree.
+     */
+    private void writeSparseCheckout(List<String> paths) throws GitException, InterruptedException {
+        try {
+            SparseCheckout.of(paths).write(new File(workspace, Constants.DOT_GIT));
+        } catch (IOException e) {
+            throw new GitException("Could not write the sparse checkout patterns", e);
+        }
+        launchCommand("config", "core.sparseCheckout", "true");
+    }
+
     public boolean tagExists(String tagName) throws GitException, InterruptedException {
         return launchCommand("tag", "-l", tagName).trim().equals(tagName);
     }
@@ -1249,22 +2268,100 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     }
 
     public List<IndexEntry> lsTree(String treeIsh, boolean recursive) throws GitException, InterruptedException {
-        List<IndexEntry> entries = new ArrayList<IndexEntry>();
-        String result = launchCommand("ls-tree", recursive?"-r":null, treeIsh);
+        return lsTree(treeIsh, recursive, false);
+    }
 
-        BufferedReader rdr = new BufferedReader(new StringReader(result));
-        String line;
-        try {
-            while ((line = rdr.readLine()) != null) {
-                String[] entry = line.split("\\s+");
-                entries.add(new IndexEntry(entry[0], entry[1], entry[2],
-                                           entry[3]));
+    /**
+     * Parses the output of <tt>git ls-tree -z</tt> as git writes it.
+     *
+     * @param gitlinksOnly
+     *      Only keep the submodules, while parsing.
+     */
+    private List<IndexEntry> lsTree(String treeIsh, boolean recursive, boolean gitlinksOnly) throws GitException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder("ls-tree", "-z");
+        if (recursive) args.add("-r");
+        args.add(treeIsh);
+
+        LsTreeParser parser = new LsTreeParser(gitlinksOnly);
+        launchCommandIn(args, workspace, environment, parser);
+        return parser.getEntries();
+    }
+
+    /**
+     * Parses the entries of <tt>git ls-tree -z</tt> as they are read from the process, each being
+     * <tt>&lt;mode> SP &lt;type> SP &lt;object> TAB &lt;file> NUL</tt>, so that only one entry is
+     * buffered at a time. File names are neither quoted nor split on whitespace.
+     */
+    private static final class LsTreeParser extends OutputStream {
+        private final boolean gitlinksOnly;
+        private final IndexEntryList entries = new IndexEntryList();
+        private final ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        /**
+         * The first entry that couldn't be parsed. The remaining output is still read, so that git doesn't block on it.
+         */
+        private String error;
+
+        LsTreeParser(boolean gitlinksOnly) {
+            this.gitlinksOnly = gitlinksOnly;
+        }
+
+        @Override
+        public void write(int b) {
+            if (b == 0)
+                parse();
+            else
+                entry.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == 0) {
+                    entry.write(b, start, i - start);
+                    parse();
+                    start = i + 1;
+                }
             }
-        } catch (IOException e) {
-            throw new GitException("Error parsing ls tree", e);
+            entry.write(b, start, off + len - start);
         }
 
-        return entries;
+        private void parse() {
+            String line;
+            try {
+                line = entry.toString("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            entry.reset();
+            if (error != null)
+                return;
+
+            int sp1 = line.indexOf(' ');
+            int sp2 = line.indexOf(' ', sp1 + 1);
+            int tab = line.indexOf('\t', sp2 + 1);
+            if (sp1 < 0 || sp2 < 0 || tab < 0) {
+                error = line;
+                return;
+            }
+            String mode = line.substring(0, sp1);
+            if (gitlinksOnly && !mode.equals("160000"))
+                return;
+            try {
+                entries.add(mode, line.substring(sp1 + 1, sp2), ObjectId.fromString(line.substring(sp2 + 1, tab)),
+                            line.substring(tab + 1));
+            } catch (IllegalArgumentException e) {
+                error = line;
+            }
+        }
+
+        IndexEntryList getEntries() throws GitException {
+            if (entry.size() > 0)
+                parse(); // not terminated
+            if (error != null)
+                throw new GitException("Error parsing ls tree: " + error);
+            return entries;
+        }
     }
 
     public List<ObjectId> revListAll() throws GitException, InterruptedException {
@@ -1275,6 +2372,53 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return doRevList(ref);
     }
 
+    public RevListCommand revList() {
+        return new RevListCommand() {
+            final List<String> revs = new ArrayList<String>();
+            final List<String> includedPaths = new ArrayList<String>();
+            final List<String> excludedPaths = new ArrayList<String>();
+            List<ObjectId> out;
+
+            public RevListCommand all() {
+                revs.add("--all");
+                return this;
+            }
+
+            public RevListCommand reference(String reference) {
+                revs.add(reference);
+                return this;
+            }
+
+            public RevListCommand excludes(String rev) {
+                revs.add(sanitize('^' + rev));
+                return this;
+            }
+
+            public RevListCommand includesPath(String glob) {
+                includedPaths.add(glob);
+                return this;
+            }
+
+            public RevListCommand excludesPath(String glob) {
+                excludedPaths.add(glob);
+                return this;
+            }
+
+            public RevListCommand to(List<ObjectId> revs) {
+                this.out = revs;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                if (out == null) throw new IllegalStateException();
+                ArgumentListBuilder args = new ArgumentListBuilder();
+                args.add(revs.toArray(new String[revs.size()]));
+                addPathspecs(args, includedPaths, excludedPaths);
+                out.addAll(doRevList(args.toCommandArray()));
+            }
+        };
+    }
+
     private List<ObjectId> doRevList(String... extraArgs) throws GitException, InterruptedException {
         List<ObjectId> entries = new ArrayList<ObjectId>();
         ArgumentListBuilder args = new ArgumentListBuilder("rev-list");
@@ -1351,7 +2495,15 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     }
 
     public void addCredentials(String url, StandardCredentials credentials) {
-        this.credentials.put(url, credentials);
+        this.credentials.put(GitURICanonicalizer.canonicalize(url), credentials);
+    }
+
+    /**
+     * The credentials added for any spelling of the given url, or the default credentials.
+     */
+    private StandardCredentials credentialsFor(String url) {
+        StandardCredentials cred = credentials.get(GitURICanonicalizer.canonicalize(url));
+        return cred != null ? cred : defaultCredentials;
     }
 
     public void clearCredentials() {
@@ -1417,37 +2569,51 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     }
 
     public Map<String, ObjectId> getHeadRev(String url) throws GitException, InterruptedException {
-        ArgumentListBuilder args = new ArgumentListBuilder("ls-remote");
-        args.add("-h");
-        args.add(url);
-
-        StandardCredentials cred = credentials.get(url);
-        if (cred == null) cred = defaultCredentials;
-
-        String result = launchCommandWithCredentials(args, null, cred, url);
+        String result = lsRemoteHeads(url, null);
 
         Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
         String[] lines = result.split("\n");
         for (String line : lines) {
+            if (line.length() == 0) continue; // no branch at all
             if (line.length() < 41) throw new GitException("unexpected ls-remote output " + line);
-            heads.put(line.substring(41), ObjectId.fromString(result.substring(0, 40)));
+            heads.put(line.substring(41), ObjectId.fromString(line.substring(0, 40)));
         }
         return heads;
     }
 
     public ObjectId getHeadRev(String url, String branch) throws GitException, InterruptedException {
-        String[] branchExploded = branch.split("/");
-        branch = branchExploded[branchExploded.length-1];
-        ArgumentListBuilder args = new ArgumentListBuilder("ls-remote");
-        args.add("-h");
-
-        StandardCredentials cred = credentials.get(url);
-        if (cred == null) cred = defaultCredentials;
+        // the full name, as JGit does: git matches the pattern against the end of the ref names,
+        // so the last segment alone also lists other/x for feature/x
+        String ref = branch.startsWith(Constants.R_HEADS) ? branch : Constants.R_HEADS + branch;
+        for (String line : lsRemoteHeads(url, ref).split("\n")) {
+            // <sha1> TAB <ref>
+            int tab = line.indexOf('\t');
+            if (tab == 40 && line.substring(tab + 1).trim().equals(ref))
+                return ObjectId.fromString(line.substring(0, 40));
+        }
+        return null;
+    }
 
+    /**
+     * Lists the branches of a remote repository, with <tt>git ls-remote -h</tt>.
+     *
+     * Protocol v2 is requested, where git asks the server for the <tt>refs/heads/</tt> prefix only,
+     * instead of receiving the advertisement of all the refs, such as the hundreds of thousands of
+     * <tt>refs/changes/</tt> of a Gerrit repository. Servers and git versions that don't speak v2
+     * just ignore the request.
+     *
+     * @param pattern
+     *      Matched against the end of the ref names by git, null for all the branches.
+     */
+    private String lsRemoteHeads(String url, @CheckForNull String pattern) throws GitException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder("-c", "protocol.version=2", "ls-remote");
+        args.add("-h");
         args.add(url);
-        args.add(branch);
-        String result = launchCommandWithCredentials(args, null, cred, url);
-        return result.length()>=40 ? ObjectId.fromString(result.substring(0, 40)) : null;
+        if (pattern != null)
+            args.add(pattern);
+
+        StandardCredentials cred = credentialsFor(url);
+        return launchCommandWithCredentials(args, null, cred, url);
     }
 
 
@@ -1460,7 +2626,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     @Deprecated
     public void merge(String refSpec) throws GitException, InterruptedException {
         try {
-            launchCommand("merge", refSpec);
+            launchCommandWithPromisor(null, "merge", refSpec);
         } catch (GitException e) {
             throw new GitException("Could not merge " + refSpec, e);
         }
@@ -1473,8 +2639,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         ArgumentListBuilder args = new ArgumentListBuilder();
         URIish uri = repository.getURIs().get(0);
         String url = uri.toPrivateString();
-        StandardCredentials cred = credentials.get(url);
-        if (cred == null) cred = defaultCredentials;
+        StandardCredentials cred = credentialsFor(url);
 
         args.add("push", url);
 
@@ -1489,7 +2654,7 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
 
     @Deprecated
     public List<Branch> getBranchesContaining(String revspec) throws GitException, InterruptedException {
-        return new ArrayList<Branch>(parseBranches(launchCommand("branch", "-a", "--contains", revspec)));
+        return new BranchList(parseBranches(launchCommand("branch", "-a", "--contains", revspec)));
     }
 
     @Deprecated
@@ -1642,4 +2807,46 @@ public class CliGitAPIImpl extends LegacyCompatibleGitAPIImpl {
      * best to avoid git interactively asking for credentials, but there's a bunch of other cases git may hung.
      */
     public static int TIMEOUT = Integer.getInteger(Git.class.getName() + ".timeOut", 10);
+
+    /**
+     * Number of submodules {@link #submoduleClean(boolean) cleaned} at the same time, each by its own git processes.
+     */
+    public static int SUBMODULE_THREADS = Math.max(1, Integer.getInteger(Git.class.getName() + ".submoduleThreads",
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Time allowed to a git operation, in minutes, such as <tt>fetch</tt> or <tt>ls-remote</tt>:
+     * the <tt>org.jenkinsci.plugins.gitclient.Git.timeOut.<em>operation</em></tt> system property,
+     * or {@link #TIMEOUT}. This allows giving slow operations more time than quick ones, which then
+     * don't hold a thread for long when they hang.
+     */
+    static int timeoutOf(String operation) {
+        return Integer.getInteger(Git.class.getName() + ".timeOut." + operation, TIMEOUT);
+    }
+
+    /**
+     * Time a git operation reporting its progress is allowed to stay silent, in seconds, before
+     * it is killed: the <tt>org.jenkinsci.plugins.gitclient.Git.noProgressTimeOut.<em>operation</em></tt>
+     * or <tt>org.jenkinsci.plugins.gitclient.Git.noProgressTimeOut</tt> system property.
+     * Disabled (0) by default.
+     */
+    static int noProgressTimeoutOf(String operation) {
+        return Integer.getInteger(Git.class.getName() + ".noProgressTimeOut." + operation,
+                Integer.getInteger(Git.class.getName() + ".noProgressTimeOut", 0));
+    }
+
+    /**
+     * The git sub-command run by the arguments, skipping the global options.
+     */
+    static String operationOf(ArgumentListBuilder args) {
+        List<String> list = args.toList();
+        for (int i = 0; i < list.size(); i++) {
+            String arg = list.get(i);
+            if (arg.equals("-c") || arg.equals("-C"))
+                i++; // option with a separate value
+            else if (!arg.startsWith("-"))
+                return arg;
+        }
+        return "";
+    }
 }
@@ -1,5 +1,7 @@
 package org.jenkinsci.plugins.gitclient;
 
+import java.util.List;
+
 /**
  * @author Kohsuke Kawaguchi
  */
@@ -20,4 +22,56 @@ public interface CloneCommand extends GitCommand {
     CloneCommand shared();
 
     CloneCommand reference(String reference);
+
+    /**
+     * Only checks out the given directories of the repository (cone-mode sparse checkout).
+     *
+     * The patterns are stored in the cloned repository, so that later checkouts only
+     * materialize these directories and the files at the root of the tree.
+     *
+     * @see CheckoutCommand#sparseCheckoutPaths(List)
+     * @since 1.6.2
+     */
+    CloneCommand sparseCheckoutPaths(List<String> sparseCheckoutPaths);
+
+    /**
+     * Makes a partial clone, only downloading the objects that match the filter, such as
+     * <tt>blob:none</tt>, <tt>blob:limit=1m</tt> or <tt>tree:0</tt>.
+     *
+     * The objects left out are fetched on demand when a checkout needs them.
+     *
+     * @see FetchCommand#filter(String)
+     * @since 1.6.2
+     */
+    CloneCommand filter(String filter);
+
+    /**
+     * Time allowed for the clone, in minutes. Without it, the timeout configured for
+     * the <tt>fetch</tt> operation applies.
+     *
+     * @see FetchCommand#timeout(Integer)
+     * @since 1.6.2
+     */
+    CloneCommand timeout(Integer timeout);
+
+    /**
+     * Populates the working tree and the index from a checkout of the same repository kept on the node,
+     * by linking or cloning its files, and detaches <tt>HEAD</tt> at its commit. The checkout that follows
+     * the clone then only writes the files that differ from the template.
+     *
+     * The template is only used if its commit is fetched by the clone. Since it is otherwise independent from
+     * the clone, consider also using it, or the repository it was cloned from, as a {@link #reference(String)}.
+     *
+     * @see WorkspaceTemplate
+     * @since 1.6.2
+     */
+    CloneCommand template(WorkspaceTemplate template);
+
+    /**
+     * Sets the handler that receives the {@link TransferStats} of the clone, such as the objects and
+     * bytes received and the time spent in each phase.
+     *
+     * @since 1.6.2
+     */
+    CloneCommand stats(TransferStats.Handler handler);
 }
@@ -15,4 +15,33 @@ public interface FetchCommand extends GitCommand {
     FetchCommand prune();
 
     FetchCommand shallow(boolean shallow);
+
+    /**
+     * Omits objects from the fetch, as in <tt>git fetch --filter</tt>: <tt>blob:none</tt>,
+     * <tt>blob:limit=<em>size</em></tt> or <tt>tree:<em>depth</em></tt>.
+     *
+     * The remote is recorded as a promisor, so that git lazily fetches the missing objects
+     * when a checkout needs them. The remote must therefore be configured in the repository.
+     *
+     * @since 1.6.2
+     */
+    FetchCommand filter(String filter);
+
+    /**
+     * Time allowed for the fetch, in minutes, overriding the timeout configured for the
+     * <tt>fetch</tt> operation, such as for a repository known to be very large.
+     *
+     * With JGit, this is the time allowed for a network read instead.
+     *
+     * @since 1.6.2
+     */
+    FetchCommand timeout(Integer timeout);
+
+    /**
+     * Sets the handler that receives the {@link TransferStats} of the fetch, such as the objects and
+     * bytes received and the time spent in each phase.
+     *
+     * @since 1.6.2
+     */
+    FetchCommand stats(TransferStats.Handler handler);
 }
@@ -186,6 +186,13 @@ public interface GitClient {
      */
     void checkoutBranch(@CheckForNull String branch, String ref) throws GitException, InterruptedException;
 
+    /**
+     * Returns a {@link CheckoutCommand} to check out a commit with more control
+     * than the {@link #checkout(String)} family of methods, such as a sparse checkout.
+     * @since 1.6.2
+     */
+    CheckoutCommand checkout();
+
 
     /**
      * Clone a remote repository
@@ -216,6 +223,13 @@ public interface GitClient {
 
     void push(URIish url, String refspec) throws GitException, InterruptedException;
 
+    /**
+     * Returns a {@link PushCommand} to push many refs over a single connection.
+     *
+     * @since 1.6.2
+     */
+    PushCommand push();
+
     void merge(ObjectId rev) throws GitException, InterruptedException;
 
     MergeCommand merge();
@@ -283,6 +297,12 @@ public interface GitClient {
 
     List<ObjectId> revList(String ref) throws GitException, InterruptedException;
 
+    /**
+     * Returns a {@link RevListCommand} to list commits, optionally limited to those changing some paths.
+     * @since 1.6.2
+     */
+    RevListCommand revList();
+
 
     // --- submodules
 
@@ -342,6 +362,27 @@ public interface GitClient {
      */
     ChangelogCommand changelog();
 
+    /**
+     * Returns a {@link ArchiveCommand} to stream a tree-ish as a tar or zip archive,
+     * without checking it out.
+     * @since 1.6.2
+     */
+    ArchiveCommand archive();
+
+    /**
+     * Returns a {@link ChangedPathsCommand} to list the paths changed by a range of commits,
+     * as structured records rather than the text of {@link #showRevision(ObjectId, ObjectId)}.
+     * @since 1.6.2
+     */
+    ChangedPathsCommand changedPaths();
+
+    /**
+     * Returns a {@link RepackCommand} to pack the repository into a single pack with a reachability
+     * bitmap, which makes it faster to fetch or clone from, as a mirror or a reference repository.
+     * @since 1.6.2
+     */
+    RepackCommand repack();
+
     /**
      * Appends to an existing git-note on the current HEAD commit.
      *
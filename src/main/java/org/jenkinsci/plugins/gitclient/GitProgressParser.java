@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.gitclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the progress command line git writes to stderr with <tt>--progress</tt> into
+ * {@link TransferStats}, and passes the output on unchanged.
+ *
+ * <p>
+ * git rewrites its progress lines in place, so the lines end with <tt>\r</tt> until the
+ * phase is done:
+ * <pre>
+ * remote: Counting objects: 100% (5/5), done.
+ * Receiving objects:  45% (450/1000), 1.20 MiB | 2.40 MiB/s
+ * Resolving deltas: 100% (10/10), done.
+ * </pre>
+ */
+class GitProgressParser extends FilterOutputStream {
+    private static final Pattern PROGRESS = Pattern.compile(
+            "((?:remote: )?[A-Z][a-z]+(?: [a-z]+)*): +(?:\\d+% \\((\\d+)/(\\d+)\\)|(\\d+))"
+            + "(?:, ([\\d.]+) (bytes|[KMGT]iB))?.*");
+
+    private final TransferStats stats;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    GitProgressParser(TransferStats stats, OutputStream out) {
+        super(out);
+        this.stats = stats;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (b == '\r' || b == '\n') {
+            parse(line.toString("UTF-8"));
+            line.reset();
+        } else {
+            line.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\r' || b[i] == '\n') {
+                line.write(b, start, i - start);
+                parse(line.toString("UTF-8"));
+                line.reset();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, off + len - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (line.size() > 0)
+            parse(line.toString("UTF-8"));
+        line.reset();
+        super.close();
+    }
+
+    void parse(String s) {
+        Matcher m = PROGRESS.matcher(s.trim());
+        if (!m.matches())
+            return;
+        String phase = m.group(1);
+        if (m.group(2) != null)
+            stats.progress(phase, Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+        else
+            stats.progress(phase, Integer.parseInt(m.group(4)), 0);
+        if (m.group(5) != null && phase.equals(TransferStats.RECEIVING))
+            stats.setBytesReceived(parseBytes(m.group(5), m.group(6)));
+    }
+
+    static long parseBytes(String value, String unit) {
+        double v = Double.parseDouble(value);
+        if (unit.equals("bytes"))
+            return (long) v;
+        return (long) (v * Math.pow(1024, "KMGT".indexOf(unit.charAt(0)) + 1));
+    }
+}
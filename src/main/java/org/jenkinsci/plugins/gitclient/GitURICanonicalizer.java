@@ -0,0 +1,97 @@
+package org.jenkinsci.plugins.gitclient;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import org.eclipse.jgit.transport.URIish;
+
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+/**
+ * Reduces the spellings of the URL of a repository to a single one, so that credentials registered for
+ * <tt>https://GitHub.com:443/org/repo.git/</tt> are found for <tt>https://github.com/org/repo</tt>.
+ *
+ * <p>
+ * The scheme and the host are lower cased, the default port of the scheme and the password are dropped,
+ * and so are the trailing slashes and <tt>.git</tt> suffix of the path. The user name is kept, since
+ * different users of the same repository may have different credentials.
+ *
+ * <p>
+ * The results are kept in a bounded cache, sized with the
+ * <tt>org.jenkinsci.plugins.gitclient.GitURICanonicalizer.cacheSize</tt> system property, since the same
+ * URLs are looked up again and again, at every poll.
+ *
+ * @since 1.6.2
+ */
+public final class GitURICanonicalizer {
+    private static final LruCache<String, String> CACHE =
+            new LruCache<String, String>(Integer.getInteger(GitURICanonicalizer.class.getName() + ".cacheSize", 4096));
+
+    private GitURICanonicalizer() {
+    }
+
+    /**
+     * @return the canonical spelling of the URL, or the trimmed URL itself if it can't be parsed.
+     */
+    @CheckForNull
+    public static String canonicalize(@CheckForNull String url) {
+        if (url == null)
+            return null;
+        String trimmed = url.trim();
+        String canonical = CACHE.get(trimmed);
+        if (canonical == null) {
+            try {
+                canonical = canonicalize(new URIish(trimmed));
+            } catch (URISyntaxException e) {
+                canonical = trimmed;
+            }
+            CACHE.put(trimmed, canonical);
+        }
+        return canonical;
+    }
+
+    @CheckForNull
+    public static String canonicalize(@CheckForNull URIish uri) {
+        if (uri == null)
+            return null;
+        String scheme = uri.getScheme();
+        if (scheme != null) {
+            scheme = scheme.toLowerCase(Locale.ENGLISH);
+            uri = uri.setScheme(scheme);
+        }
+        if (uri.getHost() != null)
+            uri = uri.setHost(uri.getHost().toLowerCase(Locale.ENGLISH));
+        if (uri.getPort() > 0 && uri.getPort() == defaultPortOf(scheme))
+            uri = uri.setPort(-1);
+        uri = uri.setPass(null);
+
+        String path = uri.getPath();
+        if (path != null) {
+            if (uri.getHost() != null)
+                path = path.replaceAll("/{2,}", "/");
+            path = stripTrailingSlashes(path);
+            if (path.endsWith(".git"))
+                path = stripTrailingSlashes(path.substring(0, path.length() - ".git".length()));
+            uri = uri.setPath(path);
+        }
+        return uri.toString();
+    }
+
+    private static String stripTrailingSlashes(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/')
+            end--;
+        return path.substring(0, end);
+    }
+
+    private static int defaultPortOf(@CheckForNull String scheme) {
+        if ("http".equals(scheme))
+            return 80;
+        if ("https".equals(scheme))
+            return 443;
+        if ("ssh".equals(scheme) || "git+ssh".equals(scheme) || "ssh+git".equals(scheme))
+            return 22;
+        if ("git".equals(scheme))
+            return 9418;
+        return -1;
+    }
+}
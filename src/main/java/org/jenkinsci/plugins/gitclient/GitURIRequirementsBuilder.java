@@ -133,6 +133,12 @@ public class GitURIRequirementsBuilder {
             + "[\\\\/]" + RELATIVE_PATH_P // //$NON-NLS-1$
             + ")$"); //$NON-NLS-1$
 
+    /**
+     * The most recently parsed URIs, since the same ones are looked up over and over.
+     */
+    private static final LruCache<String, ParsedUri> PARSED =
+            new LruCache<String, ParsedUri>(Integer.getInteger(GitURIRequirementsBuilder.class.getName() + ".cacheSize", 4096));
+
     /**
      * The list of requirements.
      */
@@ -187,37 +193,80 @@ public class GitURIRequirementsBuilder {
      */
     @NonNull
     public GitURIRequirementsBuilder withUri(@CheckForNull String uri) {
-        if (uri != null) {
-            Matcher matcher = SINGLE_SLASH_FILE_URI.matcher(uri);
-            if (matcher.matches()) {
-                return withScheme("file").withoutHostname().withoutHostnamePort();
-            }
-            matcher = FULL_URI.matcher(uri);
-            if (matcher.matches()) {
-                withScheme(matcher.group(1));
-                if (!"file".equals(matcher.group(1)) && matcher.group(4) != null) {
-                    if (matcher.group(5) != null) {
-                        withHostnamePort(matcher.group(4), Integer.parseInt(matcher.group(5)));
-                    } else {
-                        withHostname(matcher.group(4)).withoutHostnamePort();
-                    }
+        if (uri == null) {
+            return withoutScheme().withoutHostname().withoutHostnamePort();
+        }
+        ParsedUri parsed = PARSED.get(uri);
+        if (parsed == null) {
+            parsed = parse(uri);
+            PARSED.put(uri, parsed);
+        }
+        withScheme(parsed.scheme);
+        if (parsed.setsHostname) {
+            withHostnamePort(parsed.hostname, parsed.port);
+        }
+        return this;
+    }
+
+    /**
+     * Matches the URI against the patterns, which is costly enough for the results to be cached.
+     */
+    @NonNull
+    private static ParsedUri parse(@NonNull String uri) {
+        Matcher matcher = SINGLE_SLASH_FILE_URI.matcher(uri);
+        if (matcher.matches()) {
+            return new ParsedUri("file", true, null, -1);
+        }
+        matcher = FULL_URI.matcher(uri);
+        if (matcher.matches()) {
+            if (!"file".equals(matcher.group(1)) && matcher.group(4) != null) {
+                if (matcher.group(5) != null) {
+                    return new ParsedUri(matcher.group(1), true, matcher.group(4), Integer.parseInt(matcher.group(5)));
+                } else {
+                    return new ParsedUri(matcher.group(1), true, matcher.group(4), -1);
                 }
-                return this;
-            }
-            matcher = RELATIVE_SCP_URI.matcher(uri);
-            if (matcher.matches()) {
-                return withScheme("ssh").withHostnamePort(matcher.group(3),22);
-            }
-            matcher = ABSOLUTE_SCP_URI.matcher(uri);
-            if (matcher.matches()) {
-                return withScheme("ssh").withHostnamePort(matcher.group(3),22);
-            }
-            matcher = LOCAL_FILE.matcher(uri);
-            if (matcher.matches()) {
-                return withScheme("file").withoutHostname().withoutHostnamePort();
             }
+            // the hostname requirements are left as they are
+            return new ParsedUri(matcher.group(1), false, null, -1);
+        }
+        matcher = RELATIVE_SCP_URI.matcher(uri);
+        if (matcher.matches()) {
+            return new ParsedUri("ssh", true, matcher.group(3), 22);
+        }
+        matcher = ABSOLUTE_SCP_URI.matcher(uri);
+        if (matcher.matches()) {
+            return new ParsedUri("ssh", true, matcher.group(3), 22);
+        }
+        matcher = LOCAL_FILE.matcher(uri);
+        if (matcher.matches()) {
+            return new ParsedUri("file", true, null, -1);
+        }
+        return new ParsedUri(null, true, null, -1);
+    }
+
+    /**
+     * The requirements of a URI.
+     */
+    private static final class ParsedUri {
+        /**
+         * The scheme, or {@code null} to remove the scheme requirements.
+         */
+        @CheckForNull
+        private final String scheme;
+        /**
+         * Whether the hostname requirements are replaced by {@link #hostname} and {@link #port}.
+         */
+        private final boolean setsHostname;
+        @CheckForNull
+        private final String hostname;
+        private final int port;
+
+        private ParsedUri(@CheckForNull String scheme, boolean setsHostname, @CheckForNull String hostname, int port) {
+            this.scheme = scheme;
+            this.setsHostname = setsHostname;
+            this.hostname = hostname;
+            this.port = port;
         }
-        return withoutScheme().withoutHostname().withoutHostnamePort();
     }
 
     /**
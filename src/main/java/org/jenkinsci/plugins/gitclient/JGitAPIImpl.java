@@ -7,9 +7,11 @@ import hudson.FilePath;
 import hudson.Util;
 import hudson.model.TaskListener;
 import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchList;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitLockFailedException;
 import hudson.plugins.git.IndexEntry;
+import hudson.plugins.git.IndexEntryList;
 import hudson.plugins.git.Revision;
 import hudson.util.IOUtils;
 import org.eclipse.jgit.api.AddNoteCommand;
@@ -26,14 +28,20 @@ import org.eclipse.jgit.api.errors.JGitInternalException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffEntry.ChangeType;
 import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
 import org.eclipse.jgit.errors.InvalidPatternException;
-import org.eclipse.jgit.errors.NotSupportedException;
-import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.fnmatch.FileNameMatcher;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
 import org.eclipse.jgit.lib.*;
 import org.eclipse.jgit.lib.RefUpdate.Result;
 import org.eclipse.jgit.merge.MergeStrategy;
+import org.eclipse.jgit.merge.Merger;
+import org.eclipse.jgit.merge.ResolveMerger;
 import org.eclipse.jgit.notes.Note;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevFlag;
@@ -45,28 +53,42 @@ import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.MaxCountRevFilter;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
 import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.storage.pack.PackConfig;
 import org.eclipse.jgit.submodule.SubmoduleWalk;
 import org.eclipse.jgit.transport.CredentialsProvider;
-import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PushResult;
 import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.SshSessionFactory;
 import org.eclipse.jgit.transport.TagOpt;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jenkinsci.plugins.gitclient.trilead.SmartCredentialsProvider;
 import org.jenkinsci.plugins.gitclient.trilead.TrileadSessionFactory;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URISyntaxException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -75,8 +97,10 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static org.apache.commons.lang.StringUtils.*;
@@ -155,84 +179,520 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         }
     }
 
-    public void checkout(String ref) throws GitException {
-        boolean retried = false;
-        Repository repo = null;
-        while (true) {
-            try {
-                repo = getRepository();
-                git(repo).checkout().setName(ref).setForce(true).call();
-                return;
-            } catch (CheckoutConflictException e) {
-                if (repo != null) {
-                    repo.close(); /* Close and null for immediate reuse */
-                    repo = null;
+    public void checkout(final String ref) throws GitException, InterruptedException {
+        checkout(ref, false);
+    }
+
+    /**
+     * @param incremental
+     *      See {@link CheckoutCommand#incremental(boolean)}.
+     */
+    private void checkout(final String ref, final boolean incremental) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                boolean retried = false;
+                Repository repo = null;
+                while (true) {
+                    try {
+                        repo = getRepository();
+                        SparseCheckout sparse = sparseCheckoutOf(repo);
+                        if (sparse != null) {
+                            sparseCheckout(repo, ref, null, sparse);
+                            return;
+                        }
+                        if (incremental && !retried && checkoutIncrementally(repo, ref))
+                            return;
+                        git(repo).checkout().setName(ref).setForce(true).call();
+                        return;
+                    } catch (CheckoutConflictException e) {
+                        if (repo != null) {
+                            repo.close(); /* Close and null for immediate reuse */
+                            repo = null;
+                        }
+                        // "git checkout -f" seems to overwrite local untracked files but git CheckoutCommand doesn't.
+                        // see the test case GitAPITestCase.test_localCheckoutConflict. so in this case we manually
+                        // clean up the conflicts and try it again
+
+                        if (retried)
+                            throw new GitException("Could not checkout " + ref, e);
+                        retried = true;
+                        repo = getRepository(); /* Reusing repo declared and assigned earlier */
+                        for (String path : e.getConflictingPaths()) {
+                            File conflict = new File(repo.getWorkTree(), path);
+                            conflict.delete();
+                        }
+                    } catch (GitAPIException e) {
+                        throw new GitException("Could not checkout " + ref, e);
+                    } catch (IOException e) {
+                        throw new GitException("Could not checkout " + ref, e);
+                    } catch (JGitInternalException e) {
+                        if (Pattern.matches("Cannot lock.+", e.getMessage())){
+                            throw new GitLockFailedException("Could not lock repository. Please try again", e);
+                        } else {
+                            throw e;
+                        }
+                    } finally {
+                        if (repo != null) repo.close();
+                    }
                 }
-                // "git checkout -f" seems to overwrite local untracked files but git CheckoutCommand doesn't.
-                // see the test case GitAPITestCase.test_localCheckoutConflict. so in this case we manually
-                // clean up the conflicts and try it again
-
-                if (retried)
-                    throw new GitException("Could not checkout " + ref, e);
-                retried = true;
-                repo = getRepository(); /* Reusing repo declared and assigned earlier */
-                for (String path : e.getConflictingPaths()) {
-                    File conflict = new File(repo.getWorkTree(), path);
-                    conflict.delete();
+            }
+        });
+    }
+
+    public void checkout(final String ref, final String branch) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                Repository repo = null;
+                String start = ref;
+                try {
+                    repo = getRepository();
+                    if (start == null) start = repo.resolve(HEAD).name();
+                    SparseCheckout sparse = sparseCheckoutOf(repo);
+                    if (sparse != null) {
+                        if (repo.getRef(R_HEADS + branch) != null)
+                            throw new GitException("Could not checkout " + branch + ": the branch already exists");
+                        sparseCheckout(repo, start, branch, sparse);
+                        return;
+                    }
+                    git(repo).checkout().setName(branch).setCreateBranch(true).setForce(true).setStartPoint(start).call();
+                } catch (IOException e) {
+                    throw new GitException("Could not checkout " + branch + " with start point " + start, e);
+                } catch (GitAPIException e) {
+                    throw new GitException("Could not checkout " + branch + " with start point " + start, e);
+                } finally {
+                    if (repo != null) repo.close();
                 }
-            } catch (GitAPIException e) {
-                throw new GitException("Could not checkout " + ref, e);
-            } catch (JGitInternalException e) {
-                if (Pattern.matches("Cannot lock.+", e.getMessage())){
-                    throw new GitLockFailedException("Could not lock repository. Please try again", e);
+            }
+        });
+    }
+
+    public void checkoutBranch(final String branch, final String ref) throws GitException, InterruptedException {
+        checkoutBranch(branch, ref, false);
+    }
+
+    private void checkoutBranch(final String branch, final String ref, final boolean incremental) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                Repository repo = null;
+                try {
+                    repo = getRepository();
+                    ObjectId target = repo.resolve(ref);
+                    if (branch != null && incremental && target != null) {
+                        // like command line git, first checkout to detached HEAD: once the branch is moved,
+                        // HEAD no longer tells which commit the working tree holds when the branch is current
+                        checkout(target.name(), true);
+                    }
+                    RefUpdate refUpdate =
+                        branch == null ? repo.updateRef(Constants.HEAD, true)
+                                       : repo.updateRef(R_HEADS + branch);
+                    refUpdate.setNewObjectId(target);
+                    switch (refUpdate.forceUpdate()) {
+                    case LOCK_FAILURE:
+                        throw new GitLockFailedException("Could not lock " + refUpdate.getName() + ". Please try again");
+                    case NOT_ATTEMPTED:
+                    case REJECTED:
+                    case REJECTED_CURRENT_BRANCH:
+                    case IO_FAILURE:
+                    case RENAMED:
+                        throw new GitException("Could not update " + (branch!= null ? branch : "") + " to " + ref);
+                    }
+
+                    if (branch != null) checkout(branch, incremental);
+
+                } catch (IOException e) {
+                    throw new GitException("Could not checkout " + (branch!= null ? branch : "") + " with start point " + ref, e);
+                } finally {
+                    if (repo != null) repo.close();
+                }
+            }
+        });
+    }
+
+    public CheckoutCommand checkout() {
+        return new CheckoutCommand() {
+            String ref;
+            String branch;
+            boolean deleteBranch;
+            List<String> sparseCheckoutPaths;
+            boolean incremental;
+
+            public CheckoutCommand ref(String ref) {
+                this.ref = ref;
+                return this;
+            }
+
+            public CheckoutCommand branch(String branch) {
+                this.branch = branch;
+                return this;
+            }
+
+            public CheckoutCommand deleteBranchIfExist(boolean deleteBranch) {
+                this.deleteBranch = deleteBranch;
+                return this;
+            }
+
+            public CheckoutCommand sparseCheckoutPaths(List<String> sparseCheckoutPaths) {
+                this.sparseCheckoutPaths = sparseCheckoutPaths;
+                return this;
+            }
+
+            public CheckoutCommand timeout(Integer timeout) {
+                // checkout runs in process, there is nothing to kill
+                return this;
+            }
+
+            public CheckoutCommand incremental(boolean incremental) {
+                this.incremental = incremental;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+                    void run() throws GitException, InterruptedException {
+                        if (sparseCheckoutPaths == null) {
+                            // the regular methods honor the patterns already stored in the repository
+                            if (branch != null && deleteBranch)
+                                checkoutBranch(branch, ref, incremental);
+                            else if (branch != null)
+                                checkout(ref, branch);
+                            else
+                                checkout(ref, incremental);
+                            return;
+                        }
+
+                        Repository repo = null;
+                        try {
+                            repo = getRepository();
+                            if (branch != null && !deleteBranch && repo.getRef(R_HEADS + branch) != null)
+                                throw new GitException("Could not checkout " + branch + ": the branch already exists");
+                            SparseCheckout sparse = SparseCheckout.of(sparseCheckoutPaths);
+                            writeSparseCheckout(repo, sparse);
+                            sparseCheckout(repo, ref, branch, sparse.isFull() ? null : sparse);
+                        } catch (IOException e) {
+                            throw new GitException("Could not checkout " + (branch != null ? branch : ref), e);
+                        } finally {
+                            if (repo != null) repo.close();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Loads the sparse checkout patterns of the repository, if sparse checkout is enabled.
+     */
+    @CheckForNull
+    private SparseCheckout sparseCheckoutOf(Repository repo) throws IOException {
+        if (!repo.getConfig().getBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout", false))
+            return null;
+        SparseCheckout sparse = SparseCheckout.read(repo.getDirectory());
+        return sparse == null || sparse.isFull() ? null : sparse;
+    }
+
+    /**
+     * Stores the sparse checkout patterns in the repository, the same way command line git does,
+     * or disables sparse checkout if they select the whole tree.
+     */
+    private void writeSparseCheckout(Repository repo, SparseCheckout sparse) throws IOException {
+        StoredConfig config = repo.getConfig();
+        if (sparse.isFull()) {
+            SparseCheckout.fileOf(repo.getDirectory()).delete();
+        } else {
+            sparse.write(repo.getDirectory());
+        }
+        config.setBoolean(ConfigConstants.CONFIG_CORE_SECTION, null, "sparseCheckout", !sparse.isFull());
+        config.save();
+    }
+
+    /**
+     * Checks out a commit, only materializing the files selected by the sparse checkout patterns.
+     *
+     * <p>
+     * JGit's own checkout ignores <tt>core.sparseCheckout</tt>, so this rebuilds the index from the commit
+     * and writes the selected entries to the working tree. The entries left out are flagged skip-worktree,
+     * as command line git does, so that they don't show up as deleted.
+     *
+     * @param branch
+     *      If non-null, this branch is created or reset to the commit, and checked out.
+     * @param sparse
+     *      Patterns to apply, or null to check out the whole tree.
+     */
+    private void sparseCheckout(Repository repo, @Nullable String ref, @Nullable String branch, @Nullable SparseCheckout sparse) throws IOException {
+        ObjectId id = repo.resolve(ref == null ? HEAD : ref);
+        if (id == null)
+            throw new GitException("Could not checkout " + ref + ": unknown revision");
+
+        long indexTime = repo.getIndexFile().lastModified();
+        ObjectReader or = repo.newObjectReader();
+        RevWalk walk = new RevWalk(or);
+        DirCache dc = repo.lockDirCache();
+        try {
+            RevCommit commit = walk.parseCommit(id);
+            File workTree = repo.getWorkTree();
+
+            Map<String, DirCacheEntry> previous = new HashMap<String, DirCacheEntry>();
+            for (int i = 0; i < dc.getEntryCount(); i++) {
+                DirCacheEntry e = dc.getEntry(i);
+                previous.put(e.getPathString(), e);
+            }
+
+            DirCacheBuilder builder = dc.builder();
+            builder.addTree(new byte[0], DirCacheEntry.STAGE_0, or, commit.getTree());
+            builder.finish();
+
+            List<DirCacheEntry> excluded = new ArrayList<DirCacheEntry>();
+            for (int i = 0; i < dc.getEntryCount(); i++) {
+                DirCacheEntry e = dc.getEntry(i);
+                String path = e.getPathString();
+                File f = new File(workTree, path);
+                DirCacheEntry old = previous.remove(path);
+                if (sparse != null && !sparse.includes(path)) {
+                    excluded.add(e);
+                    deleteFromWorkTree(workTree, f);
+                } else if (FileMode.GITLINK.equals(e.getRawMode())) {
+                    f.mkdirs();
+                } else if (old != null && !old.isAssumeValid() && old.getRawMode() == e.getRawMode()
+                        && old.getObjectId().equals(e.getObjectId()) && !isModified(old, f, indexTime, or)) {
+                    // untouched since the last checkout
+                    e.setLength(old.getLength());
+                    e.setLastModified(old.getLastModified());
                 } else {
-                    throw e;
+                    DirCacheCheckout.checkoutEntry(repo, f, e, or);
                 }
-            } finally {
-                if (repo != null) repo.close();
             }
+            // files that are no longer part of the tree, if they were checked out
+            for (DirCacheEntry old : previous.values())
+                deleteFromWorkTree(workTree, new File(workTree, old.getPathString()));
+
+            if (!excluded.isEmpty()) {
+                Map<String, DirCacheEntry> skipped = new HashMap<String, DirCacheEntry>();
+                for (DirCacheEntry e : skipWorkTree(repo, excluded))
+                    skipped.put(e.getPathString(), e);
+                builder = dc.builder();
+                for (int i = 0; i < dc.getEntryCount(); i++) {
+                    DirCacheEntry e = dc.getEntry(i);
+                    DirCacheEntry s = skipped.get(e.getPathString());
+                    builder.add(s != null ? s : e);
+                }
+                builder.finish();
+            }
+
+            dc.write();
+            if (!dc.commit())
+                throw new GitLockFailedException("Could not lock repository. Please try again");
+
+            Ref r = ref == null ? null : repo.getRef(ref);
+            if (branch != null) {
+                RefUpdate u = repo.updateRef(R_HEADS + branch);
+                u.setNewObjectId(commit);
+                checkRefUpdate(u.forceUpdate(), branch);
+                checkRefUpdate(repo.updateRef(HEAD).link(R_HEADS + branch), branch);
+            } else if (r != null && r.getName().startsWith(R_HEADS)) {
+                checkRefUpdate(repo.updateRef(HEAD).link(r.getName()), ref);
+            } else {
+                RefUpdate u = repo.updateRef(HEAD, true);
+                u.setNewObjectId(commit);
+                checkRefUpdate(u.forceUpdate(), ref);
+            }
+        } finally {
+            dc.unlock();
+            walk.dispose();
+            or.release();
         }
     }
 
-    public void checkout(String ref, String branch) throws GitException {
-        Repository repo = null;
+    /**
+     * Checks out the ref by only updating the paths that differ between the trees of <tt>HEAD</tt> and of the ref.
+     * Identical subtrees are skipped by their ids without being read, and only the files to update are checked,
+     * trusting the index for all the others. JGit's checkout walks the whole working tree instead.
+     *
+     * @return false if the checkout can't be done this way: without <tt>HEAD</tt>, for paths other than regular
+     *      files, if a path to update has staged or local changes or is in the way, or if a file can't be written.
+     *      The index and <tt>HEAD</tt> are then left untouched, so that a forced checkout fixes the working tree.
+     */
+    private boolean checkoutIncrementally(Repository repo, String ref) throws IOException {
+        ObjectId head = repo.resolve(HEAD + "^{commit}");
+        ObjectId target = repo.resolve(ref + "^{commit}");
+        if (head == null || target == null)
+            return false;
+
+        File workTree = repo.getWorkTree();
+        long indexTime = repo.getIndexFile().lastModified();
+        ObjectReader or = repo.newObjectReader();
+        RevWalk walk = new RevWalk(or);
+        DirCache dc = repo.lockDirCache();
         try {
-            repo = getRepository();
-            if (ref == null) ref = repo.resolve(HEAD).name();
-            git(repo).checkout().setName(branch).setCreateBranch(true).setForce(true).setStartPoint(ref).call();
+            TreeWalk tw = new TreeWalk(or);
+            tw.addTree(walk.parseTree(head));
+            tw.addTree(walk.parseTree(target));
+            tw.setRecursive(true);
+            tw.setFilter(TreeFilter.ANY_DIFF);
+
+            List<String> deleted = new ArrayList<String>();
+            List<DirCacheEntry> updated = new ArrayList<DirCacheEntry>();
+            while (tw.next()) {
+                String path = tw.getPathString();
+                FileMode oldMode = tw.getFileMode(0), newMode = tw.getFileMode(1);
+                if (!isFileOrMissing(oldMode) || !isFileOrMissing(newMode))
+                    return false;
+                DirCacheEntry e = dc.getEntry(path);
+                File f = new File(workTree, path);
+                if (oldMode == FileMode.MISSING) {
+                    if (e != null || f.exists())
+                        return false;
+                } else if (e == null || e.getStage() != DirCacheEntry.STAGE_0
+                        || !e.getObjectId().equals(tw.getObjectId(0)) || isModified(e, f, indexTime, or)) {
+                    return false;
+                }
+                if (newMode == FileMode.MISSING) {
+                    deleted.add(path);
+                } else {
+                    DirCacheEntry n = new DirCacheEntry(path);
+                    n.setFileMode(newMode);
+                    n.setObjectId(tw.getObjectId(1));
+                    updated.add(n);
+                }
+            }
+
+            DirCacheEditor editor = dc.editor();
+            // deletions first, for a file replaced by a directory
+            for (String path : deleted) {
+                File f = new File(workTree, path);
+                deleteFromWorkTree(workTree, f);
+                if (f.exists())
+                    return false;
+                editor.add(new DirCacheEditor.DeletePath(path));
+            }
+            for (final DirCacheEntry n : updated) {
+                DirCacheCheckout.checkoutEntry(repo, new File(workTree, n.getPathString()), n, or);
+                editor.add(new DirCacheEditor.PathEdit(n) {
+                    @Override
+                    public void apply(DirCacheEntry ent) {
+                        ent.setFileMode(n.getFileMode());
+                        ent.setObjectId(n.getObjectId());
+                        ent.setLength(n.getLength());
+                        ent.setLastModified(n.getLastModified());
+                    }
+                });
+            }
+            if (!editor.commit())
+                throw new GitLockFailedException("Could not lock repository. Please try again");
+
+            Ref r = repo.getRef(ref);
+            if (r != null && r.getName().startsWith(R_HEADS)) {
+                checkRefUpdate(repo.updateRef(HEAD).link(r.getName()), ref);
+            } else {
+                RefUpdate u = repo.updateRef(HEAD, true);
+                u.setNewObjectId(target);
+                checkRefUpdate(u.forceUpdate(), ref);
+            }
+            return true;
         } catch (IOException e) {
-            throw new GitException("Could not checkout " + branch + " with start point " + ref, e);
-        } catch (GitAPIException e) {
-            throw new GitException("Could not checkout " + branch + " with start point " + ref, e);
+            listener.getLogger().println("Checking out all of " + ref + ": " + e.getMessage());
+            return false;
         } finally {
-            if (repo != null) repo.close();
+            dc.unlock();
+            walk.dispose();
+            or.release();
         }
     }
 
-    public void checkoutBranch(String branch, String ref) throws GitException {
-        Repository repo = null;
+    /**
+     * Returns copies of the entries flagged skip-worktree. JGit reads and writes the flag of index version 3,
+     * but has no way to set it, so the copies are read back from an index written with the flag.
+     */
+    private static List<DirCacheEntry> skipWorkTree(Repository repo, List<DirCacheEntry> entries) throws IOException {
+        MessageDigest md = Constants.newMessageDigest();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(buf, md));
+        out.write(new byte[] {'D', 'I', 'R', 'C'});
+        out.writeInt(3);
+        out.writeInt(entries.size());
+        for (DirCacheEntry e : entries) {
+            byte[] path = Constants.encode(e.getPathString());
+            out.write(new byte[24]); // ctime, mtime, dev and ino: the file isn't checked out
+            out.writeInt(e.getRawMode());
+            out.writeInt(0); // uid
+            out.writeInt(0); // gid
+            out.writeInt(e.getLength());
+            e.getObjectId().copyRawTo(out);
+            out.writeShort(0x4000 | Math.min(path.length, 0xfff)); // extended, stage 0
+            out.writeShort(0x4000); // skip-worktree
+            out.write(path);
+            // NUL terminated, and padded to a multiple of 8 bytes
+            int length = 64 + path.length;
+            out.write(new byte[((length + 8) & ~7) - length]);
+        }
+        out.flush();
+        buf.write(md.digest());
+
+        File index = File.createTempFile("sparse", ".index", repo.getDirectory());
         try {
-            repo = getRepository();
-            RefUpdate refUpdate =
-                branch == null ? repo.updateRef(Constants.HEAD, true)
-                               : repo.updateRef(R_HEADS + branch);
-            refUpdate.setNewObjectId(repo.resolve(ref));
-            switch (refUpdate.forceUpdate()) {
-            case NOT_ATTEMPTED:
-            case LOCK_FAILURE:
-            case REJECTED:
-            case REJECTED_CURRENT_BRANCH:
-            case IO_FAILURE:
-            case RENAMED:
-                throw new GitException("Could not update " + (branch!= null ? branch : "") + " to " + ref);
-            }
-
-            if (branch != null) checkout(branch);
+            OutputStream os = new FileOutputStream(index);
+            try {
+                buf.writeTo(os);
+            } finally {
+                os.close();
+            }
+            DirCache dc = DirCache.read(index, repo.getFS());
+            List<DirCacheEntry> skipped = new ArrayList<DirCacheEntry>(dc.getEntryCount());
+            for (int i = 0; i < dc.getEntryCount(); i++)
+                skipped.add(dc.getEntry(i));
+            return skipped;
+        } finally {
+            index.delete();
+        }
+    }
 
-        } catch (IOException e) {
-            throw new GitException("Could not checkout " + (branch!= null ? branch : "") + " with start point " + ref, e);
+    private static boolean isFileOrMissing(FileMode mode) {
+        return mode == FileMode.MISSING || mode == FileMode.REGULAR_FILE || mode == FileMode.EXECUTABLE_FILE;
+    }
+
+    /**
+     * Whether the file of the working tree differs from its index entry. The stat information of the entry is
+     * trusted unless the file may have changed in the same instant the index was written (racily clean),
+     * then the content is compared.
+     */
+    private static boolean isModified(DirCacheEntry e, File f, long indexTime, ObjectReader or) throws IOException {
+        if (!f.isFile())
+            return true;
+        long length = f.length();
+        if (length == e.getLength() && f.lastModified() == e.getLastModified() && e.getLastModified() < indexTime)
+            return false;
+        if (length != or.getObjectSize(e.getObjectId(), OBJ_BLOB))
+            return true;
+        InputStream in = new FileInputStream(f);
+        try {
+            return !new ObjectInserter.Formatter().idFor(OBJ_BLOB, length, in).equals(e.getObjectId());
         } finally {
-            if (repo != null) repo.close();
+            in.close();
+        }
+    }
+
+    private void checkRefUpdate(Result result, String ref) {
+        switch (result) {
+        case LOCK_FAILURE:
+            throw new GitLockFailedException("Could not lock " + ref + ". Please try again");
+        case NOT_ATTEMPTED:
+        case REJECTED:
+        case REJECTED_CURRENT_BRANCH:
+        case IO_FAILURE:
+        case RENAMED:
+            throw new GitException("Could not update " + ref + ": " + result);
+        }
+    }
+
+    /**
+     * Deletes a file from the working tree, along with the directories it leaves empty.
+     */
+    private static void deleteFromWorkTree(File workTree, File f) {
+        if (!f.delete())
+            return;
+        for (File dir = f.getParentFile(); dir != null && !dir.equals(workTree); dir = dir.getParentFile()) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete())
+                break;
         }
     }
 
@@ -357,6 +817,8 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return new org.jenkinsci.plugins.gitclient.FetchCommand() {
             public URIish url;
             public List<RefSpec> refspecs;
+            public Integer timeout;
+            public TransferStats.Handler statsHandler;
 
             public org.jenkinsci.plugins.gitclient.FetchCommand from(URIish remote, List<RefSpec> refspecs) {
                 this.url = remote;
@@ -372,20 +834,83 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 throw new UnsupportedOperationException("JGit don't (yet) support fetch --depth");
             }
 
+            public org.jenkinsci.plugins.gitclient.FetchCommand filter(String filter) {
+                throw new UnsupportedOperationException("JGit doesn't support partial fetch (--filter=" + filter + "), use command line git");
+            }
+
+            public org.jenkinsci.plugins.gitclient.FetchCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            public org.jenkinsci.plugins.gitclient.FetchCommand stats(TransferStats.Handler handler) {
+                this.statsHandler = handler;
+                return this;
+            }
+
             public void execute() throws GitException, InterruptedException {
+                WorkspaceLockManager.retry(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+                    void run() throws GitException, InterruptedException {
+                        Repository repo = null;
+                        FetchCommand fetch = null;
+                        try {
+                            repo = getRepository();
+                            fetch = git(repo).fetch().setTagOpt(TagOpt.FETCH_TAGS);
+                            fetch.setRemote(url.toString());
+                            fetch.setCredentialsProvider(getProvider());
+                            if (timeout != null)
+                                fetch.setTimeout((int) TimeUnit.MINUTES.toSeconds(timeout));
+                            ProgressMonitor progress = new ProgressMonitor(listener, "fetch");
+                            fetch.setProgressMonitor(progress);
+
+                            // see http://stackoverflow.com/questions/14876321/jgit-fetch-dont-update-tag
+                            List<RefSpec> refSpecs = new ArrayList<RefSpec>();
+                            refSpecs.add(new RefSpec("+refs/tags/*:refs/tags/*"));
+                            if (refspecs != null)
+                                for (RefSpec rs: refspecs)
+                                    if (rs != null)
+                                        refSpecs.add(rs);
+                            fetch.setRefSpecs(refSpecs);
+
+                            fetch.call();
+                            TransferStats stats = progress.getStats();
+                            stats.publish(listener);
+                            if (statsHandler != null)
+                                statsHandler.transferred(stats);
+                        } catch (GitAPIException e) {
+                            throw new GitException(e);
+                        } catch (IOException e) {
+                            throw new GitException("Failed to report the fetch from " + url, e);
+                        } finally {
+                            if (fetch != null && fetch.getRepository() != null) fetch.getRepository().close();
+                            if (repo != null) repo.close();
+                        }
+                    }
+                });
+                RepositoryMaintenance.afterFetch(JGitAPIImpl.this);
+            }
+        };
+    }
+
+    public void fetch(URIish url, List<RefSpec> refspecs) throws GitException, InterruptedException {
+        fetch_().from(url, refspecs).execute();
+    }
+
+    public void fetch(final String remoteName, final RefSpec... refspec) throws GitException, InterruptedException {
+        WorkspaceLockManager.retry(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
                 Repository repo = null;
-                FetchCommand fetch = null;
                 try {
                     repo = getRepository();
-                    fetch = git(repo).fetch().setTagOpt(TagOpt.FETCH_TAGS);
-                    fetch.setRemote(url.toString());
+                    FetchCommand fetch = git(repo).fetch().setTagOpt(TagOpt.FETCH_TAGS);
+                    if (remoteName != null) fetch.setRemote(remoteName);
                     fetch.setCredentialsProvider(getProvider());
 
                     // see http://stackoverflow.com/questions/14876321/jgit-fetch-dont-update-tag
                     List<RefSpec> refSpecs = new ArrayList<RefSpec>();
                     refSpecs.add(new RefSpec("+refs/tags/*:refs/tags/*"));
-                    if (refspecs != null)
-                        for (RefSpec rs: refspecs)
+                    if (refspec != null && refspec.length > 0)
+                        for (RefSpec rs: refspec)
                             if (rs != null)
                                 refSpecs.add(rs);
                     fetch.setRefSpecs(refSpecs);
@@ -394,61 +919,93 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 } catch (GitAPIException e) {
                     throw new GitException(e);
                 } finally {
-                    if (fetch != null && fetch.getRepository() != null) fetch.getRepository().close();
                     if (repo != null) repo.close();
                 }
             }
-        };
-    }
-
-    public void fetch(URIish url, List<RefSpec> refspecs) throws GitException, InterruptedException {
-        fetch_().from(url, refspecs).execute();
+        });
+        RepositoryMaintenance.afterFetch(this);
     }
 
-    public void fetch(String remoteName, RefSpec... refspec) throws GitException {
+    void maintain(RepositoryMaintenance.Counts counts, TaskListener listener) throws GitException {
         Repository repo = null;
         try {
             repo = getRepository();
-            FetchCommand fetch = git(repo).fetch().setTagOpt(TagOpt.FETCH_TAGS);
-            if (remoteName != null) fetch.setRemote(remoteName);
-            fetch.setCredentialsProvider(getProvider());
-
-            // see http://stackoverflow.com/questions/14876321/jgit-fetch-dont-update-tag
-            List<RefSpec> refSpecs = new ArrayList<RefSpec>();
-            refSpecs.add(new RefSpec("+refs/tags/*:refs/tags/*"));
-            if (refspec != null && refspec.length > 0)
-                for (RefSpec rs: refspec)
-                    if (rs != null)
-                        refSpecs.add(rs);
-            fetch.setRefSpecs(refSpecs);
-
-            fetch.call();
-        } catch (GitAPIException e) {
-            throw new GitException(e);
+            // JGit can only repack everything, and has no commit-graph
+            GC gc = new GC((FileRepository) repo);
+            // cancelled when the thread is interrupted
+            gc.setProgressMonitor(new ProgressMonitor(listener, "gc"));
+            gc.setPackConfig(packConfig(repo, counts.bitmaps));
+            if (counts.needsPackRefs() || counts.needsFullRepack())
+                gc.packRefs();
+            if (counts.needsRepack() || counts.needsFullRepack()) {
+                gc.repack();
+                gc.prunePacked();
+            }
+        } catch (IOException e) {
+            throw new GitException("Failed to maintain " + workspace, e);
         } finally {
             if (repo != null) repo.close();
         }
     }
 
-    public void fetch(String remoteName, RefSpec refspec) throws GitException {
+    public RepackCommand repack() {
+        return new RepackCommand() {
+            boolean bitmaps = true;
+
+            public RepackCommand bitmaps(boolean bitmaps) {
+                this.bitmaps = bitmaps;
+                return this;
+            }
+
+            public RepackCommand timeout(Integer timeout) {
+                // JGit repacks in process
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+                    void run() throws GitException {
+                        Repository repo = null;
+                        try {
+                            repo = getRepository();
+                            GC gc = new GC((FileRepository) repo);
+                            gc.setPackConfig(packConfig(repo, bitmaps));
+                            gc.setProgressMonitor(new ProgressMonitor(listener, "repack"));
+                            gc.packRefs();
+                            gc.repack();
+                            gc.prunePacked();
+                        } catch (IOException e) {
+                            throw new GitException("Failed to repack " + workspace, e);
+                        } finally {
+                            if (repo != null) repo.close();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * The pack configuration of the repository, with bitmaps written only if asked:
+     * they only pay off on repositories others fetch from.
+     */
+    private static PackConfig packConfig(Repository repo, boolean bitmaps) {
+        PackConfig config = new PackConfig(repo);
+        config.setBuildBitmaps(bitmaps);
+        return config;
+    }
+
+    public void fetch(String remoteName, RefSpec refspec) throws GitException, InterruptedException {
         fetch(remoteName, new RefSpec[] {refspec});
     }
 
     public Map<String, ObjectId> getHeadRev(String url) throws GitException, InterruptedException {
         Map<String, ObjectId> heads = new HashMap<String, ObjectId>();
         try {
-            Repository repo = openDummyRepository();
-            final Transport tn = Transport.open(repo, new URIish(url));
-            tn.setCredentialsProvider(getProvider());
-            final FetchConnection c = tn.openFetch();
-            try {
-                for (final Ref r : c.getRefs()) {
-                    heads.put(r.getName(), r.getPeeledObjectId() != null ? r.getPeeledObjectId() : r.getObjectId());
-                }
-            } finally {
-                c.close();
-                tn.close();
-                repo.close();
+            for (final Ref r : TransportPool.getRefs(new URIish(url), getProvider()).values()) {
+                if (!r.getName().startsWith(R_HEADS))
+                    continue; // like ls-remote -h
+                heads.put(r.getName(), r.getPeeledObjectId() != null ? r.getPeeledObjectId() : r.getObjectId());
             }
         } catch (IOException e) {
             throw new GitException(e);
@@ -463,20 +1020,9 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             if (!branch.startsWith(R_HEADS))
                 branch = R_HEADS+branch;
 
-            Repository repo = openDummyRepository();
-            final Transport tn = Transport.open(repo, new URIish(remoteRepoUrl));
-            tn.setCredentialsProvider(getProvider());
-            final FetchConnection c = tn.openFetch();
-            try {
-                for (final Ref r : c.getRefs()) {
-                    if (branch.equals(r.getName())) {
-                        return r.getPeeledObjectId() != null ? r.getPeeledObjectId() : r.getObjectId();
-                    }
-                }
-            } finally {
-                c.close();
-                tn.close();
-                repo.close();
+            final Ref r = TransportPool.getRefs(new URIish(remoteRepoUrl), getProvider()).get(branch);
+            if (r != null) {
+                return r.getPeeledObjectId() != null ? r.getPeeledObjectId() : r.getObjectId();
             }
         } catch (IOException e) {
             throw new GitException(e);
@@ -486,25 +1032,6 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return null;
     }
 
-    /**
-     * Creates a empty dummy {@link Repository} to keep JGit happy where it wants a valid {@link Repository} operation
-     * for remote objects.
-     */
-    private Repository openDummyRepository() throws IOException {
-        final File tempDir = Util.createTempDir();
-        return new FileRepository(tempDir) {
-            @Override
-            public void close() {
-                super.close();
-                try {
-                    Util.deleteRecursive(tempDir);
-                } catch (IOException e) {
-                    // ignore
-                }
-            }
-        };
-    }
-
     public String getRemoteUrl(String name) throws GitException {
         final Repository repo = getRepository();
         final String url = repo.getConfig().getString("remote",name,"url");
@@ -640,6 +1167,8 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
             Repository repo = getRepository();
             ObjectReader or = repo.newObjectReader();
             RevWalk walk = new RevWalk(or);
+            final List<String> includedPaths = new ArrayList<String>();
+            final List<String> excludedPaths = new ArrayList<String>();
             Writer out;
 
             public ChangelogCommand excludes(String rev) {
@@ -676,6 +1205,16 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 }
             }
 
+            public ChangelogCommand includesPath(String glob) {
+                includedPaths.add(glob);
+                return this;
+            }
+
+            public ChangelogCommand excludesPath(String glob) {
+                excludedPaths.add(glob);
+                return this;
+            }
+
             public ChangelogCommand to(Writer w) {
                 this.out = w;
                 return this;
@@ -707,22 +1246,247 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 PrintWriter pw = new PrintWriter(out,false);
                 try {
                     RawFormatter formatter= new RawFormatter();
+                    // not set on the walk, which would rewrite the parents: the commits not
+                    // changing the paths are skipped by the formatter instead
+                    TreeFilter paths = PathGlobFilter.create(includedPaths, excludedPaths);
+                    // the cached entries are those of the whole commits
+                    ChangelogCache cache = ChangelogCache.isEnabled() && paths == TreeFilter.ALL
+                            ? new ChangelogCache(repo.getDirectory(), "jgit") : null;
                     for (RevCommit commit : walk) {
                         // git whatachanged doesn't show the merge commits unless -m is given
                         if (commit.getParentCount()>1)  continue;
 
-                        formatter.format(commit, null, pw);
+                        if (cache == null) {
+                            formatter.format(commit, null, pw, paths);
+                            continue;
+                        }
+                        RevCommit parent = commit.getParentCount() == 0 ? null : commit.getParent(0);
+                        String entry = cache.get(commit, parent);
+                        if (entry == null) {
+                            StringWriter sw = new StringWriter();
+                            PrintWriter epw = new PrintWriter(sw);
+                            formatter.format(commit, null, epw);
+                            epw.flush();
+                            entry = sw.toString();
+                            cache.put(commit, parent, entry);
+                        }
+                        pw.write(entry);
+                    }
+                } catch (IOException e) {
+                    throw new GitException(e);
+                } finally {
+                    closeResources();
+                    pw.flush();
+                }
+            }
+        };
+    }
+
+    public ArchiveCommand archive() {
+        return new ArchiveCommand() {
+            String treeIsh = HEAD;
+            Format format = Format.TAR;
+            String prefix;
+            final List<String> paths = new ArrayList<String>();
+            OutputStream out;
+            FilePath file;
+
+            public ArchiveCommand treeIsh(String treeIsh) {
+                this.treeIsh = treeIsh;
+                return this;
+            }
+
+            public ArchiveCommand format(Format format) {
+                this.format = format;
+                return this;
+            }
+
+            public ArchiveCommand prefix(String prefix) {
+                this.prefix = prefix;
+                return this;
+            }
+
+            public ArchiveCommand path(String path) {
+                paths.add(path);
+                return this;
+            }
+
+            public ArchiveCommand to(OutputStream out) {
+                this.out = out;
+                return this;
+            }
+
+            public ArchiveCommand to(FilePath file) {
+                this.file = file;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                if (out == null && file == null)
+                    throw new IllegalStateException("No destination given for the archive");
+
+                Repository repo = null;
+                ObjectReader or = null;
+                RevWalk w = null;
+                try {
+                    repo = getRepository();
+                    ObjectId id = repo.resolve(treeIsh);
+                    if (id == null)
+                        throw new GitException("Unknown tree-ish " + treeIsh);
+                    or = repo.newObjectReader();
+                    w = new RevWalk(or);
+
+                    RevObject o = w.peel(w.parseAny(id));
+                    RevTree tree;
+                    long modTime;
+                    if (o instanceof RevCommit) {
+                        tree = ((RevCommit) o).getTree();
+                        modTime = ((RevCommit) o).getCommitTime() * 1000L;
+                    } else if (o instanceof RevTree) {
+                        // git-archive also stamps bare trees with the current time
+                        tree = (RevTree) o;
+                        modTime = System.currentTimeMillis();
+                    } else {
+                        throw new GitException(treeIsh + " is not a tree-ish");
+                    }
+
+                    OutputStream os = out != null ? out : file.write();
+                    try {
+                        TreeArchiver.create(format, or, modTime, os)
+                                .archive(tree, prefix, paths.isEmpty() ? null : PathFilterGroup.createFromStrings(paths));
+                    } finally {
+                        if (out != null) os.flush();
+                        else os.close();
+                    }
+                } catch (IOException e) {
+                    throw new GitException(e);
+                } finally {
+                    if (w != null) w.dispose();
+                    if (or != null) or.release();
+                    if (repo != null) repo.close();
+                }
+            }
+        };
+    }
+
+    public ChangedPathsCommand changedPaths() {
+        return new ChangedPathsCommand() {
+            final List<String> includes = new ArrayList<String>();
+            final List<String> excludes = new ArrayList<String>();
+            Integer n = null;
+            boolean pathsOnly;
+            Handler handler;
+
+            public ChangedPathsCommand excludes(String rev) {
+                excludes.add(rev);
+                return this;
+            }
+
+            public ChangedPathsCommand excludes(ObjectId rev) {
+                return excludes(rev.name());
+            }
+
+            public ChangedPathsCommand includes(String rev) {
+                includes.add(rev);
+                return this;
+            }
+
+            public ChangedPathsCommand includes(ObjectId rev) {
+                return includes(rev.name());
+            }
+
+            public ChangedPathsCommand max(int n) {
+                this.n = n;
+                return this;
+            }
+
+            public ChangedPathsCommand pathsOnly(boolean pathsOnly) {
+                this.pathsOnly = pathsOnly;
+                return this;
+            }
+
+            public ChangedPathsCommand to(Handler handler) {
+                this.handler = handler;
+                return this;
+            }
+
+            private RevCommit parseCommit(Repository repo, RevWalk walk, String rev) throws IOException {
+                ObjectId id = repo.resolve(rev);
+                if (id == null)
+                    throw new GitException("Unknown revision " + rev);
+                return walk.parseCommit(id);
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                if (handler==null)  throw new IllegalStateException();
+
+                Repository repo = null;
+                ObjectReader or = null;
+                RevWalk walk = null;
+                TreeWalk tw = null;
+                try {
+                    repo = getRepository();
+                    or = repo.newObjectReader();
+                    walk = new RevWalk(or);
+                    for (String rev : includes)
+                        walk.markStart(parseCommit(repo, walk, rev));
+                    for (String rev : excludes)
+                        walk.markUninteresting(parseCommit(repo, walk, rev));
+                    if (n != null)
+                        walk.setRevFilter(MaxCountRevFilter.create(n));
+
+                    // one reader and one tree walk for the whole log
+                    tw = new TreeWalk(or);
+                    tw.setRecursive(true);
+                    tw.setFilter(TreeFilter.ANY_DIFF);
+                    RenameDetector rd = pathsOnly ? null : new RenameDetector(repo);
+
+                    for (RevCommit c : walk) {
+                        List<ChangedPath> paths = new ArrayList<ChangedPath>();
+                        if (c.getParentCount() == 0) {
+                            tw.reset();
+                            tw.addTree(new EmptyTreeIterator());
+                            tw.addTree(c.getTree());
+                            scanChangedPaths(tw, rd, or, paths);
+                        }
+                        // the effect of the -m option, which makes the diff produce for each parent of a merge commit
+                        for (RevCommit p : c.getParents()) {
+                            walk.parseHeaders(p);
+                            tw.reset(p.getTree(), c.getTree());
+                            scanChangedPaths(tw, rd, or, paths);
+                        }
+                        handler.changed(c.copy(), paths);
                     }
                 } catch (IOException e) {
                     throw new GitException(e);
                 } finally {
-                    closeResources();
-                    pw.flush();
+                    if (tw != null) tw.release();
+                    if (walk != null) walk.dispose();
+                    if (or != null) or.release();
+                    if (repo != null) repo.close();
                 }
             }
         };
     }
 
+    private static void scanChangedPaths(TreeWalk tw, @Nullable RenameDetector rd, ObjectReader or, List<ChangedPath> paths) throws IOException {
+        List<DiffEntry> diffs = DiffEntry.scan(tw);
+        if (rd != null) {
+            rd.reset();
+            rd.addAll(diffs);
+            diffs = rd.compute(or, null);
+        }
+        for (DiffEntry d : diffs) {
+            ChangeType t = d.getChangeType();
+            paths.add(new ChangedPath(ChangedPath.Status.valueOf(t.name()),
+                    t == ChangeType.RENAME || t == ChangeType.COPY ? d.getScore() : 0,
+                    d.getOldMode().getBits(), d.getNewMode().getBits(),
+                    d.getOldId().toObjectId(), d.getNewId().toObjectId(),
+                    t == ChangeType.ADD ? null : d.getOldPath(),
+                    t == ChangeType.DELETE ? null : d.getNewPath()));
+        }
+    }
+
     /**
      * Formats {@link RevCommit}.
      */
@@ -753,6 +1517,43 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
          *      for merge commits, and git-log/git-whatchanged/etc behaves differently with respect to this.
          */
         void format(RevCommit commit, @Nullable RevCommit parent, PrintWriter pw) throws IOException {
+            format(commit, parent, pw, TreeFilter.ALL);
+        }
+
+        /**
+         * @param paths
+         *      Limits the diff to some paths, like <tt>git whatchanged -- &lt;paths&gt;</tt>.
+         * @return
+         *      false if the commit doesn't change the given paths, in which case nothing is written.
+         */
+        boolean format(RevCommit commit, @Nullable RevCommit parent, PrintWriter pw, TreeFilter paths) throws IOException {
+            // see man git-diff-tree for the format
+            Repository repo = getRepository();
+            ObjectReader or = repo.newObjectReader();
+            TreeWalk tw = new TreeWalk(or);
+            List<DiffEntry> diffs;
+            try {
+                if (parent == null && commit.getParentCount() == 0)
+                    tw.addTree(new EmptyTreeIterator());
+                else
+                    tw.addTree(parent != null ? parent.getTree() : commit.getParent(0).getTree());
+                tw.addTree(commit.getTree());
+                tw.setRecursive(true);
+                tw.setFilter(paths == TreeFilter.ALL ? TreeFilter.ANY_DIFF : AndTreeFilter.create(paths, TreeFilter.ANY_DIFF));
+
+                final RenameDetector rd = new RenameDetector(repo);
+
+                rd.reset();
+                rd.addAll(DiffEntry.scan(tw));
+                diffs = rd.compute(or, null);
+            } finally {
+                tw.release();
+                or.release();
+                repo.close();
+            }
+            if (paths != TreeFilter.ALL && diffs.isEmpty())
+                return false;
+
             if (parent!=null)
                 pw.printf("commit %s (from %s)\n", commit.name(), parent.name());
             else
@@ -772,22 +1573,6 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
 
             pw.println(msg);
 
-            // see man git-diff-tree for the format
-            Repository repo = getRepository();
-            ObjectReader or = repo.newObjectReader();
-            TreeWalk tw = new TreeWalk(or);
-            tw.reset(parent!=null ? parent.getTree() : commit.getParent(0).getTree(), commit.getTree());
-            tw.setRecursive(true);
-            tw.setFilter(TreeFilter.ANY_DIFF);
-
-            final RenameDetector rd = new RenameDetector(repo);
-
-            rd.reset();
-            rd.addAll(DiffEntry.scan(tw));
-            List<DiffEntry> diffs = rd.compute(or, null);
-            tw.release();
-            or.release();
-            repo.close();
             for (DiffEntry diff : diffs) {
                 pw.printf(":%06o %06o %s %s %s\t%s",
                         diff.getOldMode().getBits(),
@@ -803,30 +1588,39 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 pw.println();
                 pw.println();
             }
+            return true;
         }
     }
 
-    public void clean() throws GitException {
-        Repository repo = null;
-        try {
-            repo = getRepository();
-            Git git = git(repo);
-            git.reset().setMode(HARD).call();
-            git.clean().setCleanDirectories(true).setIgnore(false).call();
-        } catch (GitAPIException e) {
-            throw new GitException(e);
-        } finally {
-            if (repo != null) repo.close();
-        }
+    public void clean() throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                Repository repo = null;
+                try {
+                    repo = getRepository();
+                    Git git = git(repo);
+                    git.reset().setMode(HARD).call();
+                    git.clean().setCleanDirectories(true).setIgnore(false).call();
+                } catch (GitAPIException e) {
+                    throw new GitException(e);
+                } finally {
+                    if (repo != null) repo.close();
+                }
+            }
+        });
     }
 
     public CloneCommand clone_() {
         final org.eclipse.jgit.api.CloneCommand base = new org.eclipse.jgit.api.CloneCommand();
         base.setDirectory(workspace);
-        base.setProgressMonitor(new ProgressMonitor(listener));
+        final ProgressMonitor progress = new ProgressMonitor(listener, "clone");
+        base.setProgressMonitor(progress);
         base.setCredentialsProvider(getProvider());
 
         return new CloneCommand() {
+            List<String> sparseCheckoutPaths;
+            WorkspaceTemplate template;
+            TransferStats.Handler statsHandler;
 
             public CloneCommand url(String url) {
                 base.setURI(url);
@@ -853,13 +1647,65 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 return this;
             }
 
+            public CloneCommand sparseCheckoutPaths(List<String> sparseCheckoutPaths) {
+                this.sparseCheckoutPaths = sparseCheckoutPaths;
+                return this;
+            }
+
+            public CloneCommand filter(String filter) {
+                // unlike the other flags, ignoring this one would silently download the whole history
+                throw new UnsupportedOperationException("JGit doesn't support partial clone (--filter=" + filter + "), use command line git");
+            }
+
+            public CloneCommand timeout(Integer timeout) {
+                // JGit has no overall limit, only one on each network read
+                if (timeout != null)
+                    base.setTimeout((int) TimeUnit.MINUTES.toSeconds(timeout));
+                return this;
+            }
+
+            public CloneCommand template(WorkspaceTemplate template) {
+                this.template = template;
+                return this;
+            }
+
+            public CloneCommand stats(TransferStats.Handler handler) {
+                this.statsHandler = handler;
+                return this;
+            }
+
             public void execute() throws GitException, InterruptedException {
                 try {
                     // the directory needs to be clean or else JGit complains
                     if (workspace.exists())
                         Util.deleteContentsRecursive(workspace);
 
+                    if (sparseCheckoutPaths != null && !sparseCheckoutPaths.isEmpty()) {
+                        // like with command line git, the patterns apply to the checkout that follows the clone
+                        base.setNoCheckout(true);
+                        Repository repo = base.call().getRepository();
+                        try {
+                            writeSparseCheckout(repo, SparseCheckout.of(sparseCheckoutPaths));
+                        } finally {
+                            repo.close();
+                        }
+                        transferred();
+                        if (template != null)
+                            listener.getLogger().println("Not using the workspace template " + template + " for a sparse checkout");
+                        return;
+                    }
+
+                    if (template != null) {
+                        base.setNoCheckout(true);
+                        Repository repo = base.call().getRepository();
+                        transferred();
+                        if (!populateFromTemplate(repo))
+                            checkoutHead(repo);
+                        return;
+                    }
+
                     base.call();
+                    transferred();
                 } catch (GitAPIException e) {
                     throw new GitException(e);
                 } catch (IOException e) {
@@ -868,6 +1714,39 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                     if (base.getRepository() != null) base.getRepository().close();
                 }
             }
+
+            private void transferred() throws IOException {
+                TransferStats stats = progress.getStats();
+                stats.publish(listener);
+                if (statsHandler != null)
+                    statsHandler.transferred(stats);
+            }
+
+            private boolean populateFromTemplate(Repository repo) throws IOException, InterruptedException {
+                try {
+                    return template.populate(workspace, listener);
+                } catch (IOException e) {
+                    // the template removed the files it wrote, which JGit wouldn't overwrite
+                    e.printStackTrace(listener.error("Failed to populate the workspace from the template " + template));
+                    return false;
+                }
+            }
+
+            /**
+             * Does the checkout the clone skipped, as JGit would have.
+             */
+            private void checkoutHead(Repository repo) throws IOException {
+                ObjectId tree = repo.resolve(HEAD + "^{tree}");
+                if (tree == null)
+                    return; // empty repository
+                DirCache dc = repo.lockDirCache();
+                try {
+                    DirCacheCheckout co = new DirCacheCheckout(repo, dc, tree);
+                    co.checkout();
+                } finally {
+                    dc.unlock();
+                }
+            }
         };
     }
 
@@ -876,54 +1755,125 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
 
             ObjectId rev;
             MergeStrategy strategy;
+            MergeCommand.PreviewHandler previewHandler;
+            ObjectId previewTarget;
 
             public MergeCommand setRevisionToMerge(ObjectId rev) {
                 this.rev = rev;
                 return this;
             }
 
+            public MergeCommand setPreviewHandler(MergeCommand.PreviewHandler handler) {
+                this.previewHandler = handler;
+                return this;
+            }
+
+            public MergeCommand setPreviewTarget(ObjectId target) {
+                this.previewTarget = target;
+                return this;
+            }
+
             public MergeCommand setStrategy(MergeCommand.Strategy strategy) {
-                if (strategy != null && !strategy.toString().isEmpty() && strategy != MergeCommand.Strategy.DEFAULT) {
-                    if (strategy == MergeCommand.Strategy.OURS) {
-                        this.strategy = MergeStrategy.OURS;
-                        return this;
-                    }
-                    if (strategy == MergeCommand.Strategy.RESOLVE) {
-                        this.strategy = MergeStrategy.RESOLVE;
-                        return this;
-                    }
-                    if (strategy == MergeCommand.Strategy.OCTOPUS) {
-                        this.strategy = MergeStrategy.SIMPLE_TWO_WAY_IN_CORE;
-                        return this;
-                    }
-                    listener.getLogger().println("[WARNING] JGit doesn't fully support merge strategies. This flag is ignored");
-                }
+                MergeStrategy mapped = mergeStrategyOf(strategy, listener);
+                if (mapped != null)
+                    this.strategy = mapped;
                 return this;
             }
 
             public void execute() throws GitException, InterruptedException {
-                Repository repo = null;
-                try {
-                    repo = getRepository();
-                    Git git = git(repo);
-                    MergeResult mergeResult;
-                    if (strategy != null)
-                        mergeResult = git.merge().setStrategy(strategy).include(rev).call();
-                    else
-                        mergeResult = git.merge().include(rev).call();
-                    if (!mergeResult.getMergeStatus().isSuccessful()) {
-                        git.reset().setMode(HARD).call();
-                        throw new GitException("Failed to merge " + rev);
+                if (previewHandler != null) {
+                    // in core, the workspace isn't modified
+                    MergePreview preview = previewMerge(previewTarget, rev, strategy);
+                    try {
+                        previewHandler.merged(preview);
+                    } catch (IOException e) {
+                        throw new GitException("Failed to report the " + preview, e);
                     }
-                } catch (GitAPIException e) {
-                    throw new GitException("Failed to merge " + rev, e);
-                } finally {
-                    if (repo != null) repo.close();
+                    return;
                 }
+                if (previewTarget != null)
+                    throw new IllegalStateException("Only a merge preview can have a target other than HEAD");
+
+                WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.Operation() {
+                    void run() throws GitException, InterruptedException {
+                        Repository repo = null;
+                        try {
+                            repo = getRepository();
+                            Git git = git(repo);
+                            MergeResult mergeResult;
+                            if (strategy != null)
+                                mergeResult = git.merge().setStrategy(strategy).include(rev).call();
+                            else
+                                mergeResult = git.merge().include(rev).call();
+                            if (!mergeResult.getMergeStatus().isSuccessful()) {
+                                git.reset().setMode(HARD).call();
+                                throw new GitException("Failed to merge " + rev);
+                            }
+                        } catch (GitAPIException e) {
+                            throw new GitException("Failed to merge " + rev, e);
+                        } finally {
+                            if (repo != null) repo.close();
+                        }
+                    }
+                });
             }
         };
     }
 
+    /**
+     * The JGit merge strategy closest to the given git one.
+     *
+     * @return null for the default strategy, or if JGit has none matching.
+     */
+    @CheckForNull
+    static MergeStrategy mergeStrategyOf(@CheckForNull MergeCommand.Strategy strategy, TaskListener listener) {
+        if (strategy == null || strategy.toString().isEmpty() || strategy == MergeCommand.Strategy.DEFAULT)
+            return null;
+        if (strategy == MergeCommand.Strategy.OURS)
+            return MergeStrategy.OURS;
+        if (strategy == MergeCommand.Strategy.RESOLVE)
+            return MergeStrategy.RESOLVE;
+        if (strategy == MergeCommand.Strategy.OCTOPUS)
+            return MergeStrategy.SIMPLE_TWO_WAY_IN_CORE;
+        listener.getLogger().println("[WARNING] JGit doesn't fully support merge strategies. This flag is ignored");
+        return null;
+    }
+
+    /**
+     * Merges the given commits in memory, writing the resulting tree to the object database.
+     *
+     * @param target
+     *      Commit to merge into, or null for <tt>HEAD</tt>.
+     * @param strategy
+     *      Null for the recursive strategy, which is what command line git uses by default.
+     */
+    MergePreview previewMerge(@CheckForNull ObjectId target, ObjectId rev, @CheckForNull MergeStrategy strategy) throws GitException {
+        Repository repo = null;
+        try {
+            repo = getRepository();
+            if (target == null) {
+                target = repo.resolve(HEAD);
+                if (target == null)
+                    throw new GitException("No HEAD to merge " + rev.name() + " into");
+            }
+            Merger merger = (strategy != null ? strategy : MergeStrategy.RECURSIVE).newMerger(repo, true);
+            boolean merged = merger.merge(target, rev);
+            List<String> conflicts = new ArrayList<String>();
+            if (!merged) {
+                if (merger instanceof ResolveMerger)
+                    conflicts.addAll(((ResolveMerger) merger).getUnmergedPaths());
+                if (conflicts.isEmpty())
+                    // a strategy that can't merge this, such as the simple two way merge
+                    throw new GitException("Failed to merge " + rev.name() + " into " + target.name());
+            }
+            return new MergePreview(target, rev, merged ? merger.getResultTreeId() : null, conflicts);
+        } catch (IOException e) {
+            throw new GitException("Failed to merge " + rev.name(), e);
+        } finally {
+            if (repo != null) repo.close();
+        }
+    }
+
     public void deleteTag(String tagName) throws GitException {
         Repository repo = null;
         try {
@@ -955,31 +1905,7 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
     }
 
     public List<IndexEntry> getSubmodules(String treeIsh) throws GitException {
-        Repository repo = null;
-        ObjectReader or = null;
-        RevWalk w = null;
-        try {
-            List<IndexEntry> r = new ArrayList<IndexEntry>();
-
-            repo = getRepository();
-            or = repo.newObjectReader();
-            w=new RevWalk(or);
-            RevTree t = w.parseTree(repo.resolve(treeIsh));
-            SubmoduleWalk walk = new SubmoduleWalk(repo);
-            walk.setTree(t);
-            walk.setRootTree(t);
-            while (walk.next()) {
-                r.add(new IndexEntry(walk));
-            }
-
-            return r;
-        } catch (IOException e) {
-            throw new GitException(e);
-        } finally {
-            if (w != null) w.dispose();
-            if (or != null) or.release();
-            if (repo != null) repo.close();
-        }
+        return lsTree(treeIsh, true, true);
     }
 
     public void addSubmodule(String remoteURL, String subdir) throws GitException {
@@ -1065,29 +1991,133 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         }
     }
 
-    private Set<String> listRemoteBranches(String remote) throws NotSupportedException, TransportException, URISyntaxException {
+    private Set<String> listRemoteBranches(String remote) throws IOException, URISyntaxException {
         final Repository repo = getRepository();
-        StoredConfig config = repo.getConfig();
-
-        Set<String> branches = new HashSet<String>();
-        final Transport tn = Transport.open(repo, new URIish(config.getString("remote",remote,"url")));
-        tn.setCredentialsProvider(getProvider());
-        final FetchConnection c = tn.openFetch();
+        final String url;
         try {
-            for (final Ref r : c.getRefs()) {
-                if (r.getName().startsWith(R_HEADS))
-                    branches.add("refs/remotes/"+remote+"/"+r.getName().substring(R_HEADS.length()));
-            }
+            url = repo.getConfig().getString("remote",remote,"url");
         } finally {
             repo.close();
-            c.close();
-            tn.close();
+        }
+
+        Set<String> branches = new HashSet<String>();
+        for (final Ref r : TransportPool.getRefs(new URIish(url), getProvider()).values()) {
+            if (r.getName().startsWith(R_HEADS))
+                branches.add("refs/remotes/"+remote+"/"+r.getName().substring(R_HEADS.length()));
         }
         return branches;
     }
 
     public void push(URIish url, String refspec) throws GitException, InterruptedException {
-        throw new UnsupportedOperationException("Not implemented yet");
+        List<RefSpec> refspecs = refspec != null
+                ? Collections.singletonList(new RefSpec(refspec))
+                : Collections.singletonList(Transport.REFSPEC_PUSH_ALL);
+        push().to(url, refspecs).execute();
+    }
+
+    public org.jenkinsci.plugins.gitclient.PushCommand push() {
+        return new org.jenkinsci.plugins.gitclient.PushCommand() {
+            public URIish url;
+            public List<RefSpec> refspecs;
+            public boolean force;
+            public boolean thin = true;
+            public Integer timeout;
+            public ResultHandler handler;
+
+            public org.jenkinsci.plugins.gitclient.PushCommand to(URIish remote, List<RefSpec> refspecs) {
+                this.url = remote;
+                this.refspecs = refspecs;
+                return this;
+            }
+
+            public org.jenkinsci.plugins.gitclient.PushCommand force(boolean force) {
+                this.force = force;
+                return this;
+            }
+
+            public org.jenkinsci.plugins.gitclient.PushCommand atomic(boolean atomic) {
+                if (atomic)
+                    throw new UnsupportedOperationException("JGit doesn't support atomic push, use command line git");
+                return this;
+            }
+
+            public org.jenkinsci.plugins.gitclient.PushCommand thin(boolean thin) {
+                this.thin = thin;
+                return this;
+            }
+
+            public org.jenkinsci.plugins.gitclient.PushCommand timeout(Integer timeout) {
+                this.timeout = timeout;
+                return this;
+            }
+
+            public org.jenkinsci.plugins.gitclient.PushCommand results(ResultHandler handler) {
+                this.handler = handler;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                List<RefSpec> refSpecs = new ArrayList<RefSpec>();
+                if (refspecs != null)
+                    for (RefSpec rs: refspecs)
+                        if (rs != null)
+                            refSpecs.add(rs);
+
+                Repository repo = null;
+                try {
+                    repo = getRepository();
+                    org.eclipse.jgit.api.PushCommand push = git(repo).push()
+                            .setRemote(url.toString())
+                            .setRefSpecs(refSpecs)
+                            .setForce(force)
+                            .setThin(thin)
+                            .setProgressMonitor(new ProgressMonitor(listener))
+                            .setCredentialsProvider(getProvider());
+                    if (timeout != null)
+                        push.setTimeout((int) TimeUnit.MINUTES.toSeconds(timeout));
+
+                    List<PushedRef> refs = new ArrayList<PushedRef>();
+                    for (PushResult result : push.call())
+                        for (RemoteRefUpdate update : result.getRemoteUpdates())
+                            refs.add(pushedRef(update));
+
+                    if (handler != null)
+                        handler.pushed(refs);
+                    for (PushedRef ref : refs)
+                        if (!ref.isSuccessful())
+                            throw new GitException("Failed to push " + ref + " to " + url);
+                } catch (GitAPIException e) {
+                    throw new GitException(e);
+                } catch (IOException e) {
+                    throw new GitException("Failed to report the push to " + url, e);
+                } finally {
+                    if (repo != null) repo.close();
+                }
+            }
+        };
+    }
+
+    private static PushedRef pushedRef(RemoteRefUpdate update) {
+        PushedRef.Status status;
+        switch (update.getStatus()) {
+        case OK:
+            status = PushedRef.Status.OK;
+            break;
+        case UP_TO_DATE:
+            status = PushedRef.Status.UP_TO_DATE;
+            break;
+        case REJECTED_OTHER_REASON:
+            // reported by the remote
+            status = PushedRef.Status.REMOTE_REJECTED;
+            break;
+        default:
+            status = PushedRef.Status.REJECTED;
+            break;
+        }
+        String message = update.getMessage();
+        if (message == null && status == PushedRef.Status.REJECTED)
+            message = update.getStatus().name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+        return new PushedRef(update.getSrcRef(), update.getRemoteName(), status, message);
     }
 
     public void push(String remoteName, String refspec) throws GitException {
@@ -1144,6 +2174,82 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         }
     }
 
+    public RevListCommand revList() {
+        return new RevListCommand() {
+            boolean all;
+            final List<String> refs = new ArrayList<String>();
+            final List<String> excludedRefs = new ArrayList<String>();
+            final List<String> includedPaths = new ArrayList<String>();
+            final List<String> excludedPaths = new ArrayList<String>();
+            List<ObjectId> out;
+
+            public RevListCommand all() {
+                all = true;
+                return this;
+            }
+
+            public RevListCommand reference(String reference) {
+                refs.add(reference);
+                return this;
+            }
+
+            public RevListCommand excludes(String rev) {
+                excludedRefs.add(rev);
+                return this;
+            }
+
+            public RevListCommand includesPath(String glob) {
+                includedPaths.add(glob);
+                return this;
+            }
+
+            public RevListCommand excludesPath(String glob) {
+                excludedPaths.add(glob);
+                return this;
+            }
+
+            public RevListCommand to(List<ObjectId> revs) {
+                this.out = revs;
+                return this;
+            }
+
+            public void execute() throws GitException, InterruptedException {
+                if (out == null) throw new IllegalStateException();
+                Repository repo = null;
+                ObjectReader or = null;
+                RevWalk walk = null;
+                try {
+                    repo = getRepository();
+                    or = repo.newObjectReader();
+                    walk = new RevWalk(or);
+                    if (all)
+                        markAllRefs(walk);
+                    for (String ref : refs)
+                        walk.markStart(walk.parseCommit(resolve(repo, ref)));
+                    for (String ref : excludedRefs)
+                        walk.markUninteresting(walk.parseCommit(resolve(repo, ref)));
+                    TreeFilter paths = PathGlobFilter.create(includedPaths, excludedPaths);
+                    if (paths != TreeFilter.ALL)
+                        walk.setTreeFilter(AndTreeFilter.create(paths, TreeFilter.ANY_DIFF));
+                    out.addAll(revList(walk));
+                } catch (IOException e) {
+                    throw new GitException(e);
+                } finally {
+                    if (walk != null) walk.dispose();
+                    if (or != null) or.release();
+                    if (repo != null) repo.close();
+                }
+            }
+
+            private ObjectId resolve(Repository repo, String ref) throws IOException {
+                ObjectId id = repo.resolve(ref);
+                if (id == null)
+                    throw new GitException("Unknown revision " + ref);
+                return id;
+            }
+        };
+    }
+
     private List<ObjectId> revList(RevWalk walk) {
         walk.setRetainBody(false);
         walk.sort(RevSort.COMMIT_TIME_DESC);
@@ -1223,7 +2329,7 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
         return submodules;
     }
 
-    public void submoduleClean(boolean recursive) throws GitException {
+    public void submoduleClean(boolean recursive) throws GitException, InterruptedException {
         try {
             for (JGitAPIImpl sub : submodules()) {
                 sub.clean();
@@ -1331,7 +2437,7 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
                 flags.add(walk.newFlag("branch" + i));
             walk.carry(flags);
 
-            List<Branch> result = new ArrayList<Branch>();  // we'll built up the return value in here
+            List<Branch> result = new BranchList();  // we'll built up the return value in here
 
             List<Ref> branches = getAllBranchRefs();
             while (!branches.isEmpty()) {
@@ -1701,52 +2807,86 @@ public class JGitAPIImpl extends LegacyCompatibleGitAPIImpl {
 
     @Deprecated
     public List<IndexEntry> lsTree(String treeIsh, boolean recursive) throws GitException, InterruptedException {
+        return lsTree(treeIsh, recursive, false);
+    }
+
+    /**
+     * Lists the entries of a tree. The type of each entry follows from its mode,
+     * so unlike <tt>RevWalk.parseAny</tt> this never needs to open the objects themselves.
+     *
+     * @param gitlinksOnly
+     *      Only list the submodules.
+     */
+    private List<IndexEntry> lsTree(String treeIsh, boolean recursive, boolean gitlinksOnly) throws GitException {
         Repository repo = null;
         ObjectReader or = null;
         RevWalk w = null;
+        TreeWalk tree = null;
         try {
             repo = getRepository();
             or = repo.newObjectReader();
             w = new RevWalk(or);
 
-            TreeWalk tree = new TreeWalk(or);
+            tree = new TreeWalk(or);
             tree.addTree(w.parseTree(repo.resolve(treeIsh)));
             tree.setRecursive(recursive);
 
-            List<IndexEntry> r = new ArrayList<IndexEntry>();
+            IndexEntryList r = new IndexEntryList();
+            MutableObjectId id = new MutableObjectId();
             while (tree.next()) {
-                RevObject rev = w.parseAny(tree.getObjectId(0));
-                r.add(new IndexEntry(
-                        String.format("%06o", tree.getRawMode(0)),
-                        typeString(rev.getType()),
-                        tree.getObjectId(0).name(),
-                        tree.getNameString()));
+                int mode = tree.getRawMode(0);
+                if (gitlinksOnly && !FileMode.GITLINK.equals(mode))
+                    continue;
+                tree.getObjectId(id, 0);
+                r.add(modeString(mode),
+                      typeString(FileMode.fromBits(mode).getObjectType()),
+                      id,
+                      tree.getPathString());
             }
             return r;
         } catch (IOException e) {
             throw new GitException(e);
         } finally {
+            if (tree != null) tree.release();
             if (w != null) w.dispose();
             if (or != null) or.release();
             if (repo != null) repo.close();
         }
     }
 
-    @Deprecated
-    public void reset(boolean hard) throws GitException, InterruptedException {
-        Repository repo = null;
-        try {
-            repo = getRepository();
-            ResetCommand reset = new ResetCommand(repo);
-            reset.setMode(hard?HARD:MIXED);
-            reset.call();
-        } catch (GitAPIException e) {
-            throw new GitException(e);
-        } finally {
-            if (repo != null) repo.close();
+    /**
+     * Formats a mode the way <tt>git ls-tree</tt> does, sharing the strings of the usual modes.
+     */
+    private static String modeString(int mode) {
+        switch (mode) {
+        case 0100644:   return "100644";
+        case 0100755:   return "100755";
+        case 0040000:   return "040000";
+        case 0120000:   return "120000";
+        case 0160000:   return "160000";
+        default:        return String.format("%06o", mode);
         }
     }
 
+    @Deprecated
+    public void reset(final boolean hard) throws GitException, InterruptedException {
+        WorkspaceLockManager.run(workspace, listener, new WorkspaceLockManager.RetryableOperation() {
+            void run() throws GitException, InterruptedException {
+                Repository repo = null;
+                try {
+                    repo = getRepository();
+                    ResetCommand reset = new ResetCommand(repo);
+                    reset.setMode(hard?HARD:MIXED);
+                    reset.call();
+                } catch (GitAPIException e) {
+                    throw new GitException(e);
+                } finally {
+                    if (repo != null) repo.close();
+                }
+            }
+        });
+    }
+
     @Deprecated
     public boolean isBareRepository(String GIT_DIR) throws GitException, InterruptedException {
         if (isBlank(GIT_DIR)) {
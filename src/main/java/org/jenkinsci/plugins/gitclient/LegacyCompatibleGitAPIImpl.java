@@ -41,6 +41,15 @@ abstract class LegacyCompatibleGitAPIImpl extends AbstractGitAPIImpl implements
         this.workspace = workspace;
     }
 
+    /**
+     * Performs the maintenance the repository needs, called by {@link RepositoryMaintenance}
+     * in the background while holding the workspace lock. It must stop when the thread is interrupted.
+     *
+     * @param listener
+     *      Used instead of the listener of this client, which belongs to a build that may be over.
+     */
+    abstract void maintain(RepositoryMaintenance.Counts counts, TaskListener listener) throws GitException, InterruptedException;
+
     @Deprecated
     public boolean hasGitModules(String treeIsh) throws GitException {
         try {
@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.gitclient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map of the most recently used entries, for caching values computed from strings
+ * such as URLs. It is thread safe.
+ */
+final class LruCache<K, V> {
+    private final Map<K, V> map;
+
+    LruCache(final int maxSize) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+}
@@ -2,6 +2,8 @@ package org.jenkinsci.plugins.gitclient;
 
 import org.eclipse.jgit.lib.ObjectId;
 
+import java.io.IOException;
+
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
@@ -11,6 +13,36 @@ public interface MergeCommand extends GitCommand {
 
     MergeCommand setStrategy(Strategy strategy);
 
+    /**
+     * Only computes the merge, in memory, and reports the resulting tree or the conflicting paths to the handler,
+     * leaving the index, the working tree and <tt>HEAD</tt> alone. A conflict isn't a failure of the command then.
+     *
+     * This is much cheaper than merging and resetting just to know whether a merge would succeed,
+     * and doesn't need the working tree to be checked out at all.
+     *
+     * @since 1.6.2
+     */
+    MergeCommand setPreviewHandler(PreviewHandler handler);
+
+    /**
+     * Sets the commit the merge is previewed into, instead of <tt>HEAD</tt>.
+     * Only a {@link #setPreviewHandler(PreviewHandler) preview} can merge into another commit than <tt>HEAD</tt>.
+     *
+     * @since 1.6.2
+     */
+    MergeCommand setPreviewTarget(ObjectId target);
+
+    /**
+     * Receives the result of a merge preview.
+     *
+     * When the command runs on a remote node, the handler is called back through the channel.
+     *
+     * @since 1.6.2
+     */
+    interface PreviewHandler {
+        void merged(MergePreview preview) throws IOException;
+    }
+
     public enum Strategy {
         DEFAULT, RESOLVE, RECURSIVE, OCTOPUS, OURS, SUBTREE;
 
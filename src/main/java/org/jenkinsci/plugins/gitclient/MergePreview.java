@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import javax.annotation.CheckForNull;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of merging two commits, computed by {@link MergeCommand#setPreviewHandler(MergeCommand.PreviewHandler)}
+ * without touching the index, the working tree or any ref.
+ *
+ * @since 1.6.2
+ */
+public class MergePreview implements Serializable {
+    private final ObjectId target, rev;
+    private final ObjectId tree;
+    private final List<String> conflicts;
+
+    public MergePreview(ObjectId target, ObjectId rev, @CheckForNull ObjectId tree, List<String> conflicts) {
+        this.target = target;
+        this.rev = rev;
+        this.tree = tree;
+        this.conflicts = Collections.unmodifiableList(conflicts);
+    }
+
+    /**
+     * The commit merged into, <tt>HEAD</tt> unless {@link MergeCommand#setPreviewTarget(ObjectId)} was called.
+     */
+    public ObjectId getTarget() {
+        return target;
+    }
+
+    /**
+     * The commit merged, set by {@link MergeCommand#setRevisionToMerge(ObjectId)}.
+     */
+    public ObjectId getRevision() {
+        return rev;
+    }
+
+    public boolean isSuccessful() {
+        return conflicts.isEmpty();
+    }
+
+    /**
+     * The tree the merge commit would have, which is written to the object database.
+     *
+     * @return null if the merge has conflicts.
+     */
+    @CheckForNull
+    public ObjectId getTree() {
+        return tree;
+    }
+
+    /**
+     * Paths that can't be merged automatically, empty if the merge is successful.
+     */
+    public List<String> getConflicts() {
+        return conflicts;
+    }
+
+    @Override
+    public String toString() {
+        return "merge of " + rev.name() + " into " + target.name() + ": "
+                + (isSuccessful() ? "tree " + tree.name() : "conflicts in " + conflicts);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
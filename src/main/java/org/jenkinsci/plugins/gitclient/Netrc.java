@@ -8,25 +8,48 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 
+/**
+ * Credentials of the hosts listed in a <tt>.netrc</tt> file.
+ *
+ * <p>
+ * There is one instance per file in the JVM, shared by all the clients. The file is parsed once, and parsed
+ * again only when its size or modification time changed, which is checked at most once every
+ * <tt>org.jenkinsci.plugins.gitclient.Netrc.checkInterval</tt> milliseconds (one second by default).
+ */
 class Netrc {
     private static final Pattern NETRC_TOKEN = Pattern.compile("(\\S+)");
 
+    private static final long CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong(Netrc.class.getName() + ".checkInterval", 1000));
+
+    private static final ConcurrentMap<File, Netrc> INSTANCES = new ConcurrentHashMap<File, Netrc>();
+
     private enum ParseState {
         START, REQ_KEY, REQ_VALUE, MACHINE, LOGIN, PASSWORD, MACDEF, END;
     };
 
 
-    private File netrc;
-    private long lastModified;
-    private Map<String,UsernamePasswordCredentials> hosts = new HashMap<String,UsernamePasswordCredentials>();
+    private final File netrc;
+    /**
+     * What was parsed from the file, replaced as a whole when the file changes.
+     */
+    private volatile Parsed parsed = Parsed.NONE;
+    /**
+     * {@link System#nanoTime()} of the last check for changes of the file.
+     */
+    private volatile long lastChecked;
 
 
 
@@ -41,7 +64,16 @@ class Netrc {
     }
 
     public static Netrc getInstance(File netrc) {
-        return new Netrc(netrc).parse();
+        netrc = netrc.getAbsoluteFile();
+        Netrc instance = INSTANCES.get(netrc);
+        if (instance == null) {
+            Netrc created = new Netrc(netrc);
+            instance = INSTANCES.putIfAbsent(netrc, created);
+            if (instance == null) {
+                instance = created;
+            }
+        }
+        return instance.refresh();
     }
 
     private static File getDefaultFile() {
@@ -53,20 +85,50 @@ class Netrc {
 
 
     public Credentials getCredentials(String host) {
-        if (!this.netrc.exists()) return null;
-        if (this.lastModified != this.netrc.lastModified()) parse();
-        return this.hosts.get(host);
+        if (System.nanoTime() - lastChecked >= CHECK_INTERVAL) refresh();
+        return this.parsed.hosts.get(host);
     }
 
     private Netrc(File netrc) {
         this.netrc = netrc;
+        this.lastChecked = System.nanoTime() - CHECK_INTERVAL;
     }
 
-    synchronized private Netrc parse() {
-        if (!netrc.exists()) return this;
+    /**
+     * Parses the file again if it changed since it was last parsed, unless it was checked very recently.
+     */
+    synchronized private Netrc refresh() {
+        long now = System.nanoTime();
+        if (now - lastChecked < CHECK_INTERVAL) return this;
+
+        Parsed current = this.parsed;
+        long lastModified = netrc.lastModified(); // 0 if the file doesn't exist
+        long size = netrc.length();
+        if (lastModified != current.lastModified || size != current.size) {
+            this.parsed = lastModified == 0 ? Parsed.NONE : new Parsed(lastModified, size, parse());
+        }
+        lastChecked = now;
+        return this;
+    }
 
-        this.hosts.clear();
-        this.lastModified = this.netrc.lastModified();
+    /**
+     * The hosts of a version of the file.
+     */
+    private static final class Parsed {
+        static final Parsed NONE = new Parsed(0, 0, Collections.<String, UsernamePasswordCredentials>emptyMap());
+
+        final long lastModified, size;
+        final Map<String, UsernamePasswordCredentials> hosts;
+
+        Parsed(long lastModified, long size, Map<String, UsernamePasswordCredentials> hosts) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.hosts = hosts;
+        }
+    }
+
+    private Map<String, UsernamePasswordCredentials> parse() {
+        Map<String, UsernamePasswordCredentials> hosts = new HashMap<String, UsernamePasswordCredentials>();
 
         BufferedReader r = null;
         try {
@@ -122,7 +184,7 @@ class Netrc {
                     case MACHINE:
                         if (machine != null) {
                             if (login != null && password != null) {
-                                this.hosts.put(machine, new UsernamePasswordCredentials(login, password));
+                                hosts.put(machine, new UsernamePasswordCredentials(login, password));
                             }
                         }
                         machine = match;
@@ -149,7 +211,7 @@ class Netrc {
             }
             if (machine != null) {
                 if (login != null && password != null) {
-                    this.hosts.put(machine, new UsernamePasswordCredentials(login, password));
+                    hosts.put(machine, new UsernamePasswordCredentials(login, password));
                 }
             }
 
@@ -159,7 +221,7 @@ class Netrc {
             IOUtils.closeQuietly(r);
         }
 
-        return this;
+        return Collections.unmodifiableMap(hosts);
     }
 
 }
@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@link TreeFilter} for the path globs of {@link ChangelogCommand} and {@link RevListCommand},
+ * matching like the <tt>:(glob)</tt> pathspecs of command line git: <tt>*</tt> and <tt>?</tt> don't
+ * match a <tt>/</tt>, <tt>**</tt> matches any number of directories, and a glob without wildcards
+ * also matches everything under it.
+ *
+ * <p>
+ * A path is included when it matches one of the includes (or there are none), and none of the excludes.
+ * Directories that can't hold an included path are not entered.
+ */
+class PathGlobFilter extends TreeFilter {
+    private final List<Glob> includes, excludes;
+
+    private PathGlobFilter(List<Glob> includes, List<Glob> excludes) {
+        this.includes = includes;
+        this.excludes = excludes;
+    }
+
+    /**
+     * @return {@link TreeFilter#ALL} if there are neither includes nor excludes.
+     */
+    static TreeFilter create(List<String> includes, List<String> excludes) {
+        if (includes.isEmpty() && excludes.isEmpty())
+            return TreeFilter.ALL;
+        return new PathGlobFilter(compile(includes), compile(excludes));
+    }
+
+    private static List<Glob> compile(List<String> globs) {
+        List<Glob> r = new ArrayList<Glob>(globs.size());
+        for (String glob : globs)
+            r.add(new Glob(glob));
+        return r;
+    }
+
+    @Override
+    public boolean include(TreeWalk walker) {
+        String path = walker.getPathString();
+        boolean subtree = walker.isSubtree();
+        for (Glob g : excludes)
+            if (subtree ? g.matchesAllUnder(path) : g.matches(path))
+                return false;
+        if (includes.isEmpty())
+            return true;
+        for (Glob g : includes)
+            if (subtree ? g.mayMatchUnder(path) : g.matches(path))
+                return true;
+        return false;
+    }
+
+    @Override
+    public boolean shouldBeRecursive() {
+        return true;
+    }
+
+    @Override
+    public TreeFilter clone() {
+        return this; // immutable
+    }
+
+    @Override
+    public String toString() {
+        return "PATH_GLOB(" + includes + " -" + excludes + ")";
+    }
+
+    private static final class Glob {
+        private final String glob;
+        /**
+         * Directories before the first wildcard, such as <tt>src/main/</tt> for <tt>src/main/**&#47;*.java</tt>.
+         */
+        private final String literalPrefix;
+        private final Pattern pattern;
+
+        Glob(String glob) {
+            // pathspecs are relative to the root of the tree
+            while (glob.startsWith("/"))
+                glob = glob.substring(1);
+            while (glob.endsWith("/"))
+                glob = glob.substring(0, glob.length() - 1);
+            this.glob = glob;
+
+            int wildcard = indexOfWildcard(glob);
+            this.literalPrefix = wildcard < 0 ? glob + '/' : glob.substring(0, glob.lastIndexOf('/', wildcard) + 1);
+            this.pattern = Pattern.compile(toRegex(glob) + (wildcard < 0 ? "(/.*)?" : ""), Pattern.DOTALL);
+        }
+
+        boolean matches(String path) {
+            return pattern.matcher(path).matches();
+        }
+
+        /**
+         * Everything under the directory matches the glob, such as under <tt>docs/api</tt> for <tt>docs</tt>
+         * or <tt>docs/**</tt>, but not for <tt>docs/*</tt>.
+         */
+        boolean matchesAllUnder(String dir) {
+            // NUL can't be part of a path: only what matches any path two levels down matches the probe
+            return pattern.matcher(dir + "/\0/\0").matches();
+        }
+
+        /**
+         * The directory may contain paths that match the glob.
+         */
+        boolean mayMatchUnder(String dir) {
+            dir = dir + '/';
+            return dir.startsWith(literalPrefix) || literalPrefix.startsWith(dir);
+        }
+
+        private static int indexOfWildcard(String glob) {
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?' || c == '[')
+                    return i;
+            }
+            return -1;
+        }
+
+        private static String toRegex(String glob) {
+            StringBuilder r = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (glob.startsWith("**/", i)) {
+                    r.append("(.*/)?");
+                    i += 2;
+                } else if (glob.startsWith("**", i)) {
+                    r.append(".*");
+                    i++;
+                } else if (c == '*') {
+                    r.append("[^/]*");
+                } else if (c == '?') {
+                    r.append("[^/]");
+                } else if (c == '[') {
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        r.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, end);
+                        if (set.startsWith("!"))
+                            set = '^' + set.substring(1);
+                        r.append('[').append(set.replace("\\", "\\\\")).append(']');
+                        i = end;
+                    }
+                } else {
+                    r.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return r.toString();
+        }
+
+        @Override
+        public String toString() {
+            return glob;
+        }
+    }
+}
@@ -10,11 +10,31 @@ import java.io.PrintStream;
 public class ProgressMonitor implements org.eclipse.jgit.lib.ProgressMonitor {
 
     private final PrintStream log;
+    private final TransferStats stats;
     private int totalTasks;
     private int completed;
 
     public ProgressMonitor(TaskListener listener) {
+        this(listener, "git");
+    }
+
+    /**
+     * @param operation
+     *      Name of the operation, such as "fetch", for the {@link #getStats() statistics}.
+     * @since 1.6.2
+     */
+    public ProgressMonitor(TaskListener listener, String operation) {
         this.log = listener.getLogger();
+        this.stats = new TransferStats(operation);
+    }
+
+    /**
+     * Phases and amounts of work reported so far.
+     *
+     * @since 1.6.2
+     */
+    public TransferStats getStats() {
+        return stats;
     }
 
     public void start(int totalTasks) {
@@ -24,13 +44,17 @@ public class ProgressMonitor implements org.eclipse.jgit.lib.ProgressMonitor {
 
     public void beginTask(String title, int totalWork) {
         log.println(title);
+        // JGit titles are the same as git's, e.g. "remote: Counting objects" or "Receiving objects"
+        stats.begin(title, totalWork == UNKNOWN ? 0 : totalWork);
     }
 
     public void update(int completed) {
         this.completed += completed;
+        stats.update(completed);
     }
 
     public void endTask() {
+        stats.endPhase();
     }
 
     public boolean isCancelled() {
@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for a git process, killing it when it runs out of time, or when it stops writing
+ * output for too long.
+ *
+ * <p>
+ * Commands like <tt>git fetch --progress</tt> report their progress several times a second, so
+ * a long silence means the process hangs, such as on a dead connection. This allows killing it
+ * early without having to lower the overall timeout, which would kill a legitimately large clone.
+ */
+class ProgressWatchdog {
+    private static final long POLL_INTERVAL = 1000;
+
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    /**
+     * Wraps an output stream of the process, so that writing to it counts as progress.
+     */
+    OutputStream watch(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                lastActivity = System.currentTimeMillis();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                lastActivity = System.currentTimeMillis();
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Waits for the process to terminate.
+     *
+     * @param timeout
+     *      Time allowed for the whole process, in minutes.
+     * @param stallTimeout
+     *      Time allowed without any output, in seconds.
+     * @return the exit code of the process.
+     * @throws GitException
+     *      if the process was killed.
+     */
+    int join(Proc proc, int timeout, int stallTimeout, String command, TaskListener listener)
+            throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeout);
+        long stall = TimeUnit.SECONDS.toMillis(stallTimeout);
+        lastActivity = System.currentTimeMillis();
+        try {
+            while (proc.isAlive()) {
+                long now = System.currentTimeMillis();
+                if (now > deadline) {
+                    kill(proc, listener, "Command \"" + command + "\" timed out after " + timeout + " minutes");
+                } else if (now - lastActivity > stall) {
+                    kill(proc, listener, "Command \"" + command + "\" made no progress for " + stallTimeout + " seconds");
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+            return proc.join();
+        } catch (InterruptedException e) {
+            proc.kill();
+            throw e;
+        }
+    }
+
+    private static void kill(Proc proc, TaskListener listener, String reason) throws IOException, InterruptedException {
+        listener.getLogger().println(reason + ", aborting");
+        proc.kill();
+        throw new GitException(reason);
+    }
+}
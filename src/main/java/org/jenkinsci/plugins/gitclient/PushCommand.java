@@ -0,0 +1,65 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Command builder for pushing many refs to a remote repository over a single connection,
+ * such as a branch and all the tags of a release, instead of one {@link GitClient#push(URIish, String)}
+ * per ref.
+ *
+ * <p>
+ * The command fails with a {@link hudson.plugins.git.GitException} if any of the refs couldn't be updated,
+ * after reporting the outcome of every ref to the {@link ResultHandler}, if any.
+ *
+ * @since 1.6.2
+ */
+public interface PushCommand extends GitCommand {
+
+    PushCommand to(URIish remote, List<RefSpec> refspecs);
+
+    /**
+     * Updates the remote refs even if they aren't ancestors of the pushed commits,
+     * as in <tt>git push --force</tt>, instead of just those of the refspecs prefixed with <tt>+</tt>.
+     */
+    PushCommand force(boolean force);
+
+    /**
+     * Updates either all the refs or none of them, as in <tt>git push --atomic</tt>.
+     * The remote must support it. Not supported by JGit.
+     */
+    PushCommand atomic(boolean atomic);
+
+    /**
+     * Sends a thin pack, whose deltas are against objects the remote already has. Defaults to true.
+     */
+    PushCommand thin(boolean thin);
+
+    /**
+     * Time allowed for the push, in minutes, overriding the timeout configured for the
+     * <tt>push</tt> operation.
+     *
+     * With JGit, this is the time allowed for a network read instead.
+     */
+    PushCommand timeout(Integer timeout);
+
+    /**
+     * Sets the {@link ResultHandler} that receives the outcome of the push of each ref.
+     */
+    PushCommand results(ResultHandler handler);
+
+    /**
+     * Receives the outcome of a push.
+     *
+     * When the command runs on a remote node, the handler is called back through the channel.
+     */
+    interface ResultHandler {
+        /**
+         * Called once, when the push completes, even if some refs were rejected.
+         */
+        void pushed(List<PushedRef> refs) throws IOException;
+    }
+}
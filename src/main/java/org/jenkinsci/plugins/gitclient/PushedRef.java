@@ -0,0 +1,83 @@
+package org.jenkinsci.plugins.gitclient;
+
+import javax.annotation.CheckForNull;
+import java.io.Serializable;
+
+/**
+ * The outcome of the push of one ref, reported to {@link PushCommand.ResultHandler}.
+ *
+ * @since 1.6.2
+ */
+public class PushedRef implements Serializable {
+    public enum Status {
+        /**
+         * The remote ref was created, updated or deleted.
+         */
+        OK,
+        /**
+         * The remote ref already pointed at the pushed commit.
+         */
+        UP_TO_DATE,
+        /**
+         * The update was refused before sending it, such as one that isn't a fast-forward,
+         * or one of an atomic push that failed.
+         */
+        REJECTED,
+        /**
+         * The remote refused the update, such as from a hook.
+         */
+        REMOTE_REJECTED
+    }
+
+    private final String source, destination;
+    private final Status status;
+    private final String message;
+
+    public PushedRef(@CheckForNull String source, String destination, Status status, @CheckForNull String message) {
+        this.source = source;
+        this.destination = destination;
+        this.status = status;
+        this.message = message;
+    }
+
+    /**
+     * The local ref or commit pushed, as in the refspec.
+     *
+     * @return null if the remote ref was deleted.
+     */
+    @CheckForNull
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * The remote ref, such as <tt>refs/heads/master</tt>.
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isSuccessful() {
+        return status == Status.OK || status == Status.UP_TO_DATE;
+    }
+
+    /**
+     * Why the update was rejected, such as <tt>non-fast-forward</tt>.
+     */
+    @CheckForNull
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return (source == null ? "" : source) + ":" + destination + " " + status
+                + (message == null ? "" : " (" + message + ")");
+    }
+
+    private static final long serialVersionUID = 1L;
+}
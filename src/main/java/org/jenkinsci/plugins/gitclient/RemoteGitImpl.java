@@ -37,6 +37,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 /**
  * {@link GitClient} that delegates to a remote {@link GitClient}.
@@ -71,7 +72,7 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
         private final String[] parameterTypes;
         private final Object[] args;
 
-        Invocation(Method method, @Nonnull Object[] args) {
+        Invocation(Channel channel, Method method, @Nonnull Object[] args) {
             this.methodName = method.getName();
             this.args = args;
             this.parameterTypes = new String[args.length];
@@ -84,6 +85,14 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
                     args[i] = new RemoteOutputStream((OutputStream)args[i]);
                 if (args[i] instanceof Writer)
                     args[i] = new RemoteWriter((Writer)args[i]);
+                if (args[i] instanceof ChangedPathsCommand.Handler && channel!=null)
+                    args[i] = channel.export(ChangedPathsCommand.Handler.class, (ChangedPathsCommand.Handler)args[i]);
+                if (args[i] instanceof MergeCommand.PreviewHandler && channel!=null)
+                    args[i] = channel.export(MergeCommand.PreviewHandler.class, (MergeCommand.PreviewHandler)args[i]);
+                if (args[i] instanceof PushCommand.ResultHandler && channel!=null)
+                    args[i] = channel.export(PushCommand.ResultHandler.class, (PushCommand.ResultHandler)args[i]);
+                if (args[i] instanceof TransferStats.Handler && channel!=null)
+                    args[i] = channel.export(TransferStats.Handler.class, (TransferStats.Handler)args[i]);
             }
         }
 
@@ -134,7 +143,7 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
                 }
             }
             if (GitCommand.class.isAssignableFrom(decl)) {
-                invocations.add(new Invocation(method, args));
+                invocations.add(new Invocation(channel, method, args));
                 return proxy;
             }
             throw new IllegalStateException("Unexpected invocation: "+method);
@@ -176,6 +185,41 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
         private static final long serialVersionUID = 1L;
     }
 
+    /**
+     * Starts the operation on the node of the client, without waiting for it to complete.
+     *
+     * @return null if this client isn't connected to its node yet.
+     */
+    <T> Future<T> callAsync(AsyncGitClient.Operation<T> operation) {
+        if (channel == null)
+            return null;
+        try {
+            return channel.callAsync(new AsyncCall<T>(proxy, operation));
+        } catch (IOException e) {
+            throw new GitException(e);
+        }
+    }
+
+    private static class AsyncCall<T> implements Callable<T, GitException> {
+        private final GitClient git;
+        private final AsyncGitClient.Operation<T> operation;
+
+        private AsyncCall(GitClient git, AsyncGitClient.Operation<T> operation) {
+            this.git = git; // the original client once sent back to its node
+            this.operation = operation;
+        }
+
+        public T call() throws GitException {
+            try {
+                return operation.invoke(git);
+            } catch (InterruptedException e) {
+                throw new GitException(e);
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
     private OutputStream wrap(OutputStream os) {
         return new RemoteOutputStream(os);
     }
@@ -324,6 +368,10 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
         proxy.push(url, refspec);
     }
 
+    public PushCommand push() {
+        return command(PushCommand.class);
+    }
+
     public void merge(ObjectId rev) throws GitException, InterruptedException {
         proxy.merge(rev);
     }
@@ -392,6 +440,10 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
         return proxy.revList(ref);
     }
 
+    public RevListCommand revList() {
+        return command(RevListCommand.class);
+    }
+
     public GitClient subGit(String subdir) {
         return proxy.subGit(subdir);
     }
@@ -436,6 +488,22 @@ class RemoteGitImpl implements GitClient, IGitAPI, Serializable {
         return command(ChangelogCommand.class);
     }
 
+    public ArchiveCommand archive() {
+        return command(ArchiveCommand.class);
+    }
+
+    public ChangedPathsCommand changedPaths() {
+        return command(ChangedPathsCommand.class);
+    }
+
+    public RepackCommand repack() {
+        return command(RepackCommand.class);
+    }
+
+    public CheckoutCommand checkout() {
+        return command(CheckoutCommand.class);
+    }
+
     public void appendNote(String note, String namespace) throws GitException, InterruptedException {
         proxy.appendNote(note, namespace);
     }
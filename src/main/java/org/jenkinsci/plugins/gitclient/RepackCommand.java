@@ -0,0 +1,28 @@
+package org.jenkinsci.plugins.gitclient;
+
+/**
+ * Command builder for packing all the objects of a repository into a single pack, the equivalent of
+ * <a href="https://www.kernel.org/pub/software/scm/git/docs/git-repack.html">git repack -a -d</a>.
+ *
+ * <p>
+ * This is meant for the mirrors and reference repositories that many workspaces fetch or clone from.
+ * With a reachability bitmap next to the pack, <tt>upload-pack</tt> (command line git, or JGit when
+ * fetching from a local repository) counts the objects to send from the bitmap instead of walking
+ * the whole history for every fetch.
+ *
+ * @since 1.6.2
+ */
+public interface RepackCommand extends GitCommand {
+    /**
+     * Writes a reachability bitmap index along with the pack. Defaults to true.
+     *
+     * The bitmaps are kept by the background maintenance of the repository after later fetches.
+     */
+    RepackCommand bitmaps(boolean bitmaps);
+
+    /**
+     * Time allowed for the repack, in minutes, overriding the timeout configured for the
+     * <tt>repack</tt> operation. Ignored by JGit, which repacks in process.
+     */
+    RepackCommand timeout(Integer timeout);
+}
@@ -0,0 +1,214 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.util.LogTaskListener;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps long lived workspaces fast to read: every fetch adds loose objects or a small pack, and
+ * loose refs, which git and JGit otherwise never clean up in a workspace.
+ *
+ * <p>
+ * After a fetch, the objects and refs of the repository are counted in the background, and when one
+ * of the thresholds is crossed, the implementation is asked to
+ * {@link LegacyCompatibleGitAPIImpl#maintain(Counts, TaskListener) maintain} the repository, one repository
+ * at a time. The maintenance only takes the {@link WorkspaceLockManager workspace lock} when the repository
+ * is idle, and gives it up as soon as another operation wants it.
+ *
+ * <p>
+ * The thresholds are set with the <tt>org.jenkinsci.plugins.gitclient.GitClient.maintenance.*</tt>
+ * system properties, and the whole mechanism is disabled with
+ * <tt>org.jenkinsci.plugins.gitclient.GitClient.maintenance=false</tt>.
+ */
+final class RepositoryMaintenance {
+    static boolean ENABLED = Boolean.valueOf(System.getProperty(GitClient.class.getName() + ".maintenance", "true"));
+
+    /**
+     * Loose objects beyond which they are packed, like <tt>gc.auto</tt>.
+     */
+    static int LOOSE_OBJECTS = Integer.getInteger(GitClient.class.getName() + ".maintenance.looseObjects", 6700);
+
+    /**
+     * Packs beyond which they are repacked into one, like <tt>gc.autoPackLimit</tt>.
+     */
+    static int PACKS = Integer.getInteger(GitClient.class.getName() + ".maintenance.packs", 50);
+
+    /**
+     * Loose refs beyond which they are moved to <tt>packed-refs</tt>.
+     */
+    static int LOOSE_REFS = Integer.getInteger(GitClient.class.getName() + ".maintenance.looseRefs", 500);
+
+    /**
+     * What a repository holds, and which maintenance it needs.
+     */
+    static final class Counts {
+        final int looseObjects;
+        final int packs;
+        final int looseRefs;
+        /**
+         * The packs have a reachability bitmap, written by {@link RepackCommand}, which a full repack must keep.
+         */
+        final boolean bitmaps;
+
+        Counts(int looseObjects, int packs, int looseRefs, boolean bitmaps) {
+            this.looseObjects = looseObjects;
+            this.packs = packs;
+            this.looseRefs = looseRefs;
+            this.bitmaps = bitmaps;
+        }
+
+        /**
+         * Loose objects need to be packed.
+         */
+        boolean needsRepack() {
+            return looseObjects > LOOSE_OBJECTS;
+        }
+
+        /**
+         * The packs need to be merged into one.
+         */
+        boolean needsFullRepack() {
+            return packs > PACKS;
+        }
+
+        boolean needsPackRefs() {
+            return looseRefs > LOOSE_REFS;
+        }
+
+        boolean needsMaintenance() {
+            return needsRepack() || needsFullRepack() || needsPackRefs();
+        }
+
+        @Override
+        public String toString() {
+            return looseObjects + " loose objects, " + packs + " packs" + (bitmaps ? " with bitmaps, " : ", ")
+                    + looseRefs + " loose refs";
+        }
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Git repository maintenance");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * Git directories with maintenance scheduled, so that fetching the same repository
+     * repeatedly doesn't queue it several times.
+     */
+    private static final Set<String> PENDING = Collections.synchronizedSet(new HashSet<String>());
+
+    private RepositoryMaintenance() {
+    }
+
+    /**
+     * Called after a fetch into the workspace of the given client, and schedules a check of the repository,
+     * which maintains it if needed. Nothing is counted by the calling thread.
+     *
+     * <p>
+     * The maintenance only runs if no other operation is working on the repository, and stops as soon
+     * as one wants it, so that it never delays a build: it is tried again after a later fetch.
+     *
+     * @return the scheduled check, or null if one is already pending.
+     */
+    static Future<?> afterFetch(final LegacyCompatibleGitAPIImpl git) {
+        if (!ENABLED)
+            return null;
+        final File workspace = git.workspace;
+        final File gitDir = WorkspaceLockManager.gitDirOf(workspace);
+
+        final String key = gitDir.getAbsolutePath();
+        if (!PENDING.add(key))
+            return null;
+        return EXECUTOR.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                try {
+                    if (!count(gitDir).needsMaintenance())
+                        return null;
+                    // not the listener of the client, which belongs to a build that may be over by now
+                    final TaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+                    boolean ran = WorkspaceLockManager.runIfIdle(workspace, listener, new WorkspaceLockManager.Operation() {
+                        void run() throws GitException, InterruptedException {
+                            // counted again, another fetch may have raced this one
+                            Counts counts = count(gitDir);
+                            if (!counts.needsMaintenance())
+                                return;
+                            LOGGER.log(Level.FINE, "Maintaining {0}: {1}", new Object[] {gitDir, counts});
+                            long start = System.currentTimeMillis();
+                            git.maintain(counts, listener);
+                            LOGGER.log(Level.FINE, "Maintained {0} in {1} ms: {2}",
+                                    new Object[] {gitDir, System.currentTimeMillis() - start, count(gitDir)});
+                        }
+                    });
+                    if (!ran)
+                        LOGGER.log(Level.FINE, "Not maintaining {0} while it is in use", gitDir);
+                    return null;
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Stopped maintaining {0}, another operation needs it", gitDir);
+                    return null;
+                } catch (Exception e) {
+                    if (Thread.interrupted()) {
+                        // git was killed, or JGit cancelled, to give way
+                        LOGGER.log(Level.FINE, "Stopped maintaining {0}, another operation needs it", gitDir);
+                        return null;
+                    }
+                    LOGGER.log(Level.WARNING, "Failed to maintain " + gitDir, e);
+                    throw e;
+                } finally {
+                    PENDING.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Counts the packs and loose refs of a repository, and estimates its loose objects
+     * from the ones in <tt>objects/17</tt>, like <tt>gc --auto</tt>.
+     */
+    static Counts count(File gitDir) {
+        File objects = new File(gitDir, "objects");
+        String[] sample = new File(objects, "17").list();
+        int looseObjects = sample == null ? 0 : sample.length * 256;
+
+        int packs = 0;
+        boolean bitmaps = false;
+        String[] files = new File(objects, "pack").list();
+        if (files != null) {
+            for (String f : files) {
+                if (f.endsWith(".pack"))
+                    packs++;
+                else if (f.endsWith(".bitmap"))
+                    bitmaps = true;
+            }
+        }
+
+        return new Counts(looseObjects, packs, countFiles(new File(gitDir, "refs")), bitmaps);
+    }
+
+    private static int countFiles(File dir) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return 0;
+        int n = 0;
+        for (File f : children)
+            n += f.isDirectory() ? countFiles(f) : 1;
+        return n;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RepositoryMaintenance.class.getName());
+}
@@ -0,0 +1,58 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.List;
+
+/**
+ * Command builder for listing commits, the equivalent of
+ * <a href="https://www.kernel.org/pub/software/scm/git/docs/git-rev-list.html">git-rev-list(1)</a>,
+ * newest first.
+ *
+ * <p>
+ * Unlike {@link GitClient#revList(String)} and {@link GitClient#revListAll()}, the commits can be
+ * limited to those changing some paths, which the implementations skip while walking the history.
+ *
+ * @since 1.6.2
+ */
+public interface RevListCommand extends GitCommand {
+    /**
+     * Lists the commits reachable from all the refs, like <tt>git rev-list --all</tt>.
+     */
+    RevListCommand all();
+
+    /**
+     * Adds a revision to list the commits reachable from.
+     *
+     * This method can be invoked multiple times.
+     */
+    RevListCommand reference(String reference);
+
+    /**
+     * Adds a revision whose reachable commits are excluded.
+     * Equivalent of {@code ^rev} on the command line.
+     *
+     * This method can be invoked multiple times.
+     */
+    RevListCommand excludes(String rev);
+
+    /**
+     * Only lists the commits changing a path matching the given glob, such as <tt>services/billing</tt>
+     * or <tt>**&#47;pom.xml</tt>. See {@link ChangelogCommand#includesPath(String)} for the syntax.
+     *
+     * This method can be invoked multiple times.
+     */
+    RevListCommand includesPath(String glob);
+
+    /**
+     * Ignores the changes to the paths matching the given glob.
+     *
+     * This method can be invoked multiple times.
+     */
+    RevListCommand excludesPath(String glob);
+
+    /**
+     * Sets the list that receives the commits.
+     */
+    RevListCommand to(List<ObjectId> revs);
+}
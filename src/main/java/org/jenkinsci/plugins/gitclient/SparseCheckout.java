@@ -0,0 +1,165 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.annotation.CheckForNull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Cone-mode sparse checkout patterns, as stored in <tt>.git/info/sparse-checkout</tt>.
+ *
+ * <p>
+ * Cone mode restricts the patterns to whole directories: the files at the root of the tree
+ * are always kept, so are the files directly inside the parents of a selected directory,
+ * and everything below a selected directory. This is the layout written by
+ * <tt>git sparse-checkout set --cone</tt>, and it is simple enough for {@link JGitAPIImpl}
+ * to honor without a full gitignore-style matcher.
+ */
+class SparseCheckout {
+    /**
+     * True if the whole tree is checked out.
+     */
+    private final boolean full;
+    /**
+     * Directories checked out recursively, without leading nor trailing slash.
+     */
+    private final Set<String> recursive = new TreeSet<String>();
+    /**
+     * Ancestors of {@link #recursive}, of which only the files are checked out.
+     */
+    private final Set<String> parents = new TreeSet<String>();
+
+    private SparseCheckout(boolean full) {
+        this.full = full;
+    }
+
+    /**
+     * Builds the patterns from a list of directories. An empty list selects the whole tree.
+     */
+    static SparseCheckout of(Collection<String> paths) {
+        SparseCheckout sc = new SparseCheckout(paths.isEmpty());
+        for (String p : paths) {
+            p = normalize(p);
+            if (p.length() > 0)
+                sc.recursive.add(p);
+        }
+        // a directory below another selected directory is redundant
+        for (String d : new ArrayList<String>(sc.recursive)) {
+            for (String a = parentOf(d); a != null; a = parentOf(a)) {
+                if (sc.recursive.contains(a)) {
+                    sc.recursive.remove(d);
+                    break;
+                }
+            }
+        }
+        for (String d : sc.recursive) {
+            for (String a = parentOf(d); a != null; a = parentOf(a))
+                sc.parents.add(a);
+        }
+        return sc;
+    }
+
+    /**
+     * Parses the patterns of the given repository.
+     *
+     * @return null if the repository has no sparse-checkout file.
+     * @throws IOException if the file can't be read, or isn't in cone mode.
+     */
+    @CheckForNull
+    static SparseCheckout read(File gitDir) throws IOException {
+        File f = fileOf(gitDir);
+        if (!f.exists())
+            return null;
+
+        Set<String> dirs = new TreeSet<String>();
+        Set<String> parents = new TreeSet<String>();
+        boolean full = true;
+        for (String line : FileUtils.readLines(f, "UTF-8")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#") || line.equals("/*"))
+                continue;
+            if (line.equals("!/*/"))
+                full = false;
+            else if (line.startsWith("!/") && line.endsWith("/*/") && line.indexOf('*') == line.length() - 2)
+                parents.add(normalize(line.substring(2, line.length() - 3)));
+            else if (line.startsWith("/") && line.endsWith("/") && line.indexOf('*') < 0)
+                dirs.add(normalize(line));
+            else
+                throw new IOException("Sparse checkout pattern '" + line + "' in " + f + " is not in cone mode");
+        }
+
+        SparseCheckout sc = new SparseCheckout(full);
+        for (String d : dirs) {
+            if (parents.contains(d)) sc.parents.add(d);
+            else                     sc.recursive.add(d);
+        }
+        return sc;
+    }
+
+    /**
+     * Writes the patterns to <tt>info/sparse-checkout</tt> of the given repository.
+     */
+    void write(File gitDir) throws IOException {
+        FileUtils.writeLines(fileOf(gitDir), "UTF-8", toPatterns(), "\n");
+    }
+
+    static File fileOf(File gitDir) {
+        return new File(gitDir, "info/sparse-checkout");
+    }
+
+    List<String> toPatterns() {
+        List<String> patterns = new ArrayList<String>();
+        patterns.add("/*");
+        if (full)
+            return patterns;
+
+        patterns.add("!/*/");
+        Set<String> all = new TreeSet<String>(parents);
+        all.addAll(recursive);
+        for (String d : all) {
+            patterns.add("/" + d + "/");
+            if (parents.contains(d))
+                patterns.add("!/" + d + "/*/");
+        }
+        return patterns;
+    }
+
+    boolean isFull() {
+        return full;
+    }
+
+    /**
+     * Checks if the given file, relative to the root of the tree, is part of the checkout.
+     */
+    boolean includes(String path) {
+        if (full)
+            return true;
+        String dir = parentOf(path);
+        if (dir == null || parents.contains(dir))
+            return true;
+        for (; dir != null; dir = parentOf(dir)) {
+            if (recursive.contains(dir))
+                return true;
+        }
+        return false;
+    }
+
+    private static String normalize(String path) {
+        path = path.trim().replace('\\', '/');
+        while (path.startsWith("/")) path = path.substring(1);
+        while (path.endsWith("/"))   path = path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    @CheckForNull
+    private static String parentOf(String path) {
+        int idx = path.lastIndexOf('/');
+        return idx < 0 ? null : path.substring(0, idx);
+    }
+}
@@ -0,0 +1,266 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Progress of a git operation that transfers objects, such as a fetch or a clone: the phases it went
+ * through (counting, compressing, receiving objects, resolving deltas, checking out files) with their
+ * duration, and the amount of data received.
+ *
+ * <p>
+ * It is fed the progress reported by JGit through {@link ProgressMonitor}, or the progress command
+ * line git writes to stderr through {@link #parser(java.io.OutputStream)}.
+ *
+ * <p>
+ * {@link #publish(TaskListener)} logs a record to the {@code org.jenkinsci.plugins.gitclient.TransferStats}
+ * logger, whose parameters are this object, so a log recorder or handler can collect the numbers across
+ * repositories and agents. Only clones and fetches also print a one line summary to the build log.
+ * Callers get the statistics of their own clone or fetch through a {@link Handler}, see
+ * {@link CloneCommand#stats(Handler)} and {@link FetchCommand#stats(Handler)}.
+ *
+ * @since 1.6.2
+ */
+public class TransferStats implements Serializable {
+    /**
+     * Receives the statistics of a transfer.
+     *
+     * When the command runs on a remote node, the handler is called back through the channel.
+     */
+    public interface Handler {
+        /**
+         * Called once the transfer completed.
+         */
+        void transferred(TransferStats stats) throws IOException;
+    }
+
+    /**
+     * One step of the operation, as reported by git.
+     */
+    public static class Phase implements Serializable {
+        private final String name;
+        private final long start;
+        private long end;
+        private int completed;
+        private int total;
+
+        Phase(String name, long start, int total) {
+            this.name = name;
+            this.start = end = start;
+            this.total = total;
+        }
+
+        /**
+         * Name of the phase, such as "Receiving objects", or "remote: Counting objects"
+         * for the work done by the server.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public long getDurationMillis() {
+            return end - start;
+        }
+
+        /**
+         * Units of work done, usually objects.
+         */
+        public int getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Units of work expected, or 0 if unknown.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final String operation;
+    private final long start = System.currentTimeMillis();
+    private long end;
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private long bytesReceived = -1;
+
+    public TransferStats(String operation) {
+        this.operation = operation;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    public Phase getPhase(String name) {
+        for (Phase p : phases)
+            if (p.name.equals(name))
+                return p;
+        return null;
+    }
+
+    public long getDurationMillis() {
+        return (end == 0 ? System.currentTimeMillis() : end) - start;
+    }
+
+    /**
+     * Number of objects received, or -1 if nothing was received.
+     */
+    public int getObjectsReceived() {
+        Phase p = getPhase(RECEIVING);
+        return p == null ? -1 : p.completed;
+    }
+
+    /**
+     * Bytes received, or -1 if unknown: JGit doesn't report it.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Average transfer rate while receiving objects, or -1 if unknown.
+     */
+    public long getBytesPerSecond() {
+        Phase p = getPhase(RECEIVING);
+        if (p == null || bytesReceived < 0 || p.getDurationMillis() <= 0)
+            return -1;
+        return bytesReceived * 1000 / p.getDurationMillis();
+    }
+
+    /**
+     * Records the start of a phase, ending the current one.
+     */
+    synchronized void begin(String name, int total) {
+        long now = System.currentTimeMillis();
+        Phase current = current();
+        if (current != null)
+            current.end = now;
+        phases.add(new Phase(name, now, total));
+    }
+
+    /**
+     * Records the progress of a phase, starting it if it is not the current one.
+     */
+    synchronized void progress(String name, int completed, int total) {
+        Phase current = current();
+        if (current == null || !current.name.equals(name)) {
+            begin(name, total);
+            current = current();
+        }
+        current.completed = completed;
+        if (total > 0)
+            current.total = total;
+        current.end = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds to the work done in the current phase.
+     */
+    synchronized void update(int completed) {
+        Phase current = current();
+        if (current != null) {
+            current.completed += completed;
+            current.end = System.currentTimeMillis();
+        }
+    }
+
+    synchronized void endPhase() {
+        Phase current = current();
+        if (current != null)
+            current.end = System.currentTimeMillis();
+    }
+
+    synchronized void setBytesReceived(long bytes) {
+        bytesReceived = bytes;
+    }
+
+    synchronized void end() {
+        if (end == 0)
+            end = System.currentTimeMillis();
+    }
+
+    private Phase current() {
+        return phases.isEmpty() ? null : phases.get(phases.size() - 1);
+    }
+
+    /**
+     * Returns an output stream that parses the progress git writes to stderr, and passes it on to the given stream.
+     */
+    GitProgressParser parser(java.io.OutputStream out) {
+        return new GitProgressParser(this, out);
+    }
+
+    /**
+     * Ends the operation, and reports it to the logger, and to the build log for a clone or a fetch.
+     */
+    public void publish(TaskListener listener) {
+        end();
+        String summary = toString();
+        if (operation.equals("clone") || operation.equals("fetch"))
+            listener.getLogger().println(summary);
+        LogRecord r = new LogRecord(Level.FINE, summary);
+        r.setLoggerName(LOGGER.getName());
+        r.setParameters(new Object[] {this});
+        LOGGER.log(r);
+    }
+
+    /**
+     * Summary such as
+     * <tt>fetch: 1200 objects, 12.3 MiB in 4.2 s (3.1 MiB/s); remote: Counting objects 0.3 s, Receiving objects 3.4 s, ...</tt>
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder buf = new StringBuilder(operation).append(": ");
+        int objects = getObjectsReceived();
+        buf.append(objects < 0 ? "no objects" : objects + " objects");
+        if (bytesReceived >= 0)
+            buf.append(", ").append(formatBytes(bytesReceived));
+        buf.append(" in ").append(formatSeconds(getDurationMillis()));
+        long rate = getBytesPerSecond();
+        if (rate >= 0)
+            buf.append(" (").append(formatBytes(rate)).append("/s)");
+        String sep = "; ";
+        for (Phase p : phases) {
+            buf.append(sep).append(p.name).append(' ').append(formatSeconds(p.getDurationMillis()));
+            sep = ", ";
+        }
+        return buf.toString();
+    }
+
+    static String formatSeconds(long millis) {
+        return String.format(Locale.ENGLISH, "%.1f s", millis / 1000.0);
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " bytes";
+        String[] units = {"KiB", "MiB", "GiB", "TiB"};
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format(Locale.ENGLISH, "%.1f %s", value, units[unit]);
+    }
+
+    static final String RECEIVING = "Receiving objects";
+
+    private static final Logger LOGGER = Logger.getLogger(TransferStats.class.getName());
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,212 @@
+package org.jenkinsci.plugins.gitclient;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.HttpTransport;
+import org.eclipse.jgit.transport.SshTransport;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lists the refs of remote repositories with JGit, keeping the transports open for a while
+ * so that listing the same repository again, such as once per branch when polling, reuses the
+ * SSH session or the negotiated HTTP authentication instead of connecting from scratch.
+ *
+ * <p>
+ * Listing refs doesn't need a local repository, but JGit wants one to open a {@link Transport}:
+ * a single empty in-memory repository is shared for that, instead of creating and deleting a
+ * temporary repository on disk every time.
+ *
+ * <p>
+ * A transport is only reused for the same URL and the same {@link CredentialsProvider}, so that
+ * a client never borrows a session authenticated with the credentials of another one. As each client
+ * has its own provider, transports are only reused by the client which opened them, such as when it
+ * polls several branches, and an idle transport keeps its provider, and the listener of its build,
+ * until it is closed. Transports left idle for <tt>org.jenkinsci.plugins.gitclient.TransportPool.keepAlive</tt>
+ * seconds (30 by default) are closed. A pooled transport which fails, such as an SSH session dropped while it was
+ * idle, is closed and replaced by a new connection.
+ */
+final class TransportPool {
+    private static final long KEEP_ALIVE = TimeUnit.SECONDS.toNanos(
+            Long.getLong(TransportPool.class.getName() + ".keepAlive", 30));
+
+    /**
+     * Stands for the local repository of the transports, which ls-remote never reads nor writes.
+     */
+    private static final Repository DUMMY = new InMemoryRepository(new DfsRepositoryDescription("ls-remote"));
+
+    /**
+     * Idle transports, the most recently used first.
+     */
+    private static final Map<Key, LinkedList<Idle>> IDLE = new HashMap<Key, LinkedList<Idle>>();
+
+    private static final ScheduledThreadPoolExecutor REAPER = createReaper();
+
+    private TransportPool() {
+    }
+
+    /**
+     * The refs advertised by the remote repository, as <tt>git ls-remote</tt>.
+     */
+    static Map<String, Ref> getRefs(URIish uri, CredentialsProvider provider) throws IOException {
+        Key key = new Key(uri, provider);
+        Transport tn = borrow(key);
+        if (tn != null) {
+            try {
+                return getRefs(key, tn);
+            } catch (IOException e) {
+                // the server or the network may have dropped the session while it was idle
+                LOGGER.log(Level.FINE, "Reconnecting to " + uri + ", the pooled transport failed", e);
+            }
+        }
+        return getRefs(key, open(key));
+    }
+
+    /**
+     * Lists the refs with the transport, and returns it to the pool if it can be reused.
+     */
+    private static Map<String, Ref> getRefs(Key key, Transport tn) throws IOException {
+        boolean reusable = false;
+        try {
+            FetchConnection c = tn.openFetch();
+            try {
+                Map<String, Ref> refs = c.getRefsMap();
+                reusable = true;
+                return refs;
+            } finally {
+                c.close();
+            }
+        } finally {
+            if (reusable && (tn instanceof SshTransport || tn instanceof HttpTransport))
+                release(key, tn);
+            else
+                tn.close();
+        }
+    }
+
+    /**
+     * @return an idle transport, or null if there is none.
+     */
+    @CheckForNull
+    private static Transport borrow(Key key) {
+        synchronized (IDLE) {
+            LinkedList<Idle> idle = IDLE.get(key);
+            if (idle == null)
+                return null;
+            Idle i = idle.removeFirst();
+            if (idle.isEmpty())
+                IDLE.remove(key);
+            return i.transport;
+        }
+    }
+
+    private static Transport open(Key key) throws IOException {
+        Transport tn = Transport.open(DUMMY, key.uri);
+        tn.setCredentialsProvider(key.provider);
+        return tn;
+    }
+
+    private static void release(Key key, Transport tn) {
+        synchronized (IDLE) {
+            LinkedList<Idle> idle = IDLE.get(key);
+            if (idle == null) {
+                idle = new LinkedList<Idle>();
+                IDLE.put(key, idle);
+            }
+            idle.addFirst(new Idle(tn));
+        }
+        REAPER.schedule(new Runnable() {
+            public void run() {
+                reap();
+            }
+        }, KEEP_ALIVE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Closes the transports idle for too long.
+     */
+    private static void reap() {
+        long now = System.nanoTime();
+        List<Transport> expired = new ArrayList<Transport>();
+        synchronized (IDLE) {
+            for (Iterator<LinkedList<Idle>> it = IDLE.values().iterator(); it.hasNext(); ) {
+                LinkedList<Idle> idle = it.next();
+                while (!idle.isEmpty() && now - idle.getLast().since >= KEEP_ALIVE)
+                    expired.add(idle.removeLast().transport);
+                if (idle.isEmpty())
+                    it.remove();
+            }
+        }
+        for (Transport tn : expired)
+            tn.close();
+    }
+
+    private static ScheduledThreadPoolExecutor createReaper() {
+        ScheduledThreadPoolExecutor reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TransportPool reaper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // no thread at all while no transport is idle
+        reaper.setKeepAliveTime(KEEP_ALIVE, TimeUnit.NANOSECONDS);
+        reaper.allowCoreThreadTimeOut(true);
+        return reaper;
+    }
+
+    private static final class Idle {
+        final Transport transport;
+        final long since = System.nanoTime();
+
+        Idle(Transport transport) {
+            this.transport = transport;
+        }
+    }
+
+    private static final class Key {
+        final URIish uri;
+        final String canonicalUri;
+        final CredentialsProvider provider;
+
+        Key(URIish uri, CredentialsProvider provider) {
+            this.uri = uri;
+            // canonicalization drops the password, which may differ for the same repository
+            this.canonicalUri = GitURICanonicalizer.canonicalize(uri) + '\n' + uri.getPass();
+            this.provider = provider;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key that = (Key) o;
+            return canonicalUri.equals(that.canonicalUri) && provider == that.provider;
+        }
+
+        @Override
+        public int hashCode() {
+            return canonicalUri.hashCode() * 31 + System.identityHashCode(provider);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(TransportPool.class.getName());
+}
@@ -0,0 +1,184 @@
+package org.jenkinsci.plugins.gitclient;
+
+import org.apache.tools.tar.TarConstants;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+import org.apache.tools.zip.ZipEntry;
+import org.apache.tools.zip.ZipOutputStream;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams a tree straight from the object database as a tar or zip archive,
+ * mimicking what <tt>git archive</tt> produces.
+ *
+ * <p>
+ * Blobs are copied through {@link ObjectLoader#copyTo(OutputStream)}, so large files are
+ * never fully loaded in memory and nothing is written to the working tree.
+ */
+abstract class TreeArchiver {
+    /**
+     * git-archive applies <tt>tar.umask</tt>, which defaults to 0002.
+     */
+    private static final int FILE_MODE = 0664;
+    private static final int EXECUTABLE_MODE = 0775;
+    private static final int DIRECTORY_MODE = 0775;
+
+    protected final ObjectReader reader;
+    protected final long modTime;
+
+    protected TreeArchiver(ObjectReader reader, long modTime) {
+        this.reader = reader;
+        this.modTime = modTime;
+    }
+
+    static TreeArchiver create(ArchiveCommand.Format format, ObjectReader reader, long modTime, OutputStream out) {
+        switch (format) {
+        case ZIP:   return new Zip(reader, modTime, out);
+        default:    return new Tar(reader, modTime, out);
+        }
+    }
+
+    /**
+     * Writes the whole archive.
+     *
+     * @param prefix
+     *      Optional prefix prepended to all the paths, as in <tt>git archive --prefix</tt>.
+     * @param filter
+     *      Optional filter to only archive some paths of the tree.
+     */
+    void archive(RevTree tree, @Nullable String prefix, @Nullable TreeFilter filter) throws IOException {
+        if (prefix == null) prefix = "";
+        if (prefix.endsWith("/"))
+            directory(prefix);
+
+        TreeWalk tw = new TreeWalk(reader);
+        try {
+            tw.addTree(tree);
+            tw.setRecursive(false);
+            if (filter != null) tw.setFilter(filter);
+
+            while (tw.next()) {
+                String path = prefix + tw.getPathString();
+                int mode = tw.getRawMode(0);
+                if (tw.isSubtree()) {
+                    directory(path + "/");
+                    tw.enterSubtree();
+                } else if (FileMode.GITLINK.equals(mode)) {
+                    // like git-archive, submodules are archived as empty directories
+                    directory(path + "/");
+                } else {
+                    ObjectLoader ol = reader.open(tw.getObjectId(0), Constants.OBJ_BLOB);
+                    if (FileMode.SYMLINK.equals(mode))
+                        symlink(path, new String(ol.getCachedBytes(), Constants.CHARSET.name()));
+                    else
+                        file(path, FileMode.EXECUTABLE_FILE.equals(mode) ? EXECUTABLE_MODE : FILE_MODE, ol);
+                }
+            }
+        } finally {
+            tw.release();
+        }
+        finish();
+    }
+
+    protected abstract void directory(String path) throws IOException;
+
+    protected abstract void symlink(String path, String target) throws IOException;
+
+    protected abstract void file(String path, int mode, ObjectLoader content) throws IOException;
+
+    /**
+     * Writes the trailer of the archive. The underlying stream is flushed but not closed.
+     */
+    protected abstract void finish() throws IOException;
+
+    private static final class Tar extends TreeArchiver {
+        private final TarOutputStream out;
+
+        Tar(ObjectReader reader, long modTime, OutputStream out) {
+            super(reader, modTime);
+            this.out = new TarOutputStream(out);
+            this.out.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+        }
+
+        protected void directory(String path) throws IOException {
+            TarEntry e = new TarEntry(path);
+            e.setMode(040000 | DIRECTORY_MODE);
+            e.setModTime(modTime);
+            out.putNextEntry(e);
+            out.closeEntry();
+        }
+
+        protected void symlink(String path, String target) throws IOException {
+            TarEntry e = new TarEntry(path, TarConstants.LF_SYMLINK);
+            e.setMode(0120000 | 0777);
+            e.setLinkName(target);
+            e.setModTime(modTime);
+            out.putNextEntry(e);
+            out.closeEntry();
+        }
+
+        protected void file(String path, int mode, ObjectLoader content) throws IOException {
+            TarEntry e = new TarEntry(path);
+            e.setMode(0100000 | mode);
+            e.setSize(content.getSize());
+            e.setModTime(modTime);
+            out.putNextEntry(e);
+            content.copyTo(out);
+            out.closeEntry();
+        }
+
+        protected void finish() throws IOException {
+            out.finish();
+            out.flush();
+        }
+    }
+
+    private static final class Zip extends TreeArchiver {
+        private final ZipOutputStream out;
+
+        Zip(ObjectReader reader, long modTime, OutputStream out) {
+            super(reader, modTime);
+            this.out = new ZipOutputStream(out);
+            this.out.setEncoding("UTF-8");
+        }
+
+        private void put(String path, int mode) throws IOException {
+            ZipEntry e = new ZipEntry(path);
+            e.setUnixMode(mode);
+            e.setTime(modTime);
+            out.putNextEntry(e);
+        }
+
+        protected void directory(String path) throws IOException {
+            put(path, 040000 | DIRECTORY_MODE);
+            out.closeEntry();
+        }
+
+        protected void symlink(String path, String target) throws IOException {
+            put(path, 0120000 | 0777);
+            out.write(Constants.encode(target));
+            out.closeEntry();
+        }
+
+        protected void file(String path, int mode, ObjectLoader content) throws IOException {
+            put(path, 0100000 | mode);
+            content.copyTo(out);
+            out.closeEntry();
+        }
+
+        protected void finish() throws IOException {
+            out.finish();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.model.TaskListener;
+import hudson.plugins.git.GitException;
+import hudson.plugins.git.GitLockFailedException;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serializes the operations that modify a repository, such as checkout, merge or reset, so that
+ * concurrent polling and building on one workspace wait for each other instead of failing on
+ * <tt>index.lock</tt>. Fetches, which git keeps safe to run alongside other operations, don't take
+ * the lock for their whole transfer: they are only {@link #retry retried} on a lock failure.
+ *
+ * <p>
+ * Threads of this JVM are serialized by a {@link ReentrantLock} per repository, and other processes
+ * using this library by an advisory {@link FileLock} on {@value #LOCK_FILE_NAME} in the git directory.
+ * If git still reports a lock held by someone else (a git started by hand, or a killed process),
+ * a {@link RetryableOperation} is retried with an exponential backoff until {@link #LOCK_TIMEOUT}
+ * seconds have passed. Other operations, such as a merge, aren't safe to run twice and fail right away.
+ *
+ * <p>
+ * A git lock file is only removed when it is known to be left over by an operation of this library
+ * that didn't complete, such as a git killed on timeout or a crashed agent: {@value #LOCK_FILE_NAME}
+ * records when such an operation ran, and a lock file modified during that time is removed by the
+ * next operation. Any other lock file may belong to a live git, and is reported instead.
+ *
+ * <p>
+ * Operations are reentrant: an operation invoked from within another one on the same repository
+ * runs under the lock already held, and leaves the retrying to the outer one.
+ */
+final class WorkspaceLockManager {
+    /**
+     * How long to wait for a repository to be unlocked, in seconds.
+     */
+    static int LOCK_TIMEOUT = Integer.getInteger(GitClient.class.getName() + ".lockTimeout", 120);
+
+    static final String LOCK_FILE_NAME = "git-client.lck";
+
+    private static final long INITIAL_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 5000;
+
+    /**
+     * The lock of each repository in use by this JVM, keyed by the canonical path of its git directory,
+     * so that operations on unrelated repositories never wait for each other. A lock is removed once
+     * no thread uses it anymore.
+     */
+    private static final Map<String, RepositoryLock> LOCKS = new HashMap<String, RepositoryLock>();
+
+    /**
+     * Repositories locked by this JVM, keyed by the canonical path of their git directory.
+     * An entry is only ever touched by the thread holding the lock of its repository.
+     */
+    private static final Map<String, Held> HELD = new ConcurrentHashMap<String, Held>();
+
+    /**
+     * Threads running a {@link #runIfIdle background operation}, keyed like {@link #LOCKS},
+     * interrupted when another operation wants the repository.
+     */
+    private static final Map<String, Thread> YIELDING = new ConcurrentHashMap<String, Thread>();
+
+    /**
+     * Paths of lock files in the messages of git and JGit.
+     */
+    private static final Pattern[] LOCK_FILE_PATTERNS = {
+        Pattern.compile("'([^'\\n]+\\.lock)'"),                   // fatal: Unable to create '.../index.lock': File exists.
+        Pattern.compile("could not lock config file ([^:\\n]+)"),
+        Pattern.compile("Cannot lock (\\S+)"),                    // JGit, the locked file itself
+    };
+
+    private static final Pattern LOCK_FAILURE = Pattern.compile(
+            "\\.lock'?: File exists|Cannot lock|cannot lock ref|could not lock|index\\.lock");
+
+    /**
+     * A modification of a repository, run under its lock.
+     */
+    static abstract class Operation {
+        abstract void run() throws GitException, InterruptedException;
+    }
+
+    /**
+     * An operation which can be run again from scratch if it failed on a lock, such as a checkout,
+     * a reset or a fetch.
+     */
+    static abstract class RetryableOperation extends Operation {
+    }
+
+    private static final class RepositoryLock extends ReentrantLock {
+        /**
+         * Threads holding or waiting for the lock, guarded by {@link WorkspaceLockManager#LOCKS}.
+         */
+        int users;
+    }
+
+    private static final class Held {
+        final Thread owner = Thread.currentThread();
+        final long since = System.currentTimeMillis();
+        RandomAccessFile file;
+        FileLock lock;
+        int depth;
+        /**
+         * When the last operation which didn't complete ran, or -1.
+         */
+        long abandonedFrom = -1, abandonedTo = -1;
+    }
+
+    private WorkspaceLockManager() {
+    }
+
+    /**
+     * Runs the operation while holding the lock of the repository in the given workspace,
+     * retrying it for as long as git reports the repository to be locked by someone else.
+     *
+     * @throws GitLockFailedException
+     *      if the repository is still locked after {@link #LOCK_TIMEOUT} seconds.
+     */
+    static void run(File workspace, TaskListener listener, Operation op) throws GitException, InterruptedException {
+        File gitDir = gitDirOf(workspace);
+        String key = keyOf(gitDir);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_TIMEOUT);
+
+        RepositoryLock lock = acquire(key);
+        try {
+            if (!lock.tryLock()) {
+                // a background operation gives way
+                Thread yielding = YIELDING.get(key);
+                if (yielding != null)
+                    yielding.interrupt();
+                if (!lock.tryLock(LOCK_TIMEOUT, TimeUnit.SECONDS))
+                    throw new GitLockFailedException("Timed out waiting for other operations on " + gitDir + " to complete");
+            }
+            try {
+                Held held = HELD.get(key);
+                if (held != null && held.owner == Thread.currentThread()) {
+                    held.depth++;
+                    try {
+                        op.run();
+                    } finally {
+                        held.depth--;
+                    }
+                    return;
+                }
+
+                held = lockFile(gitDir, deadline, listener);
+                HELD.put(key, held);
+                boolean completed = false;
+                try {
+                    runWithRetries(op, deadline, held, listener);
+                    completed = true;
+                } finally {
+                    HELD.remove(key);
+                    unlockFile(held, completed ? "" : abandoned(held));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            release(key, lock);
+        }
+    }
+
+    /**
+     * Runs an operation that git keeps safe alongside the others, such as a fetch, without taking the lock
+     * of the repository, so that a long transfer doesn't hold up the other operations on the workspace.
+     * It is only retried while git reports the repository locked, and its lock files are never removed.
+     */
+    static void retry(File workspace, TaskListener listener, RetryableOperation op) throws GitException, InterruptedException {
+        Held held = HELD.get(keyOf(gitDirOf(workspace)));
+        if (held != null && held.owner == Thread.currentThread()) {
+            op.run(); // the outer operation retries
+            return;
+        }
+        runWithRetries(op, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_TIMEOUT), null, listener);
+    }
+
+    /**
+     * Runs a background operation, such as maintenance, only if no other operation is working on the
+     * repository, and without retrying it. The thread running it is interrupted as soon as another
+     * operation wants the repository, so that the operation gives way instead of making it wait.
+     *
+     * @return false if the repository is busy and the operation was skipped.
+     */
+    static boolean runIfIdle(File workspace, TaskListener listener, Operation op) throws GitException, InterruptedException {
+        File gitDir = gitDirOf(workspace);
+        String key = keyOf(gitDir);
+        RepositoryLock lock = acquire(key);
+        try {
+            if (!lock.tryLock())
+                return false;
+            try {
+                Held held;
+                try {
+                    held = lockFile(gitDir, System.currentTimeMillis(), listener);
+                } catch (GitLockFailedException e) {
+                    return false; // another process
+                }
+                HELD.put(key, held);
+                YIELDING.put(key, Thread.currentThread());
+                boolean completed = false;
+                try {
+                    // someone may have started waiting before it could be interrupted
+                    if (lock.hasQueuedThreads()) {
+                        completed = true;
+                        return false;
+                    }
+                    op.run();
+                    completed = true;
+                    return true;
+                } finally {
+                    YIELDING.remove(key);
+                    HELD.remove(key);
+                    unlockFile(held, completed ? "" : abandoned(held));
+                }
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            release(key, lock);
+        }
+    }
+
+    private static RepositoryLock acquire(String key) {
+        synchronized (LOCKS) {
+            RepositoryLock lock = LOCKS.get(key);
+            if (lock == null)
+                LOCKS.put(key, lock = new RepositoryLock());
+            lock.users++;
+            return lock;
+        }
+    }
+
+    private static void release(String key, RepositoryLock lock) {
+        synchronized (LOCKS) {
+            if (--lock.users == 0)
+                LOCKS.remove(key);
+        }
+    }
+
+    /**
+     * @param held
+     *      the lock of the repository, or null if it isn't held and no lock file may be removed.
+     */
+    private static void runWithRetries(Operation op, long deadline, Held held, TaskListener listener) throws GitException, InterruptedException {
+        long backoff = INITIAL_BACKOFF;
+        while (true) {
+            try {
+                op.run();
+                return;
+            } catch (GitException e) {
+                if (!isLockFailure(e))
+                    throw e;
+                if (!(op instanceof RetryableOperation))
+                    throw e instanceof GitLockFailedException ? e
+                            : new GitLockFailedException("Could not lock repository. Please try again", e);
+                if (held != null && removeAbandonedLockFile(e, held, listener))
+                    continue;
+                if (System.currentTimeMillis() + backoff > deadline) {
+                    File lock = lockFileOf(e);
+                    if (lock != null && lock.exists())
+                        throw new GitLockFailedException("Repository is locked by " + lock
+                                + ". Remove it if no git process is working on the repository", e);
+                    throw e instanceof GitLockFailedException ? e
+                            : new GitLockFailedException("Could not lock repository. Please try again", e);
+                }
+                listener.getLogger().println("Repository is locked, retrying in " + backoff + " ms");
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    private static Held lockFile(File gitDir, long deadline, TaskListener listener) throws GitException, InterruptedException {
+        Held held = new Held();
+        if (!gitDir.isDirectory())
+            return held; // nothing to protect yet, such as before init
+        try {
+            held.file = new RandomAccessFile(new File(gitDir, LOCK_FILE_NAME), "rw");
+            long backoff = INITIAL_BACKOFF;
+            boolean waiting = false;
+            while ((held.lock = held.file.getChannel().tryLock()) == null) {
+                if (System.currentTimeMillis() + backoff > deadline)
+                    throw new GitLockFailedException("Timed out waiting for another process to release " + gitDir);
+                if (!waiting) {
+                    listener.getLogger().println("Waiting for another process working on " + gitDir);
+                    waiting = true;
+                }
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+            // an operation still recorded as running never completed, as no one else holds the lock
+            String[] record = String.valueOf(held.file.readLine()).trim().split(" ");
+            if (record.length > 0 && record[0].matches("\\d+")) {
+                held.abandonedFrom = Long.parseLong(record[0]);
+                held.abandonedTo = record.length > 1 && record[1].matches("\\d+") ? Long.parseLong(record[1]) : held.since;
+            }
+            write(held, held.since + "\n");
+            return held;
+        } catch (IOException e) {
+            // a read-only or exotic file system, fall back on the in-JVM lock
+            unlockFile(held, null);
+            return new Held();
+        } catch (GitException e) {
+            unlockFile(held, null);
+            throw e;
+        } catch (InterruptedException e) {
+            unlockFile(held, null);
+            throw e;
+        }
+    }
+
+    private static void write(Held held, String record) throws IOException {
+        held.file.setLength(0);
+        held.file.writeBytes(record);
+    }
+
+    /**
+     * The record of an operation which failed, and may have left lock files behind, for the next
+     * operation to remove them.
+     */
+    private static String abandoned(Held held) {
+        long from = held.abandonedFrom < 0 ? held.since : Math.min(held.since, held.abandonedFrom);
+        return from + " " + System.currentTimeMillis() + "\n";
+    }
+
+    /**
+     * @param record
+     *      what to leave in {@value #LOCK_FILE_NAME}, or null to leave it unchanged.
+     */
+    private static void unlockFile(Held held, String record) {
+        if (held.lock != null && record != null) {
+            try {
+                write(held, record);
+            } catch (IOException e) {
+                // the next operation won't remove the lock files left behind
+            }
+        }
+        try {
+            if (held.lock != null) held.lock.release();
+        } catch (IOException e) {
+            // closing the file releases it anyway
+        }
+        try {
+            if (held.file != null) held.file.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    static boolean isLockFailure(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof GitLockFailedException)
+                return true;
+            if (e.getMessage() != null && LOCK_FAILURE.matcher(e.getMessage()).find())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the lock file named in the error if it was left over by an operation of this library that didn't
+     * complete: it was modified while that operation ran, and no process using this library has run since.
+     *
+     * @return true if a lock file was removed, and the operation can be retried right away.
+     */
+    private static boolean removeAbandonedLockFile(Throwable e, Held held, TaskListener listener) {
+        if (held.lock == null || held.abandonedFrom < 0)
+            return false;
+        File lock = lockFileOf(e);
+        if (lock == null || !lock.isFile())
+            return false;
+        long modified = lock.lastModified();
+        // file systems may round the modification time down to the second
+        if (modified < held.abandonedFrom - 1000 || modified > held.abandonedTo)
+            return false;
+        listener.getLogger().println("Removing lock file " + lock + " left over by an operation that didn't complete");
+        return FileUtils.deleteQuietly(lock);
+    }
+
+    static File lockFileOf(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            String message = e.getMessage();
+            if (message == null)
+                continue;
+            for (Pattern p : LOCK_FILE_PATTERNS) {
+                Matcher m = p.matcher(message);
+                if (m.find()) {
+                    String path = m.group(1);
+                    return new File(path.endsWith(".lock") ? path : path + ".lock");
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The git directory of a workspace: <tt>.git</tt>, the target of a <tt>.git</tt> file
+     * as used by submodules, or the workspace itself if it is a bare repository.
+     */
+    static File gitDirOf(File workspace) {
+        File dotGit = new File(workspace, ".git");
+        if (dotGit.isFile()) {
+            try {
+                String content = FileUtils.readFileToString(dotGit).trim();
+                if (content.startsWith("gitdir:")) {
+                    File dir = new File(content.substring("gitdir:".length()).trim());
+                    return dir.isAbsolute() ? dir : new File(workspace, dir.getPath());
+                }
+            } catch (IOException e) {
+                // treat it as a regular workspace
+            }
+        }
+        if (!dotGit.exists() && new File(workspace, "HEAD").isFile() && new File(workspace, "objects").isDirectory())
+            return workspace;
+        return dotGit;
+    }
+
+    private static String keyOf(File gitDir) {
+        try {
+            return gitDir.getCanonicalPath();
+        } catch (IOException e) {
+            return gitDir.getAbsolutePath();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.jenkinsci.plugins.gitclient;
+
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.os.PosixAPI;
+import hudson.util.ArgumentListBuilder;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A clean checkout of a repository kept on a node, typically one per commit, from which
+ * {@link CloneCommand#template(WorkspaceTemplate) clones} of the same repository populate their working tree
+ * by linking or cloning its files, instead of writing every file from the objects.
+ *
+ * <p>
+ * The index of the clone is built from the tree of the commit of the template, and <tt>HEAD</tt> is detached
+ * at that commit, so that the checkout that follows the clone only updates what differs. A file of the
+ * template is only used if its index entry has the id of the tree entry and the file didn't change since
+ * it was checked out; the others, such as files modified or staged in the template, are written from the
+ * objects instead. Symbolic links and submodules are left to that checkout.
+ *
+ * <p>
+ * Command line git reads the files once more on the first checkout, as their change time differs from the
+ * one recorded in the index, but doesn't write them again.
+ *
+ * @since 1.6.2
+ */
+public class WorkspaceTemplate implements Serializable {
+    public enum Mode {
+        /**
+         * Copy-on-write clones of the files (<tt>cp --reflink</tt>), on file systems supporting them such as
+         * Btrfs or XFS. The files share their blocks with the template until either is modified.
+         */
+        REFLINK,
+        /**
+         * Hard links to the files of the template. Nothing is written, but the files are shared with the template:
+         * a build modifying a file in place, instead of replacing it, modifies the template as well.
+         */
+        HARDLINK,
+        /**
+         * Plain copies of the files.
+         */
+        COPY
+    }
+
+    /**
+     * Number of files cloned by each <tt>cp --reflink</tt> process.
+     */
+    private static final int REFLINK_BATCH = 500;
+
+    private final String path;
+    private final Mode mode;
+
+    /**
+     * @param path
+     *      Working tree of the template, on the same node as the clone. It must be on the same file system
+     *      for links and clones to be possible, otherwise the files are copied.
+     */
+    public WorkspaceTemplate(String path, Mode mode) {
+        this.path = path;
+        this.mode = mode;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Populates the working tree and the index of the given workspace from the template, and detaches
+     * its <tt>HEAD</tt> at the commit of the template.
+     *
+     * @return false if the template can't be used, such as when its commit isn't in the repository of the
+     *      workspace, leaving the workspace untouched.
+     * @throws IOException
+     *      if the workspace couldn't be populated, in which case the files written so far are removed.
+     */
+    boolean populate(File workspace, TaskListener listener) throws IOException, InterruptedException {
+        File templateDir = new File(path);
+        if (!new File(templateDir, Constants.DOT_GIT).exists()) {
+            listener.getLogger().println("Not using the workspace template " + path + ": not a git working tree");
+            return false;
+        }
+        Repository template = new FileRepositoryBuilder().setWorkTree(templateDir).build();
+        Repository repo = new FileRepositoryBuilder().setWorkTree(workspace).build();
+        try {
+            ObjectId commit = template.resolve(Constants.HEAD + "^{commit}");
+            if (commit == null || !repo.hasObject(commit)) {
+                listener.getLogger().println("Not using the workspace template " + path + ": its commit "
+                        + (commit == null ? "is unknown" : commit.name() + " isn't in the repository"));
+                return false;
+            }
+            listener.getLogger().println("Populating the workspace from the template " + path + " at " + commit.name());
+
+            try {
+                populate(template, templateDir, commit, repo, workspace, listener);
+
+                RefUpdate u = repo.updateRef(Constants.HEAD, true);
+                u.setNewObjectId(commit);
+                switch (u.forceUpdate()) {
+                case NEW:
+                case FORCED:
+                case NO_CHANGE:
+                case FAST_FORWARD:
+                    return true;
+                default:
+                    throw new IOException("Could not update HEAD of " + workspace + " to " + commit.name());
+                }
+            } catch (IOException e) {
+                // leave the workspace as the clone left it, for the checkout to write every file
+                clean(workspace, repo);
+                throw e;
+            }
+        } finally {
+            repo.close();
+            template.close();
+        }
+    }
+
+    private void populate(Repository template, File templateDir, ObjectId commit, Repository repo, File workspace,
+            TaskListener listener) throws IOException, InterruptedException {
+        DirCache source = template.readDirCache();
+        long indexTime = template.getIndexFile().lastModified();
+        List<DirCacheEntry> all = new ArrayList<DirCacheEntry>();
+        List<DirCacheEntry> entries = new ArrayList<DirCacheEntry>();
+        List<DirCacheEntry> changed = new ArrayList<DirCacheEntry>();
+        TreeWalk tw = new TreeWalk(template);
+        try {
+            tw.addTree(template.resolve(commit.name() + "^{tree}"));
+            tw.addTree(new DirCacheIterator(source));
+            tw.setRecursive(true);
+            while (tw.next()) {
+                FileMode m = tw.getFileMode(0);
+                if (m != FileMode.REGULAR_FILE && m != FileMode.EXECUTABLE_FILE)
+                    continue; // not in the commit, such as a staged file, or left to the checkout
+                DirCacheEntry n = new DirCacheEntry(tw.getPathString());
+                n.setFileMode(m);
+                n.setObjectId(tw.getObjectId(0));
+                all.add(n);
+
+                DirCacheIterator i = tw.getTree(1, DirCacheIterator.class);
+                DirCacheEntry e = i == null ? null : i.getDirCacheEntry();
+                File f = new File(templateDir, n.getPathString());
+                // only trust the files of the template that are known to match the commit
+                if (e != null && e.getStage() == DirCacheEntry.STAGE_0 && e.getFileMode() == m
+                        && e.getObjectId().equals(n.getObjectId())
+                        && f.length() == e.getLength() && f.lastModified() == e.getLastModified()
+                        && e.getLastModified() < indexTime)
+                    entries.add(n);
+                else
+                    changed.add(n);
+            }
+        } finally {
+            tw.release();
+        }
+
+        List<DirCacheEntry> copied = link(templateDir, workspace, entries, listener);
+        for (DirCacheEntry e : copied)
+            FileUtils.copyFile(new File(templateDir, e.getPathString()), new File(workspace, e.getPathString()));
+
+        ObjectReader or = repo.newObjectReader();
+        try {
+            for (DirCacheEntry e : changed)
+                DirCacheCheckout.checkoutEntry(repo, new File(workspace, e.getPathString()), e, or);
+        } finally {
+            or.release();
+        }
+
+        DirCache dc = repo.lockDirCache();
+        try {
+            DirCacheBuilder builder = dc.builder();
+            for (DirCacheEntry n : all) {
+                File f = new File(workspace, n.getPathString());
+                if (n.getFileMode() == FileMode.EXECUTABLE_FILE && !f.canExecute())
+                    f.setExecutable(true);
+                n.setLength(f.length());
+                n.setLastModified(f.lastModified());
+                builder.add(n);
+            }
+            if (!builder.commit())
+                throw new IOException("Could not write the index of " + workspace);
+        } finally {
+            dc.unlock();
+        }
+    }
+
+    /**
+     * Removes what {@link #populate(File, TaskListener)} wrote into the workspace of a fresh clone.
+     */
+    private static void clean(File workspace, Repository repo) {
+        File[] files = workspace.listFiles();
+        if (files != null) {
+            for (File f : files)
+                if (!f.getName().equals(Constants.DOT_GIT))
+                    FileUtils.deleteQuietly(f);
+        }
+        repo.getIndexFile().delete();
+    }
+
+    /**
+     * Links or clones the files of the entries from the template into the workspace, according to the mode.
+     *
+     * @return the entries that couldn't be linked nor cloned, and need to be copied.
+     */
+    private List<DirCacheEntry> link(File templateDir, File workspace, List<DirCacheEntry> entries, TaskListener listener)
+            throws IOException, InterruptedException {
+        switch (mode) {
+        case HARDLINK:
+            List<DirCacheEntry> failed = new ArrayList<DirCacheEntry>();
+            for (DirCacheEntry e : entries) {
+                File dst = new File(workspace, e.getPathString());
+                dst.getParentFile().mkdirs();
+                if (!hardLink(new File(templateDir, e.getPathString()), dst))
+                    failed.add(e);
+            }
+            if (!failed.isEmpty())
+                listener.getLogger().println("Copying " + failed.size() + " files that can't be linked to the template");
+            return failed;
+
+        case REFLINK:
+            Launcher launcher = new Launcher.LocalLauncher(listener);
+            for (int i = 0; i < entries.size(); i += REFLINK_BATCH) {
+                List<DirCacheEntry> batch = entries.subList(i, Math.min(entries.size(), i + REFLINK_BATCH));
+                ArgumentListBuilder args = new ArgumentListBuilder("cp", "--reflink=always", "--parents",
+                        "-t", workspace.getAbsolutePath(), "--");
+                for (DirCacheEntry e : batch)
+                    args.add(e.getPathString());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int status;
+                try {
+                    status = launcher.launch().cmds(args).pwd(templateDir).stdout(out).stderr(out).join();
+                } catch (IOException x) {
+                    status = -1; // no GNU cp
+                }
+                if (status != 0) {
+                    listener.getLogger().println("Copying the files of the template, as they can't be cloned: " + out.toString().trim());
+                    return entries.subList(i, entries.size());
+                }
+            }
+            return new ArrayList<DirCacheEntry>();
+
+        default:
+            return entries;
+        }
+    }
+
+    private static boolean hardLink(File src, File dst) {
+        try {
+            return PosixAPI.get().link(src.getAbsolutePath(), dst.getAbsolutePath()) == 0;
+        } catch (RuntimeException e) {
+            return false; // not supported on this platform
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path + " (" + mode + ")";
+    }
+
+    private static final long serialVersionUID = 1L;
+}
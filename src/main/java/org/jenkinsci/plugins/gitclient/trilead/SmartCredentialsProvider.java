@@ -5,26 +5,32 @@ import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.UsernameCredentials;
 import hudson.model.TaskListener;
+import org.jenkinsci.plugins.gitclient.GitURICanonicalizer;
 import org.eclipse.jgit.errors.UnsupportedCredentialItem;
 import org.eclipse.jgit.transport.CredentialItem;
 import org.eclipse.jgit.transport.CredentialsProvider;
 import org.eclipse.jgit.transport.URIish;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
+ * Credentials for JGit transports, chosen by URL.
+ *
+ * <p>
+ * The credentials are held in an immutable {@link Snapshot} that is replaced as a whole when they change,
+ * so that the transports of concurrent fetches sharing this provider never wait for one another:
+ * {@link #supports(CredentialItem...)} and {@link #get(URIish, CredentialItem...)} just read the current
+ * snapshot.
+ *
  * @author stephenc
  */
 public class SmartCredentialsProvider extends CredentialsProvider {
 
     public final TaskListener listener;
 
-    private StandardCredentials defaultCredentials;
-
-    private Map<String, StandardCredentials> specificCredentials =
-            new HashMap<String, StandardCredentials>();
-
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
 
     public SmartCredentialsProvider(TaskListener listener) {
         this.listener = listener;
@@ -36,19 +42,23 @@ public class SmartCredentialsProvider extends CredentialsProvider {
      * @since 1.2.0
      */
     public synchronized void clearCredentials() {
-        defaultCredentials = null;
-        specificCredentials.clear();
+        snapshot = Snapshot.EMPTY;
     }
 
     /**
      * Adds credentials to be used against a specific url.
      *
+     * The url is {@link GitURICanonicalizer canonicalized}, so the credentials are also used against
+     * other spellings of the same url.
+     *
      * @param url         the url for the credentials to be used against.
      * @param credentials the credentials to use.
      * @since 1.2.0
      */
     public synchronized void addCredentials(String url, StandardCredentials credentials) {
-        specificCredentials.put(url, credentials);
+        Map<String, StandardCredentials> specific = new HashMap<String, StandardCredentials>(snapshot.specificCredentials);
+        specific.put(GitURICanonicalizer.canonicalize(url), credentials);
+        snapshot = new Snapshot(snapshot.defaultCredentials, specific);
     }
 
     /**
@@ -59,7 +69,7 @@ public class SmartCredentialsProvider extends CredentialsProvider {
      * @since 1.2.0
      */
     public synchronized void addDefaultCredentials(StandardCredentials credentials) {
-        defaultCredentials = credentials;
+        snapshot = new Snapshot(credentials, snapshot.specificCredentials);
     }
 
     @Override
@@ -68,43 +78,82 @@ public class SmartCredentialsProvider extends CredentialsProvider {
     }
 
     @Override
-    public synchronized boolean supports(CredentialItem... credentialItems) {
-        items:
+    public boolean supports(CredentialItem... credentialItems) {
+        int capabilities = snapshot.capabilities;
         for (CredentialItem item : credentialItems) {
-            if (supports(defaultCredentials, item)) {
-                continue;
+            if ((capabilities & capabilityOf(item)) == 0) {
+                return false;
             }
-            for (StandardCredentials c : specificCredentials.values()) {
-                if (supports(c, item)) {
-                    continue items;
-                }
-            }
-            return false;
         }
         return true;
     }
 
-    private boolean supports(StandardCredentials c, CredentialItem i) {
-        if (c == null) {
-            return false;
+    private static final int STANDARD_USERNAME = 1, USERNAME = 2, PASSWORD = 4;
+
+    /**
+     * The kinds of {@link CredentialItem} the given credentials can fill.
+     */
+    private static int capabilitiesOf(StandardCredentials c) {
+        int capabilities = 0;
+        if (c instanceof StandardUsernameCredentials) {
+            capabilities |= STANDARD_USERNAME;
+        }
+        if (c instanceof UsernameCredentials) {
+            capabilities |= USERNAME;
+        }
+        if (c instanceof PasswordCredentials) {
+            capabilities |= PASSWORD;
         }
+        return capabilities;
+    }
+
+    /**
+     * @return the capability needed to fill the item, or 0 if no credentials can fill it.
+     */
+    private static int capabilityOf(CredentialItem i) {
         if (i instanceof StandardUsernameCredentialsCredentialItem) {
-            return c instanceof StandardUsernameCredentials;
+            return STANDARD_USERNAME;
         }
         if (i instanceof CredentialItem.Username) {
-            return c instanceof UsernameCredentials;
+            return USERNAME;
         }
         if (i instanceof CredentialItem.Password) {
-            return c instanceof PasswordCredentials;
+            return PASSWORD;
+        }
+        return 0;
+    }
+
+    /**
+     * The credentials at some point in time, never modified.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(null, Collections.<String, StandardCredentials>emptyMap());
+
+        final StandardCredentials defaultCredentials;
+        final Map<String, StandardCredentials> specificCredentials;
+        /**
+         * Union of the capabilities of all the credentials, as {@link #supports(CredentialItem...)} only
+         * tells whether some credentials may fill the items.
+         */
+        final int capabilities;
+
+        Snapshot(StandardCredentials defaultCredentials, Map<String, StandardCredentials> specificCredentials) {
+            this.defaultCredentials = defaultCredentials;
+            this.specificCredentials = specificCredentials;
+            int capabilities = defaultCredentials == null ? 0 : capabilitiesOf(defaultCredentials);
+            for (StandardCredentials c : specificCredentials.values()) {
+                capabilities |= capabilitiesOf(c);
+            }
+            this.capabilities = capabilities;
         }
-        return false;
     }
 
     @Override
-    public synchronized boolean get(URIish uri, CredentialItem... credentialItems) throws UnsupportedCredentialItem {
-        StandardCredentials c = specificCredentials.get(uri == null ? null : uri.toString());
+    public boolean get(URIish uri, CredentialItem... credentialItems) throws UnsupportedCredentialItem {
+        Snapshot snapshot = this.snapshot;
+        StandardCredentials c = snapshot.specificCredentials.get(GitURICanonicalizer.canonicalize(uri));
         if (c == null) {
-            c = defaultCredentials;
+            c = snapshot.defaultCredentials;
         }
         if (c == null) {
             return false;
@@ -7,13 +7,19 @@ import hudson.Launcher;
 import hudson.Util;
 import hudson.model.TaskListener;
 import hudson.plugins.git.Branch;
+import hudson.plugins.git.BranchList;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.GitLockFailedException;
 import hudson.plugins.git.IGitAPI;
 import hudson.plugins.git.IndexEntry;
+import hudson.plugins.git.IndexEntryList;
+import hudson.plugins.git.Revision;
+import hudson.util.ArgumentListBuilder;
 import hudson.util.StreamTaskListener;
+import hudson.util.XStream2;
 import junit.framework.TestCase;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.ObjectId;
@@ -27,12 +33,25 @@ import org.jvnet.hudson.test.Bug;
 import org.jvnet.hudson.test.TemporaryDirectoryAllocator;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -265,6 +284,227 @@ public abstract class GitAPITestCase extends TestCase {
         assertFalse("Alternates file found: " + alternates, w.exists(alternates));
     }
 
+    public void test_async_operations() throws Exception
+    {
+        w = clone(localMirror());
+        AsyncGitClient async = new AsyncGitClient(w.git);
+        Future<Map<String, ObjectId>> heads = async.getHeadRev(localMirror());
+        Future<ObjectId> master = async.revParse("origin/master");
+        Future<Boolean> hasRepo = async.hasGitRepo();
+        assertEquals(w.git.revParse("origin/master"), master.get());
+        assertEquals(master.get(), heads.get().get("refs/heads/master"));
+        assertTrue(hasRepo.get());
+
+        try {
+            async.revParse("no-such-revision").get();
+            fail("should have failed");
+        } catch (ExecutionException e) {
+            assertTrue("Unexpected failure " + e.getCause(), e.getCause() instanceof GitException);
+        }
+    }
+
+    public void test_progress_parser() throws Exception
+    {
+        TransferStats stats = new TransferStats("fetch");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        OutputStream out = stats.parser(err);
+        String progress = "remote: Enumerating objects: 284, done.\n"
+                + "remote: Counting objects:  50% (142/284)\rremote: Counting objects: 100% (284/284), done.\n"
+                + "Receiving objects:  45% (128/284), 1.20 MiB | 2.40 MiB/s\r"
+                + "Receiving objects: 100% (284/284), 2.50 MiB | 2.40 MiB/s, done.\n"
+                + "remote: Total 284 (delta 10), reused 0 (delta 0)\n"
+                + "Resolving deltas: 100% (10/10), done.\n";
+        out.write(progress.getBytes("UTF-8"));
+        out.close();
+
+        assertEquals("stderr must be passed on unchanged", progress, err.toString("UTF-8"));
+        assertEquals(284, stats.getObjectsReceived());
+        assertEquals((long) (2.5 * 1024 * 1024), stats.getBytesReceived());
+        List<String> phases = new ArrayList<String>();
+        for (TransferStats.Phase phase : stats.getPhases())
+            phases.add(phase.getName());
+        assertEquals(Arrays.asList("remote: Enumerating objects", "remote: Counting objects", "Receiving objects", "Resolving deltas"), phases);
+        assertEquals(10, stats.getPhase("Resolving deltas").getTotal());
+    }
+
+    public void test_clone_publishes_transfer_stats() throws Exception
+    {
+        final List<TransferStats> published = Collections.synchronizedList(new ArrayList<TransferStats>());
+        Logger logger = Logger.getLogger(TransferStats.class.getName());
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                published.add((TransferStats) record.getParameters()[0]);
+            }
+            @Override public void flush() {}
+            @Override public void close() {}
+        };
+        Level level = logger.getLevel();
+        logger.setLevel(Level.FINE);
+        logger.addHandler(handler);
+        try {
+            w.git.clone_().url(localMirror()).repositoryName("origin").execute();
+        } finally {
+            logger.removeHandler(handler);
+            logger.setLevel(level);
+        }
+        assertFalse("No transfer statistics published", published.isEmpty());
+        assertTrue(published.get(0).getDurationMillis() >= 0);
+    }
+
+    public void test_clone_and_fetch_hand_transfer_stats_to_caller() throws Exception
+    {
+        final List<TransferStats> received = new ArrayList<TransferStats>();
+        TransferStats.Handler handler = new TransferStats.Handler() {
+            public void transferred(TransferStats stats) {
+                received.add(stats);
+            }
+        };
+        w.git.clone_().url(localMirror()).repositoryName("origin").stats(handler).execute();
+        assertEquals("Clone statistics not handed over", 1, received.size());
+        assertTrue(received.get(0).getDurationMillis() >= 0);
+
+        w.git.fetch_().from(new URIish(localMirror()), Collections.singletonList(new RefSpec("+refs/heads/*:refs/remotes/origin/*")))
+                .stats(handler).execute();
+        assertEquals("Fetch statistics not handed over", 2, received.size());
+    }
+
+    public void test_maintenance_after_fetch() throws Exception
+    {
+        WorkingArea src = new WorkingArea().init();
+        for (int i = 0; i < 3; i++) {
+            src.touch("file" + i, "content " + i);
+            src.add("file" + i);
+            src.commit("commit" + i);
+        }
+        w.init();
+        // small fetches leave loose objects behind
+        w.git.fetch(new URIish(src.repoPath()), Collections.singletonList(new RefSpec("+refs/heads/*:refs/remotes/origin/*")));
+        // the maintenance only estimates them from a sample
+        assertTrue("Expected loose objects", looseObjectsOf(w) > 0);
+
+        int looseObjects = RepositoryMaintenance.LOOSE_OBJECTS;
+        RepositoryMaintenance.LOOSE_OBJECTS = -1;
+        try {
+            Future<?> maintenance = RepositoryMaintenance.afterFetch((LegacyCompatibleGitAPIImpl) w.git);
+            assertNotNull("Maintenance not scheduled", maintenance);
+            maintenance.get();
+        } finally {
+            RepositoryMaintenance.LOOSE_OBJECTS = looseObjects;
+        }
+        assertEquals("Loose objects left", 0, looseObjectsOf(w));
+        assertEquals(src.head(), w.git.revParse("origin/master"));
+    }
+
+    public void test_maintenance_gives_way() throws Exception
+    {
+        w.init();
+        w.touch("file", "content");
+        w.cmd("git add file");
+        w.commit("commit");
+        int looseObjects = RepositoryMaintenance.LOOSE_OBJECTS;
+        RepositoryMaintenance.LOOSE_OBJECTS = -1;
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch maintained = new CountDownLatch(1);
+        try {
+            Thread checkout = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        WorkspaceLockManager.run(w.repo, listener, new WorkspaceLockManager.Operation() {
+                            void run() throws InterruptedException {
+                                locked.countDown();
+                                maintained.await();
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        // ends the test
+                    }
+                }
+            };
+            checkout.start();
+            locked.await();
+            // the workspace is busy, the maintenance is skipped
+            Future<?> maintenance = RepositoryMaintenance.afterFetch((LegacyCompatibleGitAPIImpl) w.git);
+            assertNotNull("Maintenance not scheduled", maintenance);
+            maintenance.get();
+            maintained.countDown();
+            checkout.join();
+            assertTrue("Maintained a busy workspace", looseObjectsOf(w) > 0);
+        } finally {
+            RepositoryMaintenance.LOOSE_OBJECTS = looseObjects;
+        }
+    }
+
+    private static int looseObjectsOf(WorkingArea w) throws IOException, InterruptedException {
+        return Integer.parseInt(w.cmd("git count-objects").trim().split(" ")[0]);
+    }
+
+    public void test_repack_writes_bitmaps() throws Exception
+    {
+        WorkingArea mirror = new WorkingArea().init();
+        for (int i = 0; i < 3; i++) {
+            mirror.touch("file" + i, "content " + i);
+            mirror.add("file" + i);
+            mirror.commit("commit" + i);
+        }
+        mirror.git.repack().bitmaps(true).execute();
+        RepositoryMaintenance.Counts counts = RepositoryMaintenance.count(new File(mirror.repo, ".git"));
+        assertTrue("Expected a bitmap: " + counts, counts.bitmaps);
+        assertEquals("Expected a single pack: " + counts, 1, counts.packs);
+        assertEquals("Loose objects left: " + counts, 0, counts.looseObjects);
+
+        // fetches are served from the bitmapped pack
+        w.init();
+        w.git.fetch(new URIish(mirror.repo.toURI().toURL()), Collections.singletonList(new RefSpec("+refs/heads/*:refs/remotes/origin/*")));
+        assertEquals(mirror.head(), w.git.revParse("origin/master"));
+    }
+
+    public void test_clone_and_checkout_with_timeout() throws IOException, InterruptedException
+    {
+        w.git.clone_().url(localMirror()).repositoryName("origin").timeout(30).execute();
+        if (w.git instanceof CliGitAPIImpl)
+            w.git.setRemoteUrl("origin", localMirror());
+        w.git.checkout().ref("origin/master").branch("master").timeout(30).execute();
+        check_remote_url("origin");
+        check_branches("master");
+    }
+
+    @NotImplementedInJGit
+    public void test_fetch_no_progress_timeout() throws Exception
+    {
+        assertEquals("log", CliGitAPIImpl.operationOf(new ArgumentListBuilder("-c", "core.quotepath=false", "log", "--raw")));
+        assertEquals("fetch", CliGitAPIImpl.operationOf(new ArgumentListBuilder("fetch", "--progress", "origin")));
+
+        // a generous stall limit must not disturb a fetch that reports its progress
+        System.setProperty(Git.class.getName() + ".noProgressTimeOut.fetch", "60");
+        try {
+            w.git.clone_().url(localMirror()).repositoryName("origin").execute();
+            w.git.setRemoteUrl("origin", localMirror());
+            check_remote_url("origin");
+        } finally {
+            System.clearProperty(Git.class.getName() + ".noProgressTimeOut.fetch");
+        }
+    }
+
+    @NotImplementedInJGit
+    public void test_clone_filter() throws Exception
+    {
+        WorkingArea src = new WorkingArea().init();
+        src.touch("file1", "file1 content");
+        src.add("file1");
+        src.commit("commit1");
+        src.cmd("git config uploadpack.allowFilter true");
+
+        String url = "file://" + src.repoPath().replace('\\', '/');
+        w.git.clone_().url(url).repositoryName("origin").filter("blob:none").execute();
+        assertTrue("blobs were fetched", w.cmd("git rev-list --objects --missing=print --all").contains("?"));
+
+        // the blob is fetched on demand
+        w.git.checkout("origin/master", "master");
+        assertEquals("file1 content", w.contentOf("file1"));
+    }
+
     public void test_clone_shallow() throws IOException, InterruptedException
     {
         w.git.clone_().url(localMirror()).repositoryName("origin").shallow().execute();
@@ -376,7 +616,79 @@ public abstract class GitAPITestCase extends TestCase {
         assertEquals("Wrong blob 2 sha1", expectedBlob2SHA1, tree.get(1).getObject());
         assertEquals("Wrong number of tree entries", 2, tree.size());
     }
-    
+
+    @Deprecated
+    public void test_lsTree_recursive_path_with_spaces() throws IOException, InterruptedException {
+        w.init();
+        w.file("dir 1").mkdir();
+        w.touch("dir 1/file 1", "dir 1/file 1 content");
+        w.launchCommand("git", "add", "dir 1/file 1");
+        w.commit("commit-path-with-spaces");
+        List<IndexEntry> tree = w.igit().lsTree("HEAD", true);
+        assertEquals("Wrong number of tree entries", 1, tree.size());
+        assertEquals("Wrong path", "dir 1/file 1", tree.get(0).getFile());
+        assertEquals("Wrong mode", "100644", tree.get(0).getMode());
+        assertEquals("Wrong type", "blob", tree.get(0).getType());
+    }
+
+    public void test_lsTree_and_revision_compact_serialization() throws Exception {
+        w.init();
+        w.file("dir").mkdir();
+        w.touch("dir/a", "a content");
+        w.touch("dir/b", "b content");
+        w.touch("c", "c content");
+        w.launchCommand("git", "add", "dir/a", "dir/b", "c");
+        w.commit("commit-compact");
+        List<IndexEntry> tree = w.igit().lsTree("HEAD", true);
+        assertTrue("lsTree should return a compact list", tree instanceof IndexEntryList);
+        assertEquals("Wrong number of tree entries", 3, tree.size());
+        assertEquals("Wrong path", "dir/b", tree.get(2).getFile());
+        assertEquals("lsTree changed by serialization", new ArrayList<IndexEntry>(tree), new ArrayList<IndexEntry>(roundTrip(tree)));
+
+        ObjectId head = w.head();
+        Revision r = new Revision(head);
+        r.getBranches().add(new Branch("origin/master", head));
+        r.getBranches().add(new Branch("origin/other", null));
+        Revision copy = roundTrip(r);
+        assertTrue("Revision branches should be compact", copy.getBranches() instanceof BranchList);
+        assertEquals("Revision branches changed by serialization", r.getBranches().toString(), copy.getBranches().toString());
+        assertTrue("Missing branch name", copy.containsBranchName("origin/other"));
+        // saved as a plain list, which older versions read
+        assertTrue("Branches serialized as a BranchList", roundTrip(r.getBranches()) instanceof ArrayList);
+        String xml = new XStream2().toXML(r);
+        assertFalse("Branches saved as a BranchList: " + xml, xml.contains("BranchList"));
+        Revision read = (Revision) new XStream2().fromXML(xml);
+        assertTrue("Revision branches should be compact", read.getBranches() instanceof BranchList);
+        assertEquals("Revision branches changed by XStream", r.getBranches().toString(), read.getBranches().toString());
+        // branches compare by identity, as in any other list
+        Branch master = new Branch("origin/master", head);
+        assertEquals(new ArrayList<Branch>(copy.getBranches()).contains(master), copy.getBranches().contains(master));
+        ((List<Branch>) copy.getBranches()).remove(1);
+        assertEquals(1, copy.getBranches().size());
+        assertFalse(copy.containsBranchName("origin/other"));
+
+        // as mutable as the lists returned before
+        IndexEntry first = tree.get(0);
+        assertEquals(first, tree.remove(0));
+        tree.add(0, first);
+        tree.set(2, tree.get(1));
+        assertEquals(tree.get(1), tree.get(2));
+        for (Iterator<IndexEntry> it = tree.iterator(); it.hasNext(); ) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(tree.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T o) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buf);
+        out.writeObject(o);
+        out.close();
+        return (T) new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray())).readObject();
+    }
+
     /** Is implemented in JGit, but returns an empty URL for this
      * case.  Test is disabled for JGit, since it is a deprecated API
      * that we can hope is not used with the newer JGit
@@ -709,6 +1021,59 @@ public abstract class GitAPITestCase extends TestCase {
         assertEquals(sha1.name(), remoteSha1);
     }
 
+    public void test_push_many_refs() throws Exception {
+        w.init();
+        w.commit("init");
+        ObjectId init = w.head();
+        w.cmd("git tag t1");
+        w.touch("file1");
+        w.add("file1");
+        w.commit("commit1");
+        ObjectId sha1 = w.head();
+        w.cmd("git tag t2");
+
+        WorkingArea r = new WorkingArea();
+        r.init();
+        r.cmd("git checkout -b tmp"); // can't push on active branch
+        URIish remote = new URIish(r.repoPath());
+
+        final List<PushedRef> results = new ArrayList<PushedRef>();
+        PushCommand.ResultHandler handler = new PushCommand.ResultHandler() {
+            public void pushed(List<PushedRef> refs) {
+                results.clear();
+                results.addAll(refs);
+            }
+        };
+
+        w.git.push().to(remote, Arrays.asList(
+                new RefSpec("refs/heads/master:refs/heads/master"),
+                new RefSpec("refs/tags/t1:refs/tags/t1"),
+                new RefSpec("refs/tags/t2:refs/tags/t2"))).results(handler).execute();
+        assertEquals(sha1.name(), r.cmd("git rev-parse master").substring(0, 40));
+        assertEquals(init.name(), r.cmd("git rev-parse t1").substring(0, 40));
+        assertEquals(sha1.name(), r.cmd("git rev-parse t2").substring(0, 40));
+        assertEquals(results.toString(), 3, results.size());
+        for (PushedRef ref : results)
+            assertEquals(ref.toString(), PushedRef.Status.OK, ref.getStatus());
+
+        // not a fast-forward: reported, then failing
+        List<RefSpec> rewind = Collections.singletonList(new RefSpec(init.name() + ":refs/heads/master"));
+        try {
+            w.git.push().to(remote, rewind).results(handler).execute();
+            fail("non fast-forward push should fail");
+        } catch (GitException e) {
+            // expected
+        }
+        assertEquals(sha1.name(), r.cmd("git rev-parse master").substring(0, 40));
+        assertEquals(results.toString(), 1, results.size());
+        assertEquals(PushedRef.Status.REJECTED, results.get(0).getStatus());
+        assertEquals("refs/heads/master", results.get(0).getDestination());
+
+        w.git.push().to(remote, rewind).force(true).results(handler).execute();
+        assertEquals(init.name(), r.cmd("git rev-parse master").substring(0, 40));
+        assertEquals(PushedRef.Status.OK, results.get(0).getStatus());
+    }
+
     public void test_notes_add() throws Exception {
         w.init();
         w.touch("file1");
@@ -778,6 +1143,66 @@ public abstract class GitAPITestCase extends TestCase {
         assertTrue("submodule1 file found after recursive update", w.file(readme1).exists());
     }
 
+    public void test_submoduleClean() throws Exception {
+        String sub1 = "sub1-" + java.util.UUID.randomUUID().toString();
+        String sub2 = "sub2-" + java.util.UUID.randomUUID().toString();
+        w.init();
+        w.git.addSubmodule(localMirror(), sub1);
+        w.git.addSubmodule(localMirror(), sub2);
+        String readme = w.contentOf(sub1 + "/README.md");
+
+        w.touch(sub1 + "/README.md", "changed");
+        w.touch(sub1 + "/untracked", "untracked");
+        w.touch(sub2 + "/untracked", "untracked");
+        w.igit().submoduleClean(false);
+        assertEquals(readme, w.contentOf(sub1 + "/README.md"));
+        assertFalse("sub1 not cleaned", w.exists(sub1 + "/untracked"));
+        assertFalse("sub2 not cleaned", w.exists(sub2 + "/untracked"));
+    }
+
+    /**
+     * JGit leaves nested submodules alone unless recursive.
+     */
+    @NotImplementedInJGit
+    public void test_submoduleClean_nested() throws Exception {
+        WorkingArea inner = new WorkingArea().init();
+        inner.touch("file", "inner");
+        inner.add("file");
+        inner.commit("inner");
+        WorkingArea middle = new WorkingArea().init();
+        middle.cmd("git -c protocol.file.allow=always submodule add " + inner.repoPath() + " inner");
+        middle.commit("middle");
+        w.init();
+        w.cmd("git -c protocol.file.allow=always submodule add " + middle.repoPath() + " middle");
+        w.cmd("git -c protocol.file.allow=always submodule update --init --recursive");
+
+        w.touch("middle/inner/file", "changed");
+        w.touch("middle/inner/untracked", "untracked");
+        // nested submodules are always reset, but only cleaned when recursive
+        w.igit().submoduleClean(false);
+        assertEquals("inner", w.contentOf("middle/inner/file"));
+        assertTrue("nested submodule cleaned", w.exists("middle/inner/untracked"));
+        w.igit().submoduleClean(true);
+        assertFalse("nested submodule not cleaned", w.exists("middle/inner/untracked"));
+    }
+
+    @NotImplementedInJGit
+    public void test_fixSubmoduleUrls() throws Exception {
+        WorkingArea src = new WorkingArea().init();
+        src.git.addSubmodule(localMirror(), "modules/sub");
+        src.cmd("git config -f .gitmodules --rename-section submodule.modules/sub submodule.sub");
+        src.cmd("git add .gitmodules");
+        src.commit("submodule");
+
+        w = clone(src.repoPath());
+        w.cmd("git -c protocol.file.allow=always submodule update --init");
+        w.igit().fixSubmoduleUrls("origin", listener);
+        String url = new File(src.repoPath(), "modules/sub").toString();
+        // the configuration is keyed by the name of the submodule, not its path
+        assertEquals(url, w.cmd("git config submodule.sub.url").trim());
+        assertEquals(url, w.cmd("git -C modules/sub config remote.origin.url").trim());
+    }
+
     public void test_getSubmodules() throws Exception {
         w.init();
         w.launchCommand("git","fetch",localMirror(),"tests/getSubmodules:t");
@@ -904,6 +1329,35 @@ public abstract class GitAPITestCase extends TestCase {
         assertEquals("merge didn't selected OURS content", "content2", FileUtils.readFileToString(f));
     }
 
+    public void test_getHeadRev_local() throws Exception {
+        w.init();
+        w.commit("init");
+        ObjectId master = w.head();
+        w.cmd("git checkout -b branch1");
+        w.touch("file1");
+        w.add("file1");
+        w.commit("commit1");
+        ObjectId branch1 = w.head();
+        w.cmd("git tag tag1");
+        w.cmd("git update-ref refs/changes/01/1/1 " + master.name());
+
+        Map<String, ObjectId> heads = w.git.getHeadRev(w.repoPath());
+        assertEquals(heads.toString(), 2, heads.size());
+        assertEquals(master, heads.get("refs/heads/master"));
+        assertEquals(branch1, heads.get("refs/heads/branch1"));
+
+        assertEquals(master, w.git.getHeadRev(w.repoPath(), "master"));
+        assertEquals(branch1, w.git.getHeadRev(w.repoPath(), "refs/heads/branch1"));
+        assertNull(w.git.getHeadRev(w.repoPath(), "tag1"));
+
+        // the full name is matched, not its last segment
+        w.cmd("git update-ref refs/heads/other/x " + master.name());
+        w.cmd("git update-ref refs/heads/feature/x " + branch1.name());
+        assertEquals(branch1, w.git.getHeadRev(w.repoPath(), "feature/x"));
+        assertEquals(master, w.git.getHeadRev(w.repoPath(), "other/x"));
+        assertNull(w.git.getHeadRev(w.repoPath(), "x"));
+    }
+
     public void test_merge_strategy_correct_fail() throws Exception {
         w.init();
         w.commit("init");
@@ -927,6 +1381,61 @@ public abstract class GitAPITestCase extends TestCase {
         }
     }
 
+    public void test_merge_preview() throws Exception {
+        w.init();
+        w.commit("init");
+        w.cmd("git branch branch1");
+        w.cmd("git checkout branch1");
+        w.touch("file", "content1");
+        w.add("file");
+        w.commit("commit1");
+        ObjectId branch1 = w.head();
+        w.cmd("git checkout master");
+        w.cmd("git branch branch2");
+        w.cmd("git checkout branch2");
+        File f = w.touch("file", "content2");
+        w.add("file");
+        w.commit("commit2");
+        ObjectId branch2 = w.head();
+        w.cmd("git checkout -b branch3 master");
+        w.touch("file3", "content3");
+        w.add("file3");
+        w.commit("commit3");
+        ObjectId branch3 = w.head();
+        w.cmd("git checkout branch2");
+
+        final List<MergePreview> previews = new ArrayList<MergePreview>();
+        MergeCommand.PreviewHandler handler = new MergeCommand.PreviewHandler() {
+            public void merged(MergePreview preview) {
+                previews.add(preview);
+            }
+        };
+
+        // into HEAD, conflicting
+        w.git.merge().setRevisionToMerge(branch1).setPreviewHandler(handler).execute();
+        MergePreview conflicting = previews.get(0);
+        assertFalse(conflicting.isSuccessful());
+        assertNull(conflicting.getTree());
+        assertEquals(Collections.singletonList("file"), conflicting.getConflicts());
+        assertEquals(branch2, conflicting.getTarget());
+
+        // into another commit, without conflicts
+        w.git.merge().setRevisionToMerge(branch3).setPreviewTarget(branch1).setPreviewHandler(handler).execute();
+        MergePreview merged = previews.get(1);
+        assertTrue(merged.toString(), merged.isSuccessful());
+        assertEquals(branch1, merged.getTarget());
+        assertEquals(branch3, merged.getRevision());
+        String files = w.cmd("git ls-tree --name-only " + merged.getTree().name());
+        assertTrue("file missing from " + files, files.contains("file\n"));
+        assertTrue("file3 missing from " + files, files.contains("file3"));
+
+        // the workspace isn't touched
+        assertEquals(branch2, w.head());
+        assertEquals("content2", FileUtils.readFileToString(f));
+        assertFalse("file3 checked out", w.exists("file3"));
+        assertEquals("", w.cmd("git status --porcelain").trim());
+    }
+
     @Deprecated
     public void test_merge_refspec() throws Exception {
         w.init();
@@ -991,6 +1500,98 @@ public abstract class GitAPITestCase extends TestCase {
         assertTrue("No SHA1 in " + writer.toString(), writer.toString().contains(sha1));
     }
 
+    public void test_changelog_cache() throws Exception
+    {
+        w.init();
+        w.touch("readme", "readme");
+        w.add("readme");
+        w.commit("init");
+        ObjectId root = w.head();
+        w.touch("file1", "content 1");
+        w.add("file1");
+        w.commit("add file1");
+        w.launchCommand("git", "mv", "file1", "file2");
+        w.commit("rename file1");
+
+        long maxSize = ChangelogCache.MAX_SIZE;
+        try {
+            ChangelogCache.MAX_SIZE = 0;
+            String uncached = changelog(root);
+            ChangelogCache.MAX_SIZE = 64L * 1024 * 1024;
+            assertEquals("Changelog computed for the cache", uncached, changelog(root));
+            File cache = new File(w.repo, ".git/changelog-cache/v1");
+            assertTrue("No cache in " + cache, cache.isDirectory());
+            assertEquals("Changelog read from the cache", uncached, changelog(root));
+            assertTrue("No rename in " + uncached, uncached.contains("file2"));
+        } finally {
+            ChangelogCache.MAX_SIZE = maxSize;
+        }
+    }
+
+    public void test_changelog_and_revList_with_paths() throws Exception
+    {
+        w.init();
+        w.touch("readme", "readme");
+        w.add("readme");
+        w.commit("init");
+        ObjectId root = w.head();
+        w.touch("a/x.txt", "x");
+        w.add("a/x.txt");
+        w.commit("add a/x.txt");
+        ObjectId ax = w.head();
+        w.touch("b/y.txt", "y");
+        w.add("b/y.txt");
+        w.commit("add b/y.txt");
+        ObjectId by = w.head();
+        w.touch("a/c/z.md", "z");
+        w.add("a/c/z.md");
+        w.commit("add a/c/z.md");
+        ObjectId az = w.head();
+
+        assertEquals(Arrays.asList(az, ax), revList(Arrays.asList("a"), Collections.<String>emptyList()));
+        assertEquals(Arrays.asList(az), revList(Arrays.asList("**/*.md"), Collections.<String>emptyList()));
+        assertEquals(Arrays.asList(ax), revList(Arrays.asList("a/*"), Collections.<String>emptyList()));
+        assertEquals(Arrays.asList(by, root), revList(Collections.<String>emptyList(), Arrays.asList("a")));
+        assertEquals(Arrays.asList(az, by), revList(Arrays.asList("a", "b"), Arrays.asList("a/*.txt")));
+
+        StringWriter writer = new StringWriter();
+        w.git.changelog().excludes(root).includes("HEAD").includesPath("b").to(writer).execute();
+        String log = writer.toString();
+        assertTrue("No b/y.txt in " + log, log.contains("b/y.txt"));
+        assertFalse("a/x.txt in " + log, log.contains("a/x.txt"));
+        assertFalse("a/c/z.md in " + log, log.contains("a/c/z.md"));
+
+        // unbounded, and with the real parents of the commits rather than the ones changing the paths
+        writer = new StringWriter();
+        w.git.changelog().includes("HEAD").includesPath("a").to(writer).execute();
+        log = writer.toString();
+        assertTrue("No " + az.name() + " in " + log, log.contains("commit " + az.name() + "\n"));
+        assertTrue("Wrong parent of " + az.name() + " in " + log, log.contains("parent " + by.name() + "\n"));
+        assertTrue("No " + ax.name() + " in " + log, log.contains("commit " + ax.name() + "\n"));
+        assertTrue("Wrong parent of " + ax.name() + " in " + log, log.contains("parent " + root.name() + "\n"));
+        assertFalse("Commit " + by.name() + " in " + log, log.contains("commit " + by.name()));
+        assertFalse("Commit " + root.name() + " in " + log, log.contains("commit " + root.name()));
+    }
+
+    private List<ObjectId> revList(List<String> includes, List<String> excludes) throws InterruptedException
+    {
+        RevListCommand revList = w.git.revList().reference("HEAD");
+        for (String glob : includes)
+            revList.includesPath(glob);
+        for (String glob : excludes)
+            revList.excludesPath(glob);
+        List<ObjectId> revs = new ArrayList<ObjectId>();
+        revList.to(revs).execute();
+        return revs;
+    }
+
+    private String changelog(ObjectId since) throws InterruptedException
+    {
+        StringWriter writer = new StringWriter();
+        w.git.changelog().excludes(since).includes("HEAD").to(writer).execute();
+        return writer.toString();
+    }
+
     public void test_getHeadRev() throws Exception {
         Map<String,ObjectId> heads = w.git.getHeadRev("https://github.com/jenkinsci/git-client-plugin.git");
         System.out.println(heads);
@@ -1023,6 +1624,66 @@ public abstract class GitAPITestCase extends TestCase {
         check_changelog_sha1(sha1, "master");
     }
 
+    public void test_archive() throws Exception {
+        w.init();
+        w.file("dir1").mkdir();
+        w.touch("dir1/file1", "dir1/file1 content");
+        w.add("dir1/file1");
+        w.touch("file2", "file2 content");
+        w.add("file2");
+        w.commit("commit-dir-and-file");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.git.archive().format(ArchiveCommand.Format.ZIP).prefix("project/").path("dir1").to(out).execute();
+
+        Set<String> names = new TreeSet<String>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        String content = null;
+        ZipEntry e;
+        while ((e = zip.getNextEntry()) != null) {
+            names.add(e.getName());
+            if (e.getName().equals("project/dir1/file1"))
+                content = IOUtils.toString(zip, "UTF-8");
+        }
+        zip.close();
+        assertEquals("[project/, project/dir1/, project/dir1/file1]", names.toString());
+        assertEquals("dir1/file1 content", content);
+    }
+
+    public void test_changedPaths() throws Exception {
+        w.init();
+        w.touch("file1", "file1 content");
+        w.add("file1");
+        w.file("dir1").mkdir();
+        w.touch("dir1/file2", "file2 content");
+        w.add("dir1/file2");
+        w.commit("commit1");
+        w.touch("file1", "file1 new content");
+        w.add("file1");
+        w.cmd("git mv dir1/file2 dir1/file3");
+        w.commit("commit2");
+
+        final Map<ObjectId, Set<String>> changes = new java.util.LinkedHashMap<ObjectId, Set<String>>();
+        ChangedPathsCommand.Handler handler = new ChangedPathsCommand.Handler() {
+            public void changed(ObjectId commit, List<ChangedPath> paths) {
+                Set<String> s = new TreeSet<String>();
+                for (ChangedPath p : paths)
+                    s.add(p.toString());
+                changes.put(commit, s);
+            }
+        };
+
+        w.git.changedPaths().includes("HEAD").excludes("HEAD~1").to(handler).execute();
+        assertEquals(Collections.singleton(w.head()), changes.keySet());
+        assertEquals("[M\tfile1, R100\tdir1/file2\tdir1/file3]", changes.get(w.head()).toString());
+
+        changes.clear();
+        w.git.changedPaths().includes("HEAD").pathsOnly(true).to(handler).execute();
+        assertEquals(2, changes.size());
+        assertEquals("[A\tdir1/file3, D\tdir1/file2, M\tfile1]", changes.get(w.head()).toString());
+        assertEquals("[A\tdir1/file2, A\tfile1]", changes.get(w.revParse("HEAD~1")).toString());
+    }
+
     public void test_show_revision_for_merge() throws Exception {
         w = clone(localMirror());
         ObjectId from = ObjectId.fromString("45e76942914664ee19f31d90e6f2edbfe0d13a46");
@@ -1187,6 +1848,157 @@ public abstract class GitAPITestCase extends TestCase {
         assertEquals("Wrong SHA1 as checkout of git-client-1.6.0", sha1Expected, sha1);
     }
 
+    public void test_sparse_checkout() throws Exception {
+        w.init();
+        w.touch("file1", "file1 content");
+        w.add("file1");
+        w.file("dir1/sub").mkdirs();
+        w.touch("dir1/sub/file2", "file2 content");
+        w.add("dir1/sub/file2");
+        w.file("dir2").mkdir();
+        w.touch("dir2/file3", "file3 content");
+        w.add("dir2/file3");
+        w.commit("commit-sparse");
+
+        final String branchName = "test-sparse-checkout-branch";
+        w.git.checkout().ref("HEAD").branch(branchName).sparseCheckoutPaths(Collections.singletonList("dir1")).execute();
+        assertTrue("file1 missing", w.exists("file1"));
+        assertTrue("dir1/sub/file2 missing", w.exists("dir1/sub/file2"));
+        assertFalse("dir2/file3 checked out", w.exists("dir2/file3"));
+        assertTrue("test branch not current branch", w.cmd("git branch -l").contains("* " + branchName));
+        // left out as git does, not deleted
+        assertEquals("S dir2/file3", w.cmd("git ls-files -v dir2/file3").trim());
+        assertEquals("", w.cmd("git status --porcelain").trim());
+
+        // the patterns stick to the repository
+        w.git.checkout("master");
+        assertFalse("dir2/file3 checked out", w.exists("dir2/file3"));
+
+        w.git.checkout().ref("master").sparseCheckoutPaths(Collections.<String>emptyList()).execute();
+        assertTrue("dir2/file3 missing", w.exists("dir2/file3"));
+        assertEquals("file3 content", w.contentOf("dir2/file3"));
+    }
+
+    public void test_incremental_checkout() throws Exception {
+        w.init();
+        w.file("a").mkdir();
+        w.file("b").mkdir();
+        w.touch("a/1", "a1");
+        w.touch("b/2", "b2");
+        w.touch("c", "c");
+        w.cmd("git add a b c");
+        w.commit("c1");
+        ObjectId c1 = w.head();
+        w.touch("a/1", "a1 changed");
+        w.cmd("git rm -q c");
+        w.file("d/e").mkdirs();
+        w.touch("d/e/new", "new");
+        w.cmd("git add a d");
+        w.commit("c2");
+        ObjectId c2 = w.head();
+
+        w.git.checkout(c1.name());
+        // only the paths differing between the commits are touched
+        w.touch("b/2", "b2 local");
+        w.git.checkout().ref(c2.name()).incremental(true).execute();
+        assertEquals(c2, w.head());
+        assertEquals("a1 changed", w.contentOf("a/1"));
+        assertFalse("c not deleted", w.exists("c"));
+        assertEquals("new", w.contentOf("d/e/new"));
+        assertEquals("b2 local", w.contentOf("b/2"));
+        assertEquals(" M b/2", w.cmd("git status --porcelain").trim());
+
+        // local changes to the differing paths fall back to the forced checkout
+        w.touch("a/1", "a1 local");
+        w.git.checkout().ref(c1.name()).incremental(true).execute();
+        assertEquals(c1, w.head());
+        assertEquals("a1", w.contentOf("a/1"));
+        assertEquals("c", w.contentOf("c"));
+        assertFalse("d/e/new not deleted", w.exists("d/e/new"));
+        assertEquals("", w.cmd("git status --porcelain").trim());
+
+        w.git.checkout().ref("master").incremental(true).execute();
+        assertEquals(c2, w.head());
+        assertTrue("master not current branch", w.cmd("git branch -l").contains("* master"));
+        assertEquals("", w.cmd("git status --porcelain").trim());
+    }
+
+    public void test_incremental_checkout_same_branch() throws Exception {
+        w.init();
+        w.touch("a", "a1");
+        w.cmd("git add a");
+        w.commit("c1");
+        ObjectId c1 = w.head();
+        w.touch("a", "a2");
+        w.touch("b", "b");
+        w.cmd("git add a b");
+        w.commit("c2");
+        ObjectId c2 = w.head();
+
+        // the branch checked out for every build is moved while it is current
+        w.git.checkout().branch("build").ref(c1.name()).deleteBranchIfExist(true).incremental(true).execute();
+        assertEquals(c1, w.head());
+        assertEquals("a1", w.contentOf("a"));
+        assertFalse("b not deleted", w.exists("b"));
+        w.git.checkout().branch("build").ref(c2.name()).deleteBranchIfExist(true).incremental(true).execute();
+        assertEquals(c2, w.head());
+        assertEquals("a2", w.contentOf("a"));
+        assertEquals("b", w.contentOf("b"));
+        assertTrue("build not current branch", w.cmd("git branch -l").contains("* build"));
+        assertEquals("", w.cmd("git status --porcelain").trim());
+    }
+
+    public void test_clone_from_template() throws Exception {
+        WorkingArea src = new WorkingArea().init();
+        src.file("a").mkdir();
+        src.touch("a/1", "a1");
+        src.touch("b", "b");
+        src.touch("run.sh", "#!/bin/sh");
+        src.cmd("git add a b run.sh");
+        src.cmd("git update-index --chmod=+x run.sh");
+        src.commit("c1");
+        ObjectId c1 = src.head();
+        WorkingArea template = clone(src.repoPath());
+        // a local change to the template isn't carried over
+        template.touch("b", "b local");
+        // nor are staged ones
+        template.touch("a/1", "a1 staged");
+        template.touch("staged", "staged");
+        template.cmd("git add a/1 staged");
+        src.touch("a/1", "a1 changed");
+        src.cmd("git add a");
+        src.commit("c2");
+
+        w.git.clone_().url(src.repoPath()).repositoryName("origin")
+                .template(new WorkspaceTemplate(template.repoPath(), WorkspaceTemplate.Mode.HARDLINK)).execute();
+        assertEquals(c1, w.head());
+        assertEquals("a1", w.contentOf("a/1"));
+        assertEquals("b", w.contentOf("b"));
+        assertFalse("staged file of the template carried over", w.exists("staged"));
+        assertEquals("", w.cmd("git status --porcelain").trim());
+
+        w.git.checkout("origin/master");
+        assertEquals(src.head(), w.head());
+        assertEquals("a1 changed", w.contentOf("a/1"));
+        assertEquals("", w.cmd("git status --porcelain").trim());
+        // the template is left alone
+        assertEquals("a1 staged", template.contentOf("a/1"));
+        assertEquals("b local", template.contentOf("b"));
+    }
+
+    public void test_clone_from_template_unknown_commit() throws Exception {
+        WorkingArea template = new WorkingArea().init();
+        template.touch("x", "x");
+        template.cmd("git add x");
+        template.commit("unrelated");
+
+        w.git.clone_().url(localMirror()).repositoryName("origin")
+                .template(new WorkspaceTemplate(template.repoPath(), WorkspaceTemplate.Mode.COPY)).execute();
+        assertFalse("template used", w.exists("x"));
+        w.git.checkout("origin/master");
+        assertEquals("", w.cmd("git status --porcelain").trim());
+    }
+
     @Bug(19108)
     public void test_checkoutBranch() throws Exception {
         w.init();
@@ -1282,17 +2094,138 @@ public abstract class GitAPITestCase extends TestCase {
     public void test_checkoutBranchFailure() throws Exception {
         w = clone(localMirror());
         File lock = new File(w.repo, ".git/index.lock");
+        int timeout = WorkspaceLockManager.LOCK_TIMEOUT;
         try {
+            WorkspaceLockManager.LOCK_TIMEOUT = 2;
             FileUtils.touch(lock);
             w.git.checkoutBranch("somebranch", "master");
             fail();
         } catch (GitLockFailedException e) {
             // expected
         } finally {
+            WorkspaceLockManager.LOCK_TIMEOUT = timeout;
             lock.delete();
         }
     }
 
+    public void test_checkoutBranch_removes_abandoned_lock() throws Exception {
+        w = clone(localMirror());
+        File lock = new File(w.repo, ".git/index.lock");
+        FileUtils.touch(lock);
+        long now = System.currentTimeMillis();
+        lock.setLastModified(now - 30000);
+        // an operation of this library which didn't complete, such as a git killed on timeout
+        FileUtils.writeStringToFile(new File(w.repo, ".git/" + WorkspaceLockManager.LOCK_FILE_NAME),
+                (now - 60000) + " " + (now - 10000) + "\n");
+        w.git.checkoutBranch("somebranch", "master");
+        assertFalse("Abandoned lock file not removed", lock.exists());
+        assertEquals("Wrong branch checked out", w.git.revParse("master"), w.head());
+    }
+
+    public void test_checkoutBranch_keeps_foreign_lock() throws Exception {
+        w = clone(localMirror());
+        File lock = new File(w.repo, ".git/index.lock");
+        FileUtils.touch(lock);
+        // possibly a long operation of a git started by hand
+        lock.setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+        int timeout = WorkspaceLockManager.LOCK_TIMEOUT;
+        try {
+            WorkspaceLockManager.LOCK_TIMEOUT = 2;
+            w.git.checkoutBranch("somebranch", "master");
+            fail();
+        } catch (GitLockFailedException e) {
+            assertTrue("Lock file not reported: " + e.getMessage(), e.getMessage().contains("index.lock"));
+            assertTrue("Lock file removed", lock.exists());
+        } finally {
+            WorkspaceLockManager.LOCK_TIMEOUT = timeout;
+            lock.delete();
+        }
+    }
+
+    public void test_fetch_does_not_wait_for_lock() throws Exception {
+        w = clone(localMirror());
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch fetched = new CountDownLatch(1);
+        Thread checkout = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    WorkspaceLockManager.run(w.repo, listener, new WorkspaceLockManager.Operation() {
+                        void run() throws InterruptedException {
+                            locked.countDown();
+                            fetched.await();
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // ends the test
+                }
+            }
+        };
+        checkout.start();
+        int timeout = WorkspaceLockManager.LOCK_TIMEOUT;
+        try {
+            WorkspaceLockManager.LOCK_TIMEOUT = 2;
+            locked.await();
+            w.git.fetch("origin", new RefSpec[] {null});
+        } finally {
+            WorkspaceLockManager.LOCK_TIMEOUT = timeout;
+            fetched.countDown();
+            checkout.join();
+        }
+    }
+
+    public void test_merge_locked_is_not_retried() throws Exception {
+        w.init();
+        w.touch("file", "base");
+        w.cmd("git add file");
+        w.commit("base");
+        w.cmd("git checkout -b branch1");
+        w.touch("file", "branch1");
+        w.cmd("git add file");
+        w.commit("branch1");
+        ObjectId branch1 = w.head();
+        w.cmd("git checkout master");
+
+        File lock = new File(w.repo, ".git/index.lock");
+        FileUtils.touch(lock);
+        long start = System.currentTimeMillis();
+        try {
+            // a merge isn't safe to run twice, it fails without waiting for the lock timeout
+            w.git.merge().setRevisionToMerge(branch1).execute();
+            fail();
+        } catch (GitLockFailedException e) {
+            assertTrue("merge retried", System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(WorkspaceLockManager.LOCK_TIMEOUT) / 2);
+        } finally {
+            lock.delete();
+        }
+    }
+
+    public void test_concurrent_checkouts_are_serialized() throws Exception {
+        w = clone(localMirror());
+        final ObjectId master = w.git.revParse("master");
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String branch = "branch" + i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++)
+                            w.git.checkoutBranch(branch, master.name());
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals("Concurrent checkouts failed: " + failures, 0, failures.size());
+        assertEquals(master, w.head());
+    }
+
     @Deprecated
     public void test_reset() throws IOException, InterruptedException {
         w.init();
@@ -420,7 +420,23 @@ public class GitURIRequirementsBuilderTest {
         assertThat(hostnamePort, nullValue());
 
     }
-    
+
+    @Test
+    public void parsedUrisAreCached() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            List<DomainRequirement> list =
+                    GitURIRequirementsBuilder.fromUri("git@github.com:jenkinsci/git-client-plugin.git").build();
+            assertThat(firstOrNull(list, SchemeRequirement.class).getScheme(), is("ssh"));
+            assertThat(firstOrNull(list, HostnamePortRequirement.class).getPort(), is(22));
+
+            // a file URI leaves the hostname requirements alone, as it did before the cache
+            list = GitURIRequirementsBuilder.create().withHostname("example.com")
+                    .withUri("file:///path/to/repo.git").build();
+            assertThat(firstOrNull(list, SchemeRequirement.class).getScheme(), is("file"));
+            assertThat(firstOrNull(list, HostnameRequirement.class).getHostname(), is("example.com"));
+        }
+    }
+
     <T> T firstOrNull(List<? super T> list, Class<T> type) {
         for (Object i: list) {
             if (type.isInstance(i))
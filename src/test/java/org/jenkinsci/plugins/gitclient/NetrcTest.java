@@ -139,6 +139,15 @@ public class NetrcTest
     }
 
 
+    @Test
+    public void testGetInstanceShared()
+    {
+        Netrc netrc = Netrc.getInstance(testFilePath_1);
+        assertSame(netrc, Netrc.getInstance(new File(testFilePath_1)));
+        assertNotSame(netrc, Netrc.getInstance(testFilePath_2));
+    }
+
+
     @Test
     public void testGetCredentialsPath()
     {
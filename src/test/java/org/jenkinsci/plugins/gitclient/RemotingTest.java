@@ -12,6 +12,7 @@ import org.jvnet.hudson.test.HudsonTestCase;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 /**
  * @author Kohsuke Kawaguchi
@@ -49,9 +50,16 @@ public class RemotingTest extends HudsonTestCase {
                 FilePath ws = git.withRepository(new RepositoryCallableImpl());
                 assertEquals(ws,git.getWorkTree());
 
+                // runs on the node of the workspace, answered through the channel
+                AsyncGitClient async = new AsyncGitClient(git);
+                assertEquals(git.revParse("HEAD"), async.revParse("HEAD").get());
+                assertTrue(async.hasGitRepo().get());
+
                 return null;
             } catch (InterruptedException e) {
                 throw new Error(e);
+            } catch (ExecutionException e) {
+                throw new Error(e);
             }
         }
 